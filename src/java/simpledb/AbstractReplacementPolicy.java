@@ -0,0 +1,51 @@
+package simpledb;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Helper for implementing ReplacementPolicies. Handles hit/miss accounting. */
+public abstract class AbstractReplacementPolicy implements ReplacementPolicy {
+
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+
+    public final void pageLoaded(PageId pid) {
+        misses.incrementAndGet();
+        loaded(pid);
+    }
+
+    public final void pageAccessed(PageId pid) {
+        hits.incrementAndGet();
+        accessed(pid);
+    }
+
+    /** Forgets the page like pageRemoved; policies that remember evicted pages override this. */
+    public void pageEvicted(PageId pid) {
+        pageRemoved(pid);
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public void resetStats() {
+        hits.set(0);
+        misses.set(0);
+    }
+
+    public String toString() {
+        long total = getHits() + getMisses();
+        double ratio = total == 0 ? 0.0 : (double) getHits() / total;
+        return String.format("%s: %d hits, %d misses (hit ratio %.3f)",
+                getName(), getHits(), getMisses(), ratio);
+    }
+
+    /** Start tracking a page that was just read into the pool. */
+    protected abstract void loaded(PageId pid);
+
+    /** Record another reference to a page that is already tracked. */
+    protected abstract void accessed(PageId pid);
+}
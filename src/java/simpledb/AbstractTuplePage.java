@@ -0,0 +1,261 @@
+package simpledb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Helper for implementing TuplePages.  Keeps the page image the page was
+ * read from, the pageLSN and recLSN, the dirty state and the before-image.
+ * <p>
+ * Every page format starts with a long pageLSN (the LSN of the last log
+ * record applied to the page, or 0); the rest of the image is the format's.
+ * The image is never changed.
+ * <p>
+ * Before-images are copy-on-write.  A page holds none while its contents
+ * are committed; the first change after that captures one (the image
+ * itself if the page has not changed since it was read, so no copy is
+ * made), and the commit that makes the change durable drops it again.
+ * Subclasses call {@link #beforeChange()} under the latch before every
+ * change to their slots.
+ */
+public abstract class AbstractTuplePage implements TuplePage {
+
+    /** Bytes at the start of a page that hold its pageLSN. */
+    static final int LSN_SIZE = 8;
+
+    final HeapPageId pid;
+    final TupleDesc td;
+    // the page image this page was read from; never changed
+    final byte[] image;
+
+    // the contents as of the last commit, or null if they are the current
+    // contents; captured by the first change after a commit
+    private byte[] oldData;
+    private final Object oldDataLock = new Object();
+    // whether the slots changed since the page was read; protected by the latch
+    private boolean modified = false;
+
+    // LSN of the last log record applied to this page (stored with it), or 0
+    private volatile long lsn;
+    // LSN of the first change since the page was last written, or 0 if it
+    // is clean; in memory only
+    private volatile long recLsn = 0;
+
+    private TransactionId dirtyTid = null;
+
+    /**
+     * @param data the page image; the page keeps it, so it must not change
+     *     afterwards.  Images of the wrong length are copied to one of
+     *     BufferPool.getPageSize() bytes.
+     */
+    protected AbstractTuplePage(HeapPageId id, TupleDesc td, byte[] data) {
+        this.pid = id;
+        this.td = td;
+        int pageSize = BufferPool.getPageSize();
+        this.image = data.length == pageSize ? data : Arrays.copyOf(data, pageSize);
+        this.lsn = ByteBuffer.wrap(this.image).getLong(0);
+    }
+
+    /**
+     * @return a page of the same format and id read from the given bytes
+     */
+    protected abstract TuplePage pageOf(byte[] data) throws IOException;
+
+    /**
+     * @return the PageId associated with this page.
+     */
+    public HeapPageId getId() {
+        return this.pid;
+    }
+
+    /** Return a view of this page before it was modified
+     -- used by recovery */
+    public Page getBeforeImage() {
+        try {
+            byte[] oldDataRef = null;
+            synchronized(oldDataLock)
+            {
+                oldDataRef = oldData;
+            }
+            if (oldDataRef == null) oldDataRef = getPageData();
+            return pageOf(oldDataRef);
+        } catch (IOException e) {
+            e.printStackTrace();
+            //should never happen -- we parsed it OK before!
+            System.exit(1);
+        }
+        return null;
+    }
+
+    /** The current contents are committed: drop the before-image, the
+     next change captures a new one. */
+    public void setBeforeImage() {
+        synchronized(oldDataLock)
+        {
+            oldData = null;
+        }
+    }
+
+    /** Capture the before-image if this is the first change since the last
+     commit; called with the page latched, before the change. */
+    protected void beforeChange() {
+        synchronized(oldDataLock)
+        {
+            if (oldData == null) {
+                oldData = modified ? getPageData() : this.image;
+            }
+        }
+        modified = true;
+    }
+
+    public long getLsn() {
+        return this.lsn;
+    }
+
+    public void setLsn(long lsn) {
+        if (this.recLsn == 0) this.recLsn = lsn;
+        this.lsn = lsn;
+    }
+
+    public long getRecLsn() {
+        return this.recLsn;
+    }
+
+    public void setRecLsn(long lsn) {
+        if (this.recLsn == 0 || lsn < this.recLsn) this.recLsn = lsn;
+    }
+
+    /**
+     * Marks this page as dirty/not dirty and record that transaction
+     * that did the dirtying
+     */
+    public void markDirty(boolean dirty, TransactionId tid) {
+        if (dirty){
+            this.dirtyTid = tid;
+        } else {
+            // written: the log before pageLSN is no longer needed to redo it
+            this.dirtyTid = null;
+            this.recLsn = 0;
+        }
+    }
+
+    /**
+     * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
+     */
+    public TransactionId isDirty() {
+        return this.dirtyTid;
+    }
+
+    /**
+     * The iterator visits the slots that are used when it is created and
+     * reads each tuple when it gets to it, skipping slots emptied meanwhile;
+     * callers that need the tuples as of one instant hold the page's latch
+     * while iterating.
+     */
+    public Iterator<Tuple> iterator() {
+        final List<Integer> slots = new ArrayList<Integer>();
+        synchronized (this) {
+            for (int i = nextUsedSlot(0); i >= 0; i = nextUsedSlot(i + 1)) {
+                slots.add(i);
+            }
+        }
+        return new Iterator<Tuple>() {
+            private int k = 0;
+            private Tuple next;
+
+            public boolean hasNext() {
+                while (next == null) {
+                    if (k >= slots.size()) return false;
+                    next = getTuple(slots.get(k++));
+                }
+                return true;
+            }
+
+            public Tuple next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                Tuple t = next;
+                next = null;
+                return t;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Projects the tuples of {@link #iterator()}, so only the kept fields
+     * are decoded.
+     */
+    public Iterator<Tuple> iterator(final int[] columns, final TupleDesc projected) {
+        final Iterator<Tuple> tuples = iterator();
+        return new Iterator<Tuple>() {
+            public boolean hasNext() {
+                return tuples.hasNext();
+            }
+
+            public Tuple next() {
+                return project(tuples.next(), columns, projected);
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Filters the tuples of {@link #iterator()} and projects the ones that
+     * pass; without predicates, this is {@link #iterator(int[], TupleDesc)}.
+     */
+    public Iterator<Tuple> iterator(final int[] columns, final TupleDesc projected, final Predicate[] filters) {
+        if (filters.length == 0) return columns == null ? iterator() : iterator(columns, projected);
+        final Iterator<Tuple> tuples = iterator();
+        return new Iterator<Tuple>() {
+            private Tuple next;
+
+            public boolean hasNext() {
+                while (next == null && tuples.hasNext()) {
+                    Tuple t = tuples.next();
+                    if (passes(t, filters)) next = columns == null ? t : project(t, columns, projected);
+                }
+                return next != null;
+            }
+
+            public Tuple next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                Tuple t = next;
+                next = null;
+                return t;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * @return true if t satisfies all the predicates
+     */
+    static boolean passes(Tuple t, Predicate[] filters) {
+        for (Predicate p : filters) {
+            if (!p.filter(t)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return a tuple with the given fields of t and t's RecordId
+     */
+    static Tuple project(Tuple t, int[] columns, TupleDesc projected) {
+        Tuple p = new Tuple(projected);
+        for (int k = 0; k < columns.length; k++) {
+            p.setField(k, t.getField(columns[k]));
+        }
+        p.setRecordId(t.getRecordId());
+        return p;
+    }
+}
@@ -0,0 +1,96 @@
+package simpledb;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+/**
+ * A BufferAccessStrategy lets a single access path, typically a large
+ * sequential scan, recycle a small private ring of buffer pool frames
+ * instead of pushing every page it reads through the shared replacement
+ * policy (cf. BAS_BULKREAD in PostgreSQL).
+ * <p>
+ * Pages read through a strategy are owned by its ring.  The buffer pool
+ * is split into partitions, each with its own latch and frames, so a
+ * strategy keeps one ring per partition it reads into, of
+ * ringSize / partitions frames (at least one).  Once a partition's ring is
+ * full, or the partition itself is, the next miss in that partition evicts
+ * the oldest page of its ring rather than a page chosen by the pool's
+ * ReplacementPolicy, so a scan of any length displaces at most
+ * max(ringSize, partitions) pages that other transactions depend on.  A
+ * page that is requested again without the strategy is released from the
+ * ring and becomes an ordinary shared page.
+ * <p>
+ * A strategy belongs to one scan, but its rings span several buffer pool
+ * partitions, so they are guarded by the strategy's monitor; each ring is
+ * only changed under the latch of its partition.
+ *
+ * @see BufferPool#getPage(TransactionId, PageId, Permissions, BufferAccessStrategy)
+ */
+public class BufferAccessStrategy {
+
+    /** Largest ring handed out by {@link #bulkRead(int)}. */
+    public static final int MAX_BULK_READ_RING = 16;
+
+    private final int ringSize;
+    // the pages of each ring, oldest first, by buffer pool partition
+    private final Map<Object, LinkedHashSet<PageId>> rings;
+
+    /**
+     * @param ringSize the number of frames this strategy may occupy
+     */
+    public BufferAccessStrategy(int ringSize) {
+        if (ringSize < 1) throw new IllegalArgumentException("ring must hold at least one page");
+        this.ringSize = ringSize;
+        this.rings = new HashMap<Object, LinkedHashSet<PageId>>();
+    }
+
+    /**
+     * Creates the strategy used for bulk sequential reads: a ring of an
+     * eighth of the pool, capped at MAX_BULK_READ_RING pages.
+     *
+     * @param poolPages the number of pages in the buffer pool
+     */
+    public static BufferAccessStrategy bulkRead(int poolPages) {
+        return new BufferAccessStrategy(Math.max(1, Math.min(MAX_BULK_READ_RING, poolPages / 8)));
+    }
+
+    /** @return the number of frames this strategy may occupy */
+    public int getRingSize() {
+        return ringSize;
+    }
+
+    /** @return the frames of the ring in each of the given number of partitions */
+    int framesPerPartition(int partitions) {
+        return Math.max(1, ringSize / partitions);
+    }
+
+    /** @return the number of pages of the ring in the given partition */
+    synchronized int size(Object partition) {
+        LinkedHashSet<PageId> ring = rings.get(partition);
+        return ring == null ? 0 : ring.size();
+    }
+
+    /** Add a page that was just read through this strategy to the ring of its partition. */
+    synchronized void add(Object partition, PageId pid) {
+        LinkedHashSet<PageId> ring = rings.get(partition);
+        if (ring == null) {
+            ring = new LinkedHashSet<PageId>();
+            rings.put(partition, ring);
+        }
+        ring.add(pid);
+    }
+
+    /** Stop tracking a page, either because it left the pool or because it became shared. */
+    synchronized void release(Object partition, PageId pid) {
+        LinkedHashSet<PageId> ring = rings.get(partition);
+        if (ring != null) ring.remove(pid);
+    }
+
+    /** @return the oldest page of the ring in the given partition, i.e. the next frame to recycle, or null */
+    synchronized PageId nextVictim(Object partition) {
+        LinkedHashSet<PageId> ring = rings.get(partition);
+        if (ring == null || ring.isEmpty()) return null;
+        return ring.iterator().next();
+    }
+}
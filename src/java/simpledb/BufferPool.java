@@ -3,11 +3,16 @@ package simpledb;
 import java.io.*;
 import java.util.*;
 import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 import java.util.ArrayList;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 
 /**
@@ -18,6 +23,30 @@ import java.util.concurrent.locks.Lock;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * The pool is split into partitions.  A PageId hashes to exactly one
+ * partition, and each partition has its own latch, frame table and
+ * replacement policy, so requests for pages in different partitions never
+ * wait for each other.  Pages are read from disk without holding the latch,
+ * so a miss only delays requests for the same page.  Code that must see a
+ * stable view of the whole pool
+ * (recovery, checkpoints) brackets its work with {@link #latchAll()} and
+ * {@link #unlatchAll()}.
+ * <p>
+ * Tables with RECORD lock granularity share their pages between writers:
+ * getPage only takes the table's intention lock and the tuples themselves
+ * are locked by RecordId.  Aborts never restore whole pages, which would
+ * also undo other transactions' changes: the log rolls back the aborting
+ * transaction's inserts and deletes one slot at a time, in any table.
+ * <p>
+ * With snapshot isolation enabled, the pool keeps a {@link VersionStore}
+ * of old tuple versions: scans read the snapshot of their transaction
+ * through {@link #getPageUnlocked} without taking any locks, while writers
+ * lock as before.
+ * <p>
+ * With a page writer interval set, a {@link PageWriter} thread writes the
+ * oldest dirty pages in the background to keep some frames clean, so that
+ * evictions rarely have to write a page on the caller's thread.
  *
  * @Threadsafe, all fields are final
  */
@@ -40,23 +69,241 @@ public class BufferPool {
 
     private int numPages = DEFAULT_PAGES;
 
-    private Map<PageId, Page> bufferPool_pages;
-    private ArrayList<Page> pagesList;
+    /** System property used to select the replacement policy at startup,
+     e.g. -Dsimpledb.ReplacementPolicy=clock.  One of lru, clock, lru-k
+     (or lru-N for a specific N) and 2q; defaults to lru. */
+    public static final String POLICY_PROPERTY = "simpledb.ReplacementPolicy";
+
+    /** System property used to set the number of partitions at startup. */
+    public static final String PARTITIONS_PROPERTY = "simpledb.BufferPoolPartitions";
+
+    /** System property that turns on snapshot isolation (MVCC) at startup,
+     e.g. -Dsimpledb.SnapshotIsolation=true. */
+    public static final String SNAPSHOT_PROPERTY = "simpledb.SnapshotIsolation";
+
+    /** System property setting the interval, in milliseconds, between two
+     rounds of the background page writer; 0 (the default) turns it off. */
+    public static final String PAGE_WRITER_INTERVAL_PROPERTY = "simpledb.PageWriterInterval";
+
+    /** System property setting the most pages the page writer writes per
+     round; defaults to a tenth of the pool. */
+    public static final String PAGE_WRITER_RATE_PROPERTY = "simpledb.PageWriterMaxPages";
+
+    /** System property setting the number of clean frames the page writer
+     keeps; defaults to a quarter of the pool. */
+    public static final String PAGE_WRITER_CLEAN_PROPERTY = "simpledb.PageWriterCleanFrames";
+
+    /** Number of completed transactions between two garbage collections of
+     the version store. */
+    public static final int VERSION_GC_INTERVAL = 64;
+
+    /** Partitions are not made smaller than this many pages by default, so a
+     small pool is not split into slices that thrash on hash skew. */
+    public static final int MIN_PARTITION_PAGES = 16;
+
+    /**
+     * One independently latched slice of the pool.  All fields are guarded
+     * by latch; pages is concurrent so that it can be probed without it.
+     */
+    private static class Partition {
+        final ReentrantLock latch = new ReentrantLock();
+        final Map<PageId, Page> pages = new ConcurrentHashMap<>();
+        // pages currently held in the private ring of a BufferAccessStrategy
+        final Map<PageId, BufferAccessStrategy> ringOwners = new HashMap<>();
+        // reads of pages that are not resident yet, done outside the latch;
+        // each takes a frame until its page is installed
+        final Map<PageId, FutureTask<Page>> loading = new HashMap<>();
+        // signalled when a read ends, so its frame is taken or free again
+        final Condition loaded = latch.newCondition();
+        final ReplacementPolicy policy;
+        final int capacity;
+
+        Partition(int capacity, ReplacementPolicy policy) {
+            this.capacity = capacity;
+            this.policy = policy;
+        }
+    }
+
+    private final Partition[] partitions;
+
+    // old tuple versions for snapshot readers; null unless snapshot isolation is on
+    private volatile VersionStore versionStore;
+    private final AtomicLong completions = new AtomicLong();
+    // evictions that had to write their victim on the caller's thread
+    private final AtomicLong dirtyEvictions = new AtomicLong();
+    // the background page writer, or null
+    private PageWriter pageWriter;
 
     //Lab 3 Lock: modified wording and Map structure to hold multiple transactions
     private Map<TransactionId, Set<PageId>> transactionSet;
     private LockManager lockManager;
 
-    private int PageCount = 0;
-    private boolean selfAbort = true;
-
     public BufferPool(int numPages) {
+        this(numPages, System.getProperty(POLICY_PROPERTY),
+                Integer.getInteger(PARTITIONS_PROPERTY, defaultPartitions(numPages)));
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages, split into the
+     * given number of partitions, each evicting pages in the order chosen by
+     * its own instance of the named replacement policy.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policyName the replacement policy, see {@link #newReplacementPolicy}
+     * @param numPartitions the number of independently latched partitions
+     */
+    public BufferPool(int numPages, String policyName, int numPartitions) {
         // some code goes here
         this.numPages = numPages;
         this.transactionSet = new ConcurrentHashMap<>();
-        this.bufferPool_pages = new ConcurrentHashMap<>();
-        this.pagesList = new ArrayList<>();
+        int n = Math.max(1, Math.min(numPartitions, numPages));
+        this.partitions = new Partition[n];
+        for (int i = 0; i < n; i++) {
+            // spread the pages so the partitions add up to exactly numPages
+            int capacity = numPages / n + (i < numPages % n ? 1 : 0);
+            this.partitions[i] = new Partition(capacity, newReplacementPolicy(policyName, capacity));
+        }
         this.lockManager = new LockManager();
+        if (Boolean.getBoolean(SNAPSHOT_PROPERTY)) this.versionStore = new VersionStore();
+        long writerInterval = Long.getLong(PAGE_WRITER_INTERVAL_PROPERTY, 0);
+        if (writerInterval > 0) {
+            startPageWriter(writerInterval,
+                    Integer.getInteger(PAGE_WRITER_RATE_PROPERTY, Math.max(1, numPages / 10)),
+                    Integer.getInteger(PAGE_WRITER_CLEAN_PROPERTY, Math.max(1, numPages / 4)));
+        }
+    }
+
+    /**
+     * Start a background page writer for this pool, replacing the running
+     * one, if any.
+     *
+     * @param intervalMillis the time between two rounds
+     * @param maxPagesPerRound the most pages written per round
+     * @param cleanFrames the number of clean frames to keep
+     */
+    public synchronized void startPageWriter(long intervalMillis, int maxPagesPerRound, int cleanFrames) {
+        stopPageWriter();
+        this.pageWriter = new PageWriter(this, intervalMillis, maxPagesPerRound, cleanFrames);
+        this.pageWriter.start();
+    }
+
+    /** Stop the background page writer, if any, and wait for it. */
+    public synchronized void stopPageWriter() {
+        if (this.pageWriter == null) return;
+        this.pageWriter.shutdown();
+        this.pageWriter = null;
+    }
+
+    /** @return the background page writer, or null if it is off */
+    public synchronized PageWriter getPageWriter() {
+        return this.pageWriter;
+    }
+
+    /** @return the number of evictions that had to write a dirty page on
+     the caller's thread */
+    public long getDirtyEvictions() {
+        return this.dirtyEvictions.get();
+    }
+
+    /**
+     * Turns snapshot isolation on or off.  Only call this while no
+     * transactions are running.
+     */
+    public void setSnapshotIsolation(boolean enabled) {
+        this.versionStore = enabled ? new VersionStore() : null;
+    }
+
+    /** @return the store of old tuple versions, or null if snapshot isolation is off */
+    public VersionStore getVersionStore() {
+        return this.versionStore;
+    }
+
+    /**
+     * @return the default number of partitions for a pool of numPages pages:
+     *   two per processor, but no partition smaller than MIN_PARTITION_PAGES
+     */
+    private static int defaultPartitions(int numPages) {
+        int byCores = 2 * Runtime.getRuntime().availableProcessors();
+        return Math.max(1, Math.min(byCores, numPages / MIN_PARTITION_PAGES));
+    }
+
+    /**
+     * Creates the replacement policy with the given name.
+     *
+     * @param name one of lru, clock, lru-k, lru-N or 2q; null means lru
+     * @param numPages the number of pages the policy will manage
+     * @throws IllegalArgumentException if the name is not recognized
+     */
+    public static ReplacementPolicy newReplacementPolicy(String name, int numPages) {
+        if (name == null || name.trim().isEmpty()) return new LruPolicy();
+        String n = name.trim().toLowerCase();
+        if (n.equals("lru")) return new LruPolicy();
+        if (n.equals("clock")) return new ClockPolicy(numPages);
+        if (n.equals("2q")) return new TwoQueuePolicy(numPages);
+        if (n.equals("lru-k") || n.equals("lruk")) return new LruKPolicy(2, numPages);
+        if (n.startsWith("lru-")) {
+            try {
+                return new LruKPolicy(Integer.parseInt(n.substring(4)), numPages);
+            } catch (NumberFormatException e) {
+                // fall through to the error below
+            }
+        }
+        throw new IllegalArgumentException("Unknown replacement policy " + name);
+    }
+
+    /** @return the replacement policies of the partitions, including their hit/miss counters */
+    public List<ReplacementPolicy> getReplacementPolicies() {
+        List<ReplacementPolicy> policies = new ArrayList<>();
+        for (Partition part : this.partitions) policies.add(part.policy);
+        return policies;
+    }
+
+    /** @return the number of getPage requests served from the pool */
+    public long getHits() {
+        long hits = 0;
+        for (Partition part : this.partitions) hits += part.policy.getHits();
+        return hits;
+    }
+
+    /** @return the number of getPage requests that had to read the page from disk */
+    public long getMisses() {
+        long misses = 0;
+        for (Partition part : this.partitions) misses += part.policy.getMisses();
+        return misses;
+    }
+
+    /** @return the maximum number of pages in this buffer pool */
+    public int getNumPages() {
+        return this.numPages;
+    }
+
+    /** @return the number of independently latched partitions */
+    public int getNumPartitions() {
+        return this.partitions.length;
+    }
+
+    private Partition partitionOf(PageId pid) {
+        // HeapPageId hashes are tableId + pageNo, so mix the bits before
+        // reducing them or neighbouring tables would share partitions
+        int h = pid.hashCode() * 0x9E3779B9;
+        h ^= (h >>> 16);
+        return this.partitions[Math.floorMod(h, this.partitions.length)];
+    }
+
+    /**
+     * Acquires the latch of every partition, in partition order.  Callers
+     * that need the whole pool to stand still (recovery, checkpoints,
+     * rollback) must call this before taking any other monitor that page
+     * flushes also take, such as the LogFile's, and must call
+     * {@link #unlatchAll()} in a finally block.  Latches are reentrant.
+     */
+    public void latchAll() {
+        for (Partition part : this.partitions) part.latch.lock();
+    }
+
+    /** Releases the latches acquired by {@link #latchAll()}. */
+    public void unlatchAll() {
+        for (int i = this.partitions.length - 1; i >= 0; i--) this.partitions[i].latch.unlock();
     }
 
     public static int getPageSize() {
@@ -91,68 +338,272 @@ public class BufferPool {
 
     public Page getPage(TransactionId tid, PageId pid, Permissions p)
             throws TransactionAbortedException, DbException{
-        // Lab 3 lock
-        Thread thread = new Thread();
+        return getPage(tid, pid, p, null);
+    }
 
-        // Jack modification: evict pages first or else no room for new page!
-        // Eviction
-        if (this.bufferPool_pages.size() >= this.numPages) {
-            evictPage();
-        }
+    /**
+     * Retrieve the specified page with the associated permissions, reading
+     * it through the given access strategy if it is not resident.
+     * <p>
+     * Pages read through a strategy occupy the strategy's private ring of
+     * frames; once the ring is full, its oldest page is evicted to make room
+     * instead of a page chosen by the replacement policy.  A null strategy
+     * behaves exactly like {@link #getPage(TransactionId, PageId, Permissions)}.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param p the requested permissions on the page
+     * @param strategy the access strategy of the caller, or null
+     */
+    public Page getPage(TransactionId tid, PageId pid, Permissions p, BufferAccessStrategy strategy)
+            throws TransactionAbortedException, DbException{
         // Jack lab3 modification for deadlock
-
-        // deadlock detection method 1: timeouts
+        // deadlocks are detected by the lock manager's waits-for graph; only
+        // the chosen victim sees the exception, and it aborts itself
         try {
-            this.lockManager.acquireLock(tid, pid, p, this.selfAbort);
-        } catch (TransactionAbortedException ex) {
-            // deadlock resolving method 1: self abortion
-            try {
-                transactionComplete(tid, false);
-            } catch (IOException e) {
-                throw new DbException("can't restore transaction" + tid.getId());
-            }
-            throw ex;
-        } catch (RuntimeException ex) {
-            // deadlock resolving method 2: abort others
-            for (TransactionId curr_tid: this.transactionSet.keySet()) {
-                if (curr_tid != tid) {
-                    try {
-                        transactionComplete(curr_tid, false);
-                    }
-                    catch (IOException ioEx) {
-                        throw new DbException("can't restore transaction" + tid.getId());
-                    }
-                }
+            if (isRecordLocked(pid.getTableId())) {
+                this.lockManager.acquireIntentionLock(tid, pid.getTableId(), p);
+            } else {
+                this.lockManager.acquireLock(tid, pid, p);
             }
-//            System.out.println(this.lockManager.holdsLock(tid, pid));
+        } catch (TransactionAbortedException ex) {
+            throw abortSelf(tid, ex);
         }
-        this.lockManager.acquireLock(tid, pid, p, this.selfAbort);
 
         // Lab 3 Modified for multiple tid
         //assert(Database.getCatalog().getDatabaseFile(pid.getTableId()) != null);
 
         //assert(file.readPage(pid) != null);
-        if (!this.bufferPool_pages.containsKey(pid)) {
-            HeapFile file = (HeapFile) Database.getCatalog().getDatabaseFile(pid.getTableId());
-            Page currentPage = file.readPage(pid);
-            this.bufferPool_pages.put(pid, currentPage);
-            this.pagesList.add(currentPage);
-            PageCount++;
-            System.out.println("PageCount = " + PageCount);
+        Page page = fetchPage(pid, strategy);
+        track(tid, pid);
+        return page;
+    }
+
+    /**
+     * Retrieve a page for a snapshot read, without locking it.  The caller
+     * must only look at the page through the VersionStore, which hides the
+     * changes its snapshot cannot see.
+     *
+     * @param pid the ID of the requested page
+     * @param strategy the access strategy of the caller, or null
+     */
+    public Page getPageUnlocked(PageId pid, BufferAccessStrategy strategy) throws DbException {
+        return fetchPage(pid, strategy);
+    }
+
+    /** @return true if the page is resident; takes no latch */
+    public boolean isCached(PageId pid) {
+        return partitionOf(pid).pages.containsKey(pid);
+    }
+
+    /**
+     * Aborts a transaction whose lock request failed, so the caller can
+     * rethrow the exception.
+     */
+    private TransactionAbortedException abortSelf(TransactionId tid, TransactionAbortedException ex)
+            throws DbException {
+        try {
+            transactionComplete(tid, false);
+        } catch (IOException e) {
+            throw new DbException("can't restore transaction" + tid.getId());
         }
+        return ex;
+    }
 
+    /** Remember that tid touched the page, so transactionComplete visits it. */
+    private void track(TransactionId tid, PageId pid) {
         if (!this.transactionSet.containsKey(tid)){
-            this.transactionSet.put(tid, new HashSet<PageId>());
+            this.transactionSet.putIfAbsent(tid, ConcurrentHashMap.<PageId>newKeySet());
         }
         if (!this.transactionSet.get(tid).contains(pid)) {
             this.transactionSet.get(tid).add(pid);
         }
+    }
 
-        return bufferPool_pages.get(pid);
+    /**
+     * Returns the resident copy of a page, reading it (through the strategy,
+     * if any) when it is not in the pool.  Takes no locks.
+     * <p>
+     * The page is read without the partition's latch, so lookups of other
+     * pages of the partition do not wait for the disk.  While it is read, a
+     * placeholder in the partition takes its frame, and other requests for
+     * the page wait for the same read.
+     */
+    private Page fetchPage(final PageId pid, BufferAccessStrategy strategy) throws DbException {
+        Partition part = partitionOf(pid);
+        while (true) {
+            FutureTask<Page> load = null;
+            boolean reader = false;
+            part.latch.lock();
+            try {
+                while (true) {
+                    Page page = part.pages.get(pid);
+                    if (page != null) {
+                        part.policy.pageAccessed(pid);
+                        // a page other scans or lookups ask for is no longer private to a ring
+                        BufferAccessStrategy owner = part.ringOwners.get(pid);
+                        if (owner != null && owner != strategy) {
+                            owner.release(part, pid);
+                            part.ringOwners.remove(pid);
+                        }
+                        return page;
+                    }
+                    load = part.loading.get(pid);
+                    if (load != null) break;
+                    if (strategy != null) recycleRingFrame(part, strategy);
+                    if (part.pages.size() + part.loading.size() < part.capacity) break;
+                    if (!part.pages.isEmpty()) {
+                        // evict first or else there is no room for the new page
+                        evictPage(part);
+                    } else {
+                        // every frame is being read into
+                        part.loaded.awaitUninterruptibly();
+                    }
+                }
+                if (load == null) {
+                    final DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+                    load = new FutureTask<Page>(new Callable<Page>() {
+                        public Page call() {
+                            return file.readPage(pid);
+                        }
+                    });
+                    part.loading.put(pid, load);
+                    reader = true;
+                }
+            } finally {
+                part.latch.unlock();
+            }
+
+            if (reader) load.run();
+            Page page = install(part, pid, load, strategy);
+            // null if the page was installed by another request and has
+            // already been evicted again
+            if (page != null) return page;
+        }
+    }
+
+    /**
+     * Waits for a read of a page and makes the page resident, unless the
+     * read was already installed.
+     *
+     * @return the resident copy of the page, or null if it is not resident
+     */
+    private Page install(Partition part, PageId pid, FutureTask<Page> load, BufferAccessStrategy strategy)
+            throws DbException {
+        Page page = null;
+        Throwable failure = null;
+        boolean interrupted = false;
+        while (true) {
+            try {
+                page = load.get();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            } catch (ExecutionException e) {
+                failure = e.getCause();
+                break;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+
+        part.latch.lock();
+        try {
+            if (part.loading.get(pid) == load) {
+                part.loading.remove(pid);
+                part.loaded.signalAll();
+                // a page cached meanwhile, e.g. just appended, is the newer one
+                if (page != null && !part.pages.containsKey(pid)) {
+                    part.pages.put(pid, page);
+                    part.policy.pageLoaded(pid);
+                    if (strategy != null) {
+                        strategy.add(part, pid);
+                        part.ringOwners.put(pid, strategy);
+                    }
+                }
+            }
+            if (failure == null) return part.pages.get(pid);
+        } finally {
+            part.latch.unlock();
+        }
+        if (failure instanceof RuntimeException) throw (RuntimeException) failure;
+        if (failure instanceof Error) throw (Error) failure;
+        throw new DbException("can't read page " + pid + ": " + failure);
+    }
+
+    /** @return true if the table is locked record by record rather than page by page */
+    public boolean isRecordLocked(int tableId) {
+        return Database.getCatalog().getLockGranularity(tableId) == LockManager.Granularity.RECORD;
+    }
+
+    /**
+     * Lock one tuple of a table with RECORD lock granularity, blocking until
+     * the lock is granted.  If the transaction is aborted while waiting, its
+     * changes are rolled back before the exception is thrown, as in getPage.
+     *
+     * @param tid the ID of the transaction requesting the lock
+     * @param rid the tuple to lock
+     * @param p READ_ONLY for a shared lock, READ_WRITE for an exclusive one
+     */
+    public void lockRecord(TransactionId tid, RecordId rid, Permissions p)
+            throws TransactionAbortedException, DbException {
+        try {
+            this.lockManager.acquireLock(tid, rid, p);
+        } catch (TransactionAbortedException ex) {
+            throw abortSelf(tid, ex);
+        }
+    }
+
+    /**
+     * Lock one tuple only if no other transaction holds or waits for it.
+     * Used to pick a slot to insert into without waiting on the latch of
+     * its page.
+     *
+     * @return true if tid now holds the lock
+     */
+    public boolean tryLockRecord(TransactionId tid, RecordId rid, Permissions p) {
+        return this.lockManager.tryAcquireLock(tid, rid, p);
+    }
+
+    /**
+     * Evicts the oldest page of a strategy's ring in a partition whose latch
+     * the caller holds, if the ring has its share of the partition's frames
+     * or the partition is full, so a scan never evicts shared pages of a
+     * partition it holds frames of.
+     */
+    private void recycleRingFrame(Partition part, BufferAccessStrategy strategy) throws DbException {
+        if (strategy.size(part) < strategy.framesPerPartition(this.partitions.length)
+                && part.pages.size() + part.loading.size() < part.capacity) return;
+        PageId recycled = strategy.nextVictim(part);
+        if (recycled == null) return;
+        strategy.release(part, recycled);
+        if (part.ringOwners.get(recycled) == strategy) {
+            evictPage(part, recycled, false);
+        }
+    }
+
+    /**
+     * Makes a page that was created outside of getPage (e.g. a page appended
+     * to a HeapFile) resident, evicting another page if its partition is full.
+     */
+    private void cachePage(Page page) throws DbException {
+        PageId pid = page.getId();
+        Partition part = partitionOf(pid);
+        part.latch.lock();
+        try {
+            if (!part.pages.containsKey(pid)) {
+                if (part.pages.size() + part.loading.size() >= part.capacity && !part.pages.isEmpty()) {
+                    evictPage(part);
+                }
+                part.policy.pageLoaded(pid);
+            }
+            part.pages.put(pid, page);
+        } finally {
+            part.latch.unlock();
+        }
     }
 
     public void Abort(TransactionId tid) throws TransactionAbortedException {
-//        this.lockManager.acquireLock(tid, pid, p, this.selfAbort);
+//        this.lockManager.acquireLock(tid, pid, p);
     }
 
     /**
@@ -207,23 +658,34 @@ public class BufferPool {
 //        this.lockManager.transactionComplete(tid);
 
         // Jack modified policy for lab4: NO-FORCE
-        if (!transactionSet.containsKey(tid)) return;
-        if (transactionSet.get(tid).isEmpty()) return;
-        ArrayList<PageId> allPageIntid = new ArrayList<PageId>();
-        for (PageId pid: this.transactionSet.get(tid)){
-            allPageIntid.add(pid);
+        if (!commit) {
+            // does nothing if Transaction already rolled back through logAbort
+            Database.getLogFile().rollback(tid);
         }
+        Set<PageId> touched = transactionSet.remove(tid);
+        ArrayList<PageId> allPageIntid = new ArrayList<PageId>();
+        if (touched != null) allPageIntid.addAll(touched);
         for (int i = 0; i < allPageIntid.size(); i++) {
             PageId currentPageId = allPageIntid.get(i);
-            Page currentPage = bufferPool_pages.get(currentPageId);
-            if (commit) {
-                Database.getLogFile().logWrite(tid,
-                        currentPage.getBeforeImage(),
-                        currentPage);
-                Database.getLogFile().force();
-                currentPage.setBeforeImage();
+            Partition part = partitionOf(currentPageId);
+            part.latch.lock();
+            try {
+                Page currentPage = part.pages.get(currentPageId);
+                if (currentPage == null) continue;
+                if (commit) {
+                    currentPage.setBeforeImage();
+                }
+            } finally {
+                part.latch.unlock();
+            }
+        }
+        VersionStore versions = this.versionStore;
+        if (versions != null) {
+            // publish or drop the versions while tid still holds its write locks
+            versions.transactionComplete(tid, commit);
+            if (completions.incrementAndGet() % VERSION_GC_INTERVAL == 0) {
+                versions.collectGarbage();
             }
-            else this.bufferPool_pages.put(currentPageId, currentPage.getBeforeImage());
         }
         this.lockManager.transactionComplete(tid);
     }
@@ -232,7 +694,8 @@ public class BufferPool {
      * Add a tuple to the specified table on behalf of transaction tid.  Will
      * acquire a write lock on the page the tuple is added to and any other
      * pages that are updated (Lock acquisition is not needed for lab2).
-     * May block if the lock(s) cannot be acquired.
+     * May block if the lock(s) cannot be acquired.  In tables with record
+     * locks, only the new tuple's slot is locked exclusively.
      *
      * Marks any pages that were dirtied by the operation as dirty by calling
      * their markDirty bit, and adds versions of any pages that have
@@ -250,6 +713,7 @@ public class BufferPool {
         HeapFile hf = (HeapFile) Database.getCatalog().getDatabaseFile(tableId);
         ArrayList<Page> modified = hf.insertTuple(tid, t);
         for (Page page: modified) {
+            track(tid, page.getId());
 
             //Lab 3 getPage for lock check //// Jack modification: no need to getpage, it's done in heapfile
 //            page = getPage(tid, page.getId(), Permissions.READ_WRITE);
@@ -258,7 +722,7 @@ public class BufferPool {
 //                evictPage();
 //            }
             if (!holdsLock(tid, page.getId())) {
-                this.bufferPool_pages.put(page.getId(), page);
+                cachePage(page);
             }
 //            if (this.pagesList.size() > this.numPages){
 //                this.evictPage();
@@ -272,6 +736,9 @@ public class BufferPool {
      * Remove the specified tuple from the buffer pool.
      * Will acquire a write lock on the page the tuple is removed from and any
      * other pages that are updated. May block if the lock(s) cannot be acquired.
+     * In tables with record locks, the tuple itself is locked exclusively.
+     * Under snapshot isolation, the transaction aborts if the tuple was
+     * changed by a transaction its snapshot does not include.
      *
      * Marks any pages that were dirtied by the operation as dirty by calling
      * their markDirty bit, and adds versions of any pages that have
@@ -285,9 +752,25 @@ public class BufferPool {
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // lab2 added
-        HeapFile hf = (HeapFile) Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId());
+        RecordId rid = t.getRecordId();
+        if (rid == null) throw new DbException("tuple not valid");
+        HeapFile hf = (HeapFile) Database.getCatalog().getDatabaseFile(rid.getPageId().getTableId());
+        boolean recordLocked = isRecordLocked(rid.getPageId().getTableId());
+        if (recordLocked) {
+            lockRecord(tid, rid, Permissions.READ_WRITE);
+        }
+        VersionStore versions = this.versionStore;
+        if (versions != null) {
+            // lock the page before checking, so no one can change the slot meanwhile
+            getPage(tid, rid.getPageId(), Permissions.READ_WRITE);
+            if (versions.changedSinceSnapshot(tid, rid)) {
+                // first updater wins: tid would overwrite a change it never saw
+                throw abortSelf(tid, new TransactionAbortedException());
+            }
+        }
         ArrayList<Page> modified = hf.deleteTuple(tid, t);
         for (Page page: modified) {
+            track(tid, page.getId());
 
             //Lab 3 use getPage for lock check //// Jack modification: no need to getpage, it's done in heapfile
             page.markDirty(true, tid);
@@ -295,7 +778,7 @@ public class BufferPool {
 //                evictPage();
 //            }
             if (!holdsLock(tid, page.getId())) {
-                this.bufferPool_pages.put(page.getId(), page);
+                cachePage(page);
             }
 //            if (this.bufferPool_pages.size() > this.numPages){
 //                this.evictPage();
@@ -310,14 +793,75 @@ public class BufferPool {
      * NB: Be careful using this routine -- it writes dirty data to disk so will
      *     break simpledb if running in NO STEAL mode.
      */
-    public synchronized void flushAllPages() throws IOException {
+    public void flushAllPages() throws IOException {
         // some code goes here
-        // (John) Lab2 flush
-        for (PageId pid: bufferPool_pages.keySet()){
-            flushPage(pid);
+        // (John) Lab2 flush; one partition at a time
+        for (Partition part : this.partitions) {
+            part.latch.lock();
+            try {
+                for (PageId pid : part.pages.keySet()) {
+                    flushPage(pid);
+                }
+            } finally {
+                part.latch.unlock();
+            }
+        }
+    }
+
+    /**
+     * Write a page if it is still resident and dirty.  Used by the page
+     * writer, which picks its pages without latches.
+     *
+     * @return true if the page was written
+     */
+    boolean flushIfResident(PageId pid) throws IOException {
+        Partition part = partitionOf(pid);
+        part.latch.lock();
+        try {
+            if (!part.pages.containsKey(pid)) return false;
+            return flushPage(pid);
+        } finally {
+            part.latch.unlock();
+        }
+    }
+
+    /**
+     * Write the pages that have been dirty since before the given log
+     * offset, so that a checkpoint taken next no longer needs the log
+     * before it.  Used by the background checkpointer.
+     */
+    public void flushPagesDirtiedBefore(long lsn) throws IOException {
+        for (Partition part : this.partitions) {
+            part.latch.lock();
+            try {
+                for (Page page : part.pages.values()) {
+                    if (!(page instanceof TuplePage)) continue;
+                    long recLsn = ((TuplePage) page).getRecLsn();
+                    if (recLsn != 0 && recLsn < lsn) flushPage(page.getId());
+                }
+            } finally {
+                part.latch.unlock();
+            }
         }
     }
 
+    /**
+     * Returns the dirty page table for a checkpoint: the recLSN of every
+     * resident page with logged changes that are not on disk yet.  Takes no
+     * latches, so the log can call it while holding its monitor.
+     */
+    public Map<PageId, Long> getDirtyPages() {
+        Map<PageId, Long> dirty = new HashMap<>();
+        for (Partition part : this.partitions) {
+            for (Page page : part.pages.values()) {
+                if (!(page instanceof TuplePage)) continue;
+                long recLsn = ((TuplePage) page).getRecLsn();
+                if (recLsn != 0) dirty.put(page.getId(), recLsn);
+            }
+        }
+        return dirty;
+    }
+
     /** Remove the specific page id from the buffer pool.
      Needed by the recovery manager to ensure that the
      buffer pool doesn't keep a rolled back page in its
@@ -326,38 +870,45 @@ public class BufferPool {
      Also used by B+ tree files to ensure that deleted pages
      are removed from the cache so they can be reused safely
      */
-    public synchronized void discardPage(PageId pid) {
+    public void discardPage(PageId pid) {
+        discardPage(pid, false);
+    }
+
+    /** Removes a page from the buffer pool, telling the replacement policy
+     whether it chose the page as a victim or the page was discarded. */
+    private void discardPage(PageId pid, boolean evicted) {
         // some code goes here
         // Lab 2 Flush; Lab 3 Lock
-        for (int i = 0; i < this.pagesList.size(); i++){
-            if (this.pagesList.get(i).equals(bufferPool_pages.get(pid))){
-                this.pagesList.remove(i);
-                break;
+        Partition part = partitionOf(pid);
+        part.latch.lock();
+        try {
+            if (part.pages.remove(pid) != null) {
+                if (evicted) part.policy.pageEvicted(pid);
+                else part.policy.pageRemoved(pid);
             }
-        }
-        if(this.bufferPool_pages.containsKey(pid)) {
-            this.bufferPool_pages.remove(pid);
+            BufferAccessStrategy owner = part.ringOwners.remove(pid);
+            if (owner != null) owner.release(part, pid);
+        } finally {
+            part.latch.unlock();
         }
 
-        for (TransactionId tid: transactionSet.keySet()){
-            if (transactionSet.get(tid).contains(pid)) transactionSet.get(tid).remove(pid);
-            if (transactionSet.get(tid).size() <= 0) transactionSet.remove(tid);
+        for (Set<PageId> pages: transactionSet.values()){
+            pages.remove(pid);
         }
 
-        PageCount--;
-        System.out.println("PageCount = " + PageCount);
-        lockManager.releaseDiscardPage(pid);
+        // locks are not released here: a page leaving the pool stays locked
+        // by its transactions until they complete (strict 2PL)
     }
 
     /**
      * Restores a certain page to on-disk state
      * @param pid an ID indicating the page to restore
      */
-    private synchronized void restorePage(PageId pid) throws IOException {
+    private void restorePage(PageId pid) throws IOException {
         // some code goes here
         // (john) Lab2 Flush
-        if (!this.bufferPool_pages.containsKey(pid)) throw new IOException();
-        Page currentPage = this.bufferPool_pages.get(pid);
+        Page currentPage = partitionOf(pid).pages.get(pid);
+        if (currentPage == null) throw new IOException();
         DbFile currentFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
         TransactionId isDirty = currentPage.isDirty();
 
@@ -371,27 +922,44 @@ public class BufferPool {
     /**
      * Flushes a certain page to disk
      * @param pid an ID indicating the page to flush
+     * @return true if the page was dirty and has been written
      */
-    private synchronized void flushPage(PageId pid) throws IOException {
+    private boolean flushPage(PageId pid) throws IOException {
         // some code goes here
         // (john) Lab2 Flush
-        if (!this.bufferPool_pages.containsKey(pid)) throw new IOException();
-        Page currentPage = this.bufferPool_pages.get(pid);
-        DbFile currentFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
-        TransactionId isDirty = currentPage.isDirty();
+        Partition part = partitionOf(pid);
+        part.latch.lock();
+        try {
+            Page currentPage = part.pages.get(pid);
+            if (currentPage == null) throw new IOException();
+            DbFile currentFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
 
-        if (isDirty != null && currentFile != null) {
-            Database.getLogFile().logWrite(isDirty, currentPage.getBeforeImage(), currentPage);
-            Database.getLogFile().force();
-            currentFile.writePage(currentPage);
-            currentPage.markDirty(false, null);
+            // the page latch keeps new changes (and their log records) out
+            // while it is written
+            synchronized (currentPage) {
+                TransactionId isDirty = currentPage.isDirty();
+                // a logged change counts even before its writer marks the page dirty
+                boolean logged = currentPage instanceof TuplePage && ((TuplePage) currentPage).getRecLsn() != 0;
+                if ((isDirty != null || logged) && currentFile != null) {
+                    // write-ahead: the page's last change record must be durable first
+                    if (currentPage instanceof TuplePage) {
+                        Database.getLogFile().force(((TuplePage) currentPage).getLsn());
+                    }
+                    currentFile.writePage(currentPage);
+                    currentPage.markDirty(false, null);
+                    return true;
+                }
+                return false;
+            }
+        } finally {
+            part.latch.unlock();
         }
         //discardPage(pid);
     }
 
     /** Restore all pages of the specified transaction to their on-disk state.
      */
-    public synchronized void restorePages(TransactionId tid) throws IOException {
+    public void restorePages(TransactionId tid) throws IOException {
         if (!transactionSet.containsKey(tid)) return;
         if (transactionSet.get(tid).isEmpty()) return;
         ArrayList<PageId> allPageIntid = new ArrayList<PageId>();
@@ -405,7 +973,7 @@ public class BufferPool {
 
     /** Write all pages of the specified transaction to disk.
      */
-    public synchronized void flushPages(TransactionId tid) throws IOException {
+    public void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
         // Lab 3 Lock
@@ -421,13 +989,13 @@ public class BufferPool {
     }
 
     /**
-     * Discards a page from the buffer pool.
+     * Discards a page from the given partition, whose latch the caller holds.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
      */
-    private synchronized void evictPage() throws DbException {
+    private void evictPage(Partition part) throws DbException {
         // some code goes here
 
-        int size = this.bufferPool_pages.size();
+        int size = part.pages.size();
         if (size <= 0) throw new DbException("No page exist");
 
         // (John - 2) modified policy
@@ -443,16 +1011,34 @@ public class BufferPool {
 //        else throw new DbException("All pages are dirty, cannot evict!");
 
         // Jack modified policy
-        // STEAL policy for lab4
-        Page evictPage = this.pagesList.get(0);
-        if (evictPage != null) {
-            try {
-                flushPage(evictPage.getId());
-            } catch (IOException ex) {
-                System.out.println("failed to flush first page in bufferpool");
-            }
-            discardPage(evictPage.getId());
+        // STEAL policy for lab4; the victim is chosen by the partition's replacement policy
+        PageId victim = part.policy.chooseVictim();
+        if (victim == null) throw new DbException("Replacement policy " + part.policy.getName() + " found no victim");
+        evictPage(part, victim, true);
+    }
+
+    /**
+     * Evicts the given page of a partition whose latch the caller holds,
+     * flushing it first if it is dirty.  Does nothing if the page is not
+     * resident.
+     *
+     * @param byPolicy whether the partition's replacement policy chose the
+     *     page, rather than e.g. a ring recycling its own frame
+     */
+    private void evictPage(Partition part, PageId victim, boolean byPolicy) throws DbException {
+        if (victim == null) return;
+        if (!part.pages.containsKey(victim)) return;
+        try {
+            if (flushPage(victim)) dirtyEvictions.incrementAndGet();
+        } catch (IOException ex) {
+            throw new DbException("failed to flush page " + victim + " before eviction");
         }
+        discardPage(victim, byPolicy);
+    }
+
+    /** @return the lock manager granting this pool's page locks */
+    public LockManager getLockManager() {
+        return this.lockManager;
     }
 
     //Lab 3 Lock: reset Lock Manager
@@ -22,6 +22,7 @@ public class Catalog {
     private final Map<Integer, DbFile> idToDbFile;
     private final Map<Integer, String> idToName;
     private final Map<Integer, String> idToPrimaryKey;
+    private final Map<Integer, LockManager.Granularity> idToLockGranularity;
 
     /**
      * Constructor.
@@ -33,6 +34,7 @@ public class Catalog {
         this.idToDbFile = new ConcurrentHashMap<Integer, DbFile>();
         this.idToName = new ConcurrentHashMap<Integer, String>();
         this.idToPrimaryKey = new ConcurrentHashMap<Integer, String>();
+        this.idToLockGranularity = new ConcurrentHashMap<Integer, LockManager.Granularity>();
     }
 
     /**
@@ -114,6 +116,25 @@ public class Catalog {
         return this.idToPrimaryKey.get(tableid);
     }
 
+    /**
+     * Sets whether the specified table is locked page by page (the default)
+     * or record by record.
+     * @param tableid The id of the table, as specified by the DbFile.getId()
+     *     function passed to addTable
+     */
+    public void setLockGranularity(int tableid, LockManager.Granularity granularity) {
+        this.idToLockGranularity.put(tableid, granularity);
+    }
+
+    /**
+     * @return the unit in which transactions lock the specified table;
+     *     PAGE unless setLockGranularity chose otherwise
+     */
+    public LockManager.Granularity getLockGranularity(int tableid) {
+        LockManager.Granularity granularity = this.idToLockGranularity.get(tableid);
+        return granularity == null ? LockManager.Granularity.PAGE : granularity;
+    }
+
     public Iterator<Integer> tableIdIterator() {
         // some code goes here
         return this.nameToId.values().iterator();
@@ -127,14 +148,35 @@ public class Catalog {
     /** Delete all tables from the catalog */
     public void clear() {
         // some code goes here
+        for (DbFile file : this.idToDbFile.values()) {
+            if (file instanceof HeapFile) {
+                try {
+                    ((HeapFile) file).close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
         this.nameToId.clear();
         this.idToDbFile.clear();
         this.idToName.clear();
         this.idToPrimaryKey.clear();
+        this.idToLockGranularity.clear();
     }
     
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * <p>
+     * Each line has the format name (field type [pk], ...) [option ...],
+     * where the options are key=value words following the field list:
+     * <ul>
+     * <li>lock=page or lock=record: the table's lock granularity</li>
+     * <li>access=channel or access=mmap: how the table's HeapFile reads
+     * its pages, see {@link HeapFile.Access}</li>
+     * <li>format=heap, format=slotted, format=pax or format=compressed: how
+     * the table's HeapFile lays out its pages, see {@link HeapFile.Format};
+     * it must match the format the table's file was written in</li>
+     * </ul>
      * @param catalogFile
      */
     public void loadSchema(String catalogFile) {
@@ -148,6 +190,7 @@ public class Catalog {
                 String name = line.substring(0, line.indexOf("(")).trim();
                 //System.out.println("TABLE NAME: " + name);
                 String fields = line.substring(line.indexOf("(") + 1, line.indexOf(")")).trim();
+                Map<String, String> options = parseTableOptions(line.substring(line.indexOf(")") + 1));
                 String[] els = fields.split(",");
                 ArrayList<String> names = new ArrayList<String>();
                 ArrayList<Type> types = new ArrayList<Type>();
@@ -177,6 +220,7 @@ public class Catalog {
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
                 HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
                 addTable(tabHf,name,primaryKey);
+                applyTableOptions(tabHf.getId(), options);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
         } catch (IOException e) {
@@ -187,5 +231,39 @@ public class Catalog {
             System.exit(0);
         }
     }
+
+    /** Splits the key=value options after a table's field list. */
+    private static Map<String, String> parseTableOptions(String text) {
+        Map<String, String> options = new HashMap<String, String>();
+        for (String option : text.trim().split("\\s+")) {
+            if (option.isEmpty()) continue;
+            int eq = option.indexOf('=');
+            if (eq <= 0 || eq == option.length() - 1) {
+                System.out.println("Unknown table option " + option);
+                System.exit(0);
+            }
+            options.put(option.substring(0, eq).toLowerCase(), option.substring(eq + 1).toLowerCase());
+        }
+        return options;
+    }
+
+    private void applyTableOptions(int tableid, Map<String, String> options) {
+        for (Map.Entry<String, String> option : options.entrySet()) {
+            if (option.getKey().equals("lock") && option.getValue().equals("page")) {
+                setLockGranularity(tableid, LockManager.Granularity.PAGE);
+            } else if (option.getKey().equals("lock") && option.getValue().equals("record")) {
+                setLockGranularity(tableid, LockManager.Granularity.RECORD);
+            } else if (option.getKey().equals("access") && getDatabaseFile(tableid) instanceof HeapFile
+                    && (option.getValue().equals("channel") || option.getValue().equals("mmap"))) {
+                ((HeapFile) getDatabaseFile(tableid)).setAccess(HeapFile.Access.valueOf(option.getValue().toUpperCase()));
+            } else if (option.getKey().equals("format") && getDatabaseFile(tableid) instanceof HeapFile
+                    && HeapFile.Format.named(option.getValue()) != null) {
+                ((HeapFile) getDatabaseFile(tableid)).setFormat(HeapFile.Format.named(option.getValue()));
+            } else {
+                System.out.println("Unknown table option " + option.getKey() + "=" + option.getValue());
+                System.exit(0);
+            }
+        }
+    }
 }
 
@@ -0,0 +1,92 @@
+package simpledb;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * CLOCK (second chance) replacement.  Every resident page owns a frame in a
+ * circular array with a reference bit; a hit only sets the bit, and the
+ * clock hand sweeps forward clearing bits until it finds an unreferenced
+ * frame.  Hits and loads are O(1) and victim selection is amortized O(1).
+ */
+public class ClockPolicy extends AbstractReplacementPolicy {
+
+    private PageId[] frames;
+    private boolean[] referenced;
+    private final Map<PageId, Integer> frameOf;
+    private final ArrayDeque<Integer> freeFrames;
+    private int used = 0;
+    private int hand = 0;
+
+    /**
+     * @param numPages the expected number of resident pages; the frame
+     *                 array grows if more pages are tracked
+     */
+    public ClockPolicy(int numPages) {
+        int capacity = Math.max(numPages, 1);
+        this.frames = new PageId[capacity];
+        this.referenced = new boolean[capacity];
+        this.frameOf = new HashMap<PageId, Integer>();
+        this.freeFrames = new ArrayDeque<Integer>();
+    }
+
+    protected void loaded(PageId pid) {
+        if (frameOf.containsKey(pid)) {
+            accessed(pid);
+            return;
+        }
+        int frame;
+        if (!freeFrames.isEmpty()) {
+            frame = freeFrames.pop();
+        } else {
+            if (used == frames.length) {
+                frames = Arrays.copyOf(frames, frames.length * 2);
+                referenced = Arrays.copyOf(referenced, referenced.length * 2);
+            }
+            frame = used++;
+        }
+        frames[frame] = pid;
+        referenced[frame] = true;
+        frameOf.put(pid, frame);
+    }
+
+    protected void accessed(PageId pid) {
+        Integer frame = frameOf.get(pid);
+        if (frame == null) loaded(pid);
+        else referenced[frame] = true;
+    }
+
+    public void pageRemoved(PageId pid) {
+        Integer frame = frameOf.remove(pid);
+        if (frame == null) return;
+        frames[frame] = null;
+        referenced[frame] = false;
+        freeFrames.push(frame);
+    }
+
+    public PageId chooseVictim() {
+        if (frameOf.isEmpty()) return null;
+        // at most two sweeps: the first may only clear reference bits
+        for (int step = 0; step < 2 * used; step++) {
+            int frame = hand;
+            hand = (hand + 1) % used;
+            if (frames[frame] == null) continue;
+            if (referenced[frame]) {
+                referenced[frame] = false;
+            } else {
+                return frames[frame];
+            }
+        }
+        return null;
+    }
+
+    public int size() {
+        return frameOf.size();
+    }
+
+    public String getName() {
+        return "clock";
+    }
+}
@@ -0,0 +1,647 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * CompressedPage is a page of a HeapFile in the
+ * {@link HeapFile.Format#COMPRESSED} format, which stores each field of the
+ * page's tuples in as few bits as its values need: an int is stored as its
+ * difference from the smallest value of the field on the page (frame of
+ * reference), a string as its number in a dictionary of the field's values
+ * on the page, and both are bit-packed.  A table whose strings take few
+ * values and whose ints span small ranges fits many more tuples on a page
+ * than in the heap format.
+ * <p>
+ * The format is a long pageLSN, an unsigned short number of slots, the slot
+ * bitmap (one bit per slot, as in a HeapPage), and one run per field.  The
+ * run of an int field is the smallest and largest value as ints, followed
+ * by each slot's difference from the smallest in width bits, the number of
+ * bits of the difference between the two.  The run of a string field is an
+ * unsigned short number of dictionary entries, the entries (a byte length
+ * and the string's bytes), and each slot's entry number in width bits, the
+ * number of bits of the largest entry number.  Values are packed most
+ * significant bit first, a run's values take whole bytes, and empty slots
+ * hold 0.  An all-zero page is an empty page.
+ * <p>
+ * The encoding of the page in memory only widens: inserting a tuple may
+ * lower a field's smallest value, raise its largest or add dictionary
+ * entries, but deleting one leaves them as they are, so a deleted tuple can
+ * always be put back into its slot.  Slots are never removed, so a slot keeps
+ * its number.  An {@link #insertTuple(Tuple)}, which holds the whole page,
+ * narrows the encoding to the tuples the page holds when it would not have
+ * room otherwise.
+ * <p>
+ * {@link #iterator(int[], TupleDesc, Predicate[])} tests predicates on the
+ * stored bits: a string predicate is evaluated once per dictionary entry
+ * and an int predicate on the difference, and a page none of whose values
+ * can satisfy a predicate is skipped without looking at its slots.
+ *
+ * @see HeapFile
+ * @see AbstractTuplePage
+ */
+public class CompressedPage extends AbstractTuplePage {
+
+    /** Bytes of the page header: the pageLSN and the number of slots. */
+    static final int HEADER_SIZE = LSN_SIZE + 2;
+
+    /** The most slots a page can have. */
+    static final int MAX_SLOTS = 0xffff;
+
+    private final int pageSize;
+    private int numSlots;
+    private final BitSet used = new BitSet();
+    // the slots whose tuple is in tuples rather than in the image
+    private final BitSet changed = new BitSet();
+    // the tuples created so far; null for empty slots and slots not decoded yet
+    private Tuple tuples[];
+    // the encoding of the image, and the one getPageData writes; the same
+    // until the first change
+    private final Column[] stored;
+    private Column[] current;
+    // whether tuples were deleted since the encoding was last narrowed
+    private boolean stale;
+
+    /**
+     * The encoding of one field of a page: the range of an int field or the
+     * dictionary of a string field.
+     */
+    private static final class Column {
+        final boolean string;
+        // ints: whether the field has a value yet, and its smallest and largest
+        boolean empty = true;
+        int min, max;
+        // strings: the dictionary entries by number, their numbers by value,
+        // and the bytes they take
+        final ArrayList<StringField> dict = new ArrayList<StringField>();
+        final HashMap<String, Integer> codes = new HashMap<String, Integer>();
+        int dictBytes = 0;
+        // in the image: where the run's values start, and their width
+        int values, width;
+
+        Column(Type type) {
+            this.string = type == Type.STRING_TYPE;
+        }
+
+        Column copy() {
+            Column c = new Column(string ? Type.STRING_TYPE : Type.INT_TYPE);
+            c.empty = empty;
+            c.min = min;
+            c.max = max;
+            c.dict.addAll(dict);
+            c.codes.putAll(codes);
+            c.dictBytes = dictBytes;
+            return c;
+        }
+
+        /** @return whether f has a code without widening the encoding */
+        boolean covers(Field f) {
+            if (string) return codes.containsKey(((StringField) f).getValue());
+            int v = ((IntField) f).getValue();
+            return !empty && min <= v && v <= max;
+        }
+
+        /** @return the bits of a value, if f (which may be null) were added */
+        int width(Field f) {
+            if (string) {
+                int entries = dict.size() + (f == null || covers(f) ? 0 : 1);
+                return bits(entries - 1);
+            }
+            if (f == null || covers(f)) return empty ? 0 : bits((long) max - min);
+            int v = ((IntField) f).getValue();
+            return empty ? 0 : bits((long) Math.max(max, v) - Math.min(min, v));
+        }
+
+        /** @return the bytes of the run before its values, if f (which may be null) were added */
+        int headerBytes(Field f) {
+            if (!string) return 8;
+            if (f == null || covers(f)) return 2 + dictBytes;
+            return 2 + dictBytes + 1 + length(((StringField) f).getValue());
+        }
+
+        void add(Field f) {
+            if (string) {
+                String s = ((StringField) f).getValue();
+                if (!codes.containsKey(s)) addEntry((StringField) f);
+                return;
+            }
+            int v = ((IntField) f).getValue();
+            if (empty) {
+                min = max = v;
+                empty = false;
+            } else {
+                min = Math.min(min, v);
+                max = Math.max(max, v);
+            }
+        }
+
+        void addEntry(StringField s) {
+            codes.put(s.getValue(), dict.size());
+            dict.add(s);
+            dictBytes += 1 + length(s.getValue());
+        }
+
+        /** @return the code of f, which the encoding covers */
+        long code(Field f) {
+            if (string) return codes.get(((StringField) f).getValue());
+            return (long) ((IntField) f).getValue() - min;
+        }
+
+        Field decode(long code) {
+            if (string) return dict.get((int) code);
+            return new IntField((int) (min + code));
+        }
+
+        /** Writes the run's header at buf's position. */
+        void writeHeader(ByteBuffer buf) {
+            if (!string) {
+                buf.putInt(empty ? 0 : min);
+                buf.putInt(empty ? 0 : max);
+                return;
+            }
+            buf.putShort((short) dict.size());
+            for (StringField s : dict) {
+                String v = s.getValue();
+                int len = length(v);
+                buf.put((byte) len);
+                for (int k = 0; k < len; k++) {
+                    // like DataOutput.writeBytes, keeps the low byte of each char
+                    buf.put((byte) v.charAt(k));
+                }
+            }
+        }
+    }
+
+    /**
+     * Create a CompressedPage from a set of bytes of data read from disk, in
+     * the format described above.
+     */
+    public CompressedPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, Database.getCatalog().getTupleDesc(id.getTableId()), data);
+    }
+
+    /**
+     * Create a CompressedPage of a table with the given schema, e.g. for a
+     * file that is not in the catalog.  The page keeps data as its image, so
+     * data must not change afterwards.
+     */
+    CompressedPage(HeapPageId id, TupleDesc td, byte[] data) throws IOException {
+        super(id, td, data);
+        this.pageSize = BufferPool.getPageSize();
+        this.stored = new Column[td.numFields()];
+        try {
+            ByteBuffer buf = ByteBuffer.wrap(this.image);
+            this.numSlots = buf.getShort(LSN_SIZE) & 0xffff;
+            int pos = HEADER_SIZE;
+            for (int i = 0; i < numSlots; i++) {
+                if ((this.image[pos + i / 8] >> (i % 8) & 1) == 1) used.set(i);
+            }
+            pos += (numSlots + 7) / 8;
+            for (int j = 0; j < td.numFields(); j++) {
+                Column c = new Column(td.getFieldType(j));
+                if (c.string) {
+                    int entries = buf.getShort(pos) & 0xffff;
+                    pos += 2;
+                    for (int k = 0; k < entries; k++) {
+                        int len = this.image[pos] & 0xff;
+                        if (len > Type.STRING_LEN || pos + 1 + len > pageSize) {
+                            throw new IOException("bad dictionary of field " + j + " on " + id);
+                        }
+                        c.addEntry(new StringField(new String(this.image, pos + 1, len), Type.STRING_LEN));
+                        pos += 1 + len;
+                    }
+                } else {
+                    c.min = buf.getInt(pos);
+                    c.max = buf.getInt(pos + 4);
+                    c.empty = numSlots == 0;
+                    pos += 8;
+                }
+                c.values = pos;
+                c.width = c.width(null);
+                pos += runBytes(numSlots, c.width);
+                if (pos > pageSize) throw new IOException("bad field " + j + " on " + id);
+                stored[j] = c;
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("bad compressed page " + id);
+        }
+        this.tuples = new Tuple[numSlots];
+        this.stale = used.cardinality() < numSlots;
+    }
+
+    protected TuplePage pageOf(byte[] data) throws IOException {
+        return new CompressedPage(pid, td, data);
+    }
+
+    /** @return the bits of an unsigned value, 0 for 0 */
+    static int bits(long value) {
+        return value <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(value);
+    }
+
+    /** @return the bytes of the length of a dictionary entry and its bytes */
+    private static int length(String s) {
+        return Math.min(Type.STRING_LEN, s.length());
+    }
+
+    /** @return the bytes of a run of slots values of width bits */
+    private static int runBytes(int slots, int width) {
+        return (int) (((long) slots * width + 7) / 8);
+    }
+
+    /** @return the value of width bits at the given bit of the run starting at start */
+    static long unpack(byte[] b, int start, long bit, int width) {
+        if (width == 0) return 0;
+        int at = start + (int) (bit >>> 3);
+        int need = (int) (bit & 7) + width;
+        int n = (need + 7) >>> 3;
+        long v = 0;
+        for (int k = 0; k < n; k++) {
+            v = (v << 8) | (b[at + k] & 0xff);
+        }
+        return (v >>> (n * 8 - need)) & ((1L << width) - 1);
+    }
+
+    /** Stores a value of width bits at the given bit of the run starting at start, which is 0. */
+    static void pack(byte[] b, int start, long bit, int width, long value) {
+        if (width == 0) return;
+        int at = start + (int) (bit >>> 3);
+        int need = (int) (bit & 7) + width;
+        int n = (need + 7) >>> 3;
+        long v = value << (n * 8 - need);
+        for (int k = n - 1; k >= 0; k--) {
+            b[at + k] |= (byte) v;
+            v >>>= 8;
+        }
+    }
+
+    /** @return the encoding getPageData writes, for reading */
+    private Column[] encoding() {
+        return this.current != null ? this.current : this.stored;
+    }
+
+    /** @return the encoding getPageData writes, for changing */
+    private Column[] current() {
+        if (this.current == null) {
+            this.current = new Column[stored.length];
+            for (int j = 0; j < stored.length; j++) {
+                this.current[j] = stored[j].copy();
+            }
+        }
+        return this.current;
+    }
+
+    /**
+     * @return the bytes of the page in the given encoding with the given
+     *     number of slots, if the fields of t (which may be null) were added
+     */
+    private int size(Column[] cols, int slots, Tuple t) {
+        int size = HEADER_SIZE + (slots + 7) / 8;
+        for (int j = 0; j < cols.length; j++) {
+            Field f = t == null ? null : t.getField(j);
+            size += cols[j].headerBytes(f) + runBytes(slots, cols[j].width(f));
+        }
+        return size;
+    }
+
+    /** @return the encoding of just the tuples the page holds */
+    private Column[] liveColumns() {
+        Column[] cols = new Column[td.numFields()];
+        for (int j = 0; j < cols.length; j++) {
+            cols[j] = new Column(td.getFieldType(j));
+        }
+        for (int i = used.nextSetBit(0); i >= 0; i = used.nextSetBit(i + 1)) {
+            Tuple t = getTuple(i);
+            for (int j = 0; j < cols.length; j++) {
+                cols[j].add(t.getField(j));
+            }
+        }
+        return cols;
+    }
+
+    /** Narrow the encoding to the tuples the page holds, which then all come from tuples. */
+    private void reclaim() {
+        Column[] cols = liveColumns();
+        for (int i = used.nextSetBit(0); i >= 0; i = used.nextSetBit(i + 1)) {
+            changed.set(i);
+        }
+        this.current = cols;
+        this.stale = false;
+    }
+
+    /**
+     * Generates a byte array representing the contents of this page in the
+     * encoding it has in memory.  Passing it to the CompressedPage
+     * constructor produces an identical page.
+     */
+    public synchronized byte[] getPageData() {
+        byte[] data = new byte[pageSize];
+        if (this.current == null) {
+            // unchanged since it was read
+            System.arraycopy(this.image, 0, data, 0, pageSize);
+            ByteBuffer.wrap(data).putLong(0, getLsn());
+            return data;
+        }
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        buf.putLong(getLsn());
+        buf.putShort((short) numSlots);
+        for (int i = used.nextSetBit(0); i >= 0; i = used.nextSetBit(i + 1)) {
+            data[HEADER_SIZE + i / 8] |= (byte) (1 << (i % 8));
+        }
+        buf.position(HEADER_SIZE + (numSlots + 7) / 8);
+        for (int j = 0; j < current.length; j++) {
+            Column c = current[j];
+            c.writeHeader(buf);
+            int start = buf.position();
+            int width = c.width(null);
+            for (int i = used.nextSetBit(0); i >= 0; i = used.nextSetBit(i + 1)) {
+                pack(data, start, (long) i * width, width, c.code(getTuple(i).getField(j)));
+            }
+            buf.position(start + runBytes(numSlots, width));
+        }
+        return data;
+    }
+
+    /**
+     * Returns about how many more tuples like the ones the page holds fit:
+     * tuples whose values the encoding already covers, keeping room for a
+     * new dictionary entry of each string field.  Inserts check the exact
+     * room with {@link #hasRoomFor(Tuple)}.
+     */
+    public synchronized int getNumEmptySlots() {
+        Column[] cols = encoding();
+        int reserve = 0;
+        int slotBits = 1;
+        for (Column c : cols) {
+            if (c.string) reserve += 1 + Type.STRING_LEN + (numSlots + 7) / 8;
+            slotBits += c.width(null);
+        }
+        // the bitmap and each run may take one more byte when rounded up
+        int free = pageSize - reserve - size(cols, numSlots, null) - cols.length - 1;
+        if (free < 0) return 0;
+        int more = (int) Math.min(MAX_SLOTS - numSlots, (long) free * 8 / slotBits);
+        return numSlots - used.cardinality() + more;
+    }
+
+    public synchronized int getNumSlots() {
+        return numSlots;
+    }
+
+    public synchronized boolean isSlotUsed(int i) {
+        return i >= 0 && i < numSlots && used.get(i);
+    }
+
+    /**
+     * @return the first empty slot at or after from, or -1 if there is none;
+     *     past the last slot, only the next new one counts as empty
+     */
+    public synchronized int nextFreeSlot(int from) {
+        int i = used.nextClearBit(Math.max(from, 0));
+        if (i < numSlots) return i;
+        return i == numSlots && numSlots < MAX_SLOTS ? i : -1;
+    }
+
+    public synchronized int nextUsedSlot(int from) {
+        return used.nextSetBit(Math.max(from, 0));
+    }
+
+    /** @return true if t fits into the given empty slot without narrowing the encoding */
+    private boolean fits(Tuple t, int slot) {
+        return size(encoding(), Math.max(numSlots, slot + 1), t) <= pageSize;
+    }
+
+    public synchronized boolean hasRoomFor(Tuple t) {
+        int slot = used.nextClearBit(0);
+        if (slot >= MAX_SLOTS) return false;
+        if (fits(t, slot)) return true;
+        // the insert narrows the encoding if that makes room
+        return this.stale && size(liveColumns(), Math.max(numSlots, slot + 1), t) <= pageSize;
+    }
+
+    public synchronized boolean hasRoomFor(Tuple t, int slot) {
+        if (slot < 0 || slot >= MAX_SLOTS || isSlotUsed(slot)) return false;
+        return fits(t, slot);
+    }
+
+    /** Put t into an empty slot, which has room for it. */
+    private void place(Tuple t, int slot) {
+        if (slot >= numSlots) {
+            numSlots = slot + 1;
+            if (numSlots > tuples.length) {
+                tuples = Arrays.copyOf(tuples, Math.max(numSlots, 2 * tuples.length));
+            }
+        }
+        Column[] cols = current();
+        for (int j = 0; j < cols.length; j++) {
+            cols[j].add(t.getField(j));
+        }
+        used.set(slot);
+        changed.set(slot);
+        this.tuples[slot] = t;
+        t.setRecordId(new RecordId(this.pid, slot));
+    }
+
+    /** Empty a used slot; its values stay in the encoding. */
+    private void empty(int slot) {
+        current();
+        used.clear(slot);
+        changed.clear(slot);
+        this.tuples[slot] = null;
+        this.stale = true;
+    }
+
+    public synchronized void deleteTuple(Tuple t) throws DbException {
+        RecordId rid = t.getRecordId();
+        if (rid == null) throw new DbException("tuple not valid");
+        int slot = rid.getTupleNumber();
+        if (!isSlotUsed(slot)) throw new DbException("this tuple slot is empty");
+        else if (!rid.getPageId().equals(this.pid)) throw new DbException("the tuple is not on this page");
+        beforeChange();
+        empty(slot);
+        t.setRecordId(null);
+    }
+
+    public synchronized void insertTuple(Tuple t) throws DbException {
+        if (!t.getTupleDesc().equals(this.td) || !hasRoomFor(t))
+            throw new DbException("Cannot insert");
+        beforeChange();
+        int slot = used.nextClearBit(0);
+        // the caller holds the page, so no delete that could still be undone
+        // is someone else's
+        if (!fits(t, slot)) reclaim();
+        place(t, slot);
+    }
+
+    public synchronized void insertTuple(Tuple t, int slot) throws DbException {
+        if (!t.getTupleDesc().equals(this.td) || !hasRoomFor(t, slot))
+            throw new DbException("Cannot insert into slot " + slot);
+        beforeChange();
+        place(t, slot);
+    }
+
+    public synchronized Tuple getTuple(int slot) {
+        if (!isSlotUsed(slot)) return null;
+        Tuple t = this.tuples[slot];
+        if (t == null) {
+            t = new Tuple(td);
+            for (int j = 0; j < stored.length; j++) {
+                t.setField(j, decode(j, slot));
+            }
+            t.setRecordId(new RecordId(pid, slot));
+            this.tuples[slot] = t;
+        }
+        return t;
+    }
+
+    /** @return field j of a slot whose tuple is in the image */
+    private Field decode(int j, int slot) {
+        Column c = stored[j];
+        return c.decode(unpack(this.image, c.values, (long) slot * c.width, c.width));
+    }
+
+    public synchronized byte[] getTupleData(int slot) {
+        Tuple t = getTuple(slot);
+        return t == null ? null : HeapPage.serializeTuple(t);
+    }
+
+    public synchronized void putTupleData(int slot, byte[] data) throws DbException {
+        if (slot < 0 || slot >= MAX_SLOTS) throw new DbException("no slot " + slot + " on " + pid);
+        Tuple t = new Tuple(td);
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        try {
+            for (int j=0; j<td.numFields(); j++) {
+                t.setField(j, td.getFieldType(j).parse(dis));
+            }
+        } catch (java.text.ParseException e) {
+            throw new DbException("can't parse logged tuple for slot " + slot + " on " + pid);
+        }
+        beforeChange();
+        if (isSlotUsed(slot)) empty(slot);
+        if (!fits(t, slot)) {
+            // the log only replays what fit once, so the values of other
+            // deleted tuples need not stay encoded
+            reclaim();
+            if (!fits(t, slot)) {
+                throw new DbException("no room for logged tuple in slot " + slot + " on " + pid);
+            }
+        }
+        place(t, slot);
+    }
+
+    public synchronized void clearSlot(int slot) throws DbException {
+        if (slot < 0 || slot >= MAX_SLOTS) throw new DbException("no slot " + slot + " on " + pid);
+        beforeChange();
+        current();
+        if (slot >= numSlots) {
+            numSlots = slot + 1;
+            if (numSlots > tuples.length) tuples = Arrays.copyOf(tuples, numSlots);
+        }
+        if (this.tuples[slot] != null) this.tuples[slot].setRecordId(null);
+        if (used.get(slot)) empty(slot);
+    }
+
+    public Iterator<Tuple> iterator(int[] columns, TupleDesc projected) {
+        return iterator(columns, projected, new Predicate[0]);
+    }
+
+    /**
+     * Tests the predicates on the stored codes and decodes only the kept
+     * fields of the tuples that satisfy them, into new tuples.  The tuples
+     * are those of the page when the iterator is created.
+     */
+    @Override
+    public Iterator<Tuple> iterator(int[] columns, TupleDesc projected, Predicate[] filters) {
+        List<Tuple> out = new ArrayList<Tuple>();
+        synchronized (this) {
+            Column[] cols = encoding();
+            // per filter, the dictionary entries of a string field that satisfy it
+            boolean[][] matches = new boolean[filters.length][];
+            for (int f = 0; f < filters.length; f++) {
+                Predicate p = filters[f];
+                int j = p.getField();
+                if (!mayMatch(cols[j], p)) return Collections.<Tuple>emptyList().iterator();
+                if (stored[j].string) {
+                    matches[f] = new boolean[stored[j].dict.size()];
+                    for (int k = 0; k < matches[f].length; k++) {
+                        matches[f][k] = stored[j].dict.get(k).compare(p.getOp(), p.getOperand());
+                    }
+                }
+            }
+            for (int i = used.nextSetBit(0); i >= 0; i = used.nextSetBit(i + 1)) {
+                boolean fromImage = !changed.get(i);
+                boolean pass = true;
+                for (int f = 0; pass && f < filters.length; f++) {
+                    Predicate p = filters[f];
+                    if (!fromImage) {
+                        pass = p.filter(this.tuples[i]);
+                        continue;
+                    }
+                    Column c = stored[p.getField()];
+                    long code = unpack(this.image, c.values, (long) i * c.width, c.width);
+                    pass = c.string ? matches[f][(int) code]
+                            : compare(p.getOp(), c.min + code, ((IntField) p.getOperand()).getValue());
+                }
+                if (!pass) continue;
+                if (columns == null) {
+                    out.add(getTuple(i));
+                    continue;
+                }
+                Tuple t = new Tuple(projected);
+                for (int k = 0; k < columns.length; k++) {
+                    t.setField(k, fromImage ? decode(columns[k], i) : this.tuples[i].getField(columns[k]));
+                }
+                t.setRecordId(new RecordId(pid, i));
+                out.add(t);
+            }
+        }
+        return Collections.unmodifiableList(out).iterator();
+    }
+
+    /** @return false if no value of the encoding can satisfy p */
+    private static boolean mayMatch(Column c, Predicate p) {
+        if (c.string) {
+            for (StringField s : c.dict) {
+                if (s.compare(p.getOp(), p.getOperand())) return true;
+            }
+            return false;
+        }
+        if (c.empty) return false;
+        long v = ((IntField) p.getOperand()).getValue();
+        switch (p.getOp()) {
+        case EQUALS:
+        case LIKE:
+            return c.min <= v && v <= c.max;
+        case NOT_EQUALS:
+            return c.min != c.max || c.min != v;
+        case LESS_THAN:
+            return c.min < v;
+        case LESS_THAN_OR_EQ:
+            return c.min <= v;
+        case GREATER_THAN:
+            return c.max > v;
+        case GREATER_THAN_OR_EQ:
+            return c.max >= v;
+        }
+        return true;
+    }
+
+    /** @return value op operand, as IntField.compare compares ints */
+    private static boolean compare(Predicate.Op op, long value, long operand) {
+        switch (op) {
+        case EQUALS:
+        case LIKE:
+            return value == operand;
+        case NOT_EQUALS:
+            return value != operand;
+        case GREATER_THAN:
+            return value > operand;
+        case GREATER_THAN_OR_EQ:
+            return value >= operand;
+        case LESS_THAN:
+            return value < operand;
+        case LESS_THAN_OR_EQ:
+            return value <= operand;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,79 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Measures a filtered SUM over a table stored in each HeapFile format,
+ * with the predicates in Filters over the SeqScan and pushed into the
+ * scan.  The table has a low-cardinality string and small ints, so
+ * compressed pages are few and their predicates are mostly tested on
+ * encoded values; a page whose dictionary or range cannot match is skipped.
+ * The pool holds the whole table, so after the first round no page is
+ * read from disk.
+ * <p>
+ * Usage: java simpledb.FilterPushdownBench [rows [rounds [poolPages]]]
+ */
+public class FilterPushdownBench {
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int poolPages = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+
+        File dir = new File(System.getProperty("java.io.tmpdir"), "simpledb-filter-bench");
+        dir.mkdirs();
+        File txt = new File(dir, "t.txt");
+        PrintWriter w = new PrintWriter(new BufferedWriter(new FileWriter(txt)));
+        for (int i = 0; i < rows; i++) {
+            w.println(i + "," + (i % 100) + ",city" + (i / 1000 % 11) + "," + (i * 3 % 1000 - 500));
+        }
+        w.close();
+        Type[] types = {Type.INT_TYPE, Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE};
+        TupleDesc td = new TupleDesc(types, new String[]{"id", "c", "s", "d"});
+
+        Database.resetBufferPool(poolPages);
+        List<HeapFile> tables = new ArrayList<HeapFile>();
+        for (HeapFile.Format format : HeapFile.Format.values()) {
+            File f = new File(dir, format.name().toLowerCase() + ".dat");
+            HeapFileEncoder.convert(txt, f, BufferPool.getPageSize(), types.length, types, ',', format);
+            HeapFile table = new HeapFile(f, td);
+            table.setFormat(format);
+            Database.getCatalog().addTable(table, format.name().toLowerCase());
+            tables.add(table);
+        }
+
+        // WHERE s = 'city3' AND c < 20
+        Predicate onS = new Predicate(2, Predicate.Op.EQUALS, new StringField("city3", Type.STRING_LEN));
+        Predicate onC = new Predicate(1, Predicate.Op.LESS_THAN, new IntField(20));
+        for (int round = 0; round < rounds; round++) {
+            for (HeapFile table : tables) {
+                long[] ms = new long[2];
+                Field sum = null;
+                for (int pushed = 0; pushed < 2; pushed++) {
+                    Transaction t = new Transaction();
+                    t.start();
+                    long t0 = System.nanoTime();
+                    SeqScan scan = new SeqScan(t.getId(), table.getId());
+                    OpIterator filtered;
+                    if (pushed == 1) {
+                        scan.addFilter(onS);
+                        scan.addFilter(onC);
+                        filtered = scan;
+                    } else {
+                        filtered = new Filter(onC, new Filter(onS, scan));
+                    }
+                    Aggregate agg = new Aggregate(filtered, 3, Aggregator.NO_GROUPING, Aggregator.Op.SUM);
+                    agg.open();
+                    sum = agg.next().getField(0);
+                    agg.close();
+                    ms[pushed] = (System.nanoTime() - t0) / 1000000;
+                    t.commit();
+                }
+                System.out.printf("%-10s pages=%d sum=%s Filter over SeqScan %d ms, pushed into SeqScan %d ms%n",
+                        table.getFormat(), table.numPages(), sum, ms[0], ms[1]);
+            }
+        }
+        Database.getLogFile().shutdown();
+    }
+}
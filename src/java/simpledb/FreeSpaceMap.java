@@ -0,0 +1,116 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * FreeSpaceMap records how many free slots each page of a HeapFile has,
+ * so inserts can go straight to a page with room instead of visiting
+ * every page from the first.  It is kept in memory and saved to a file
+ * next to the heap file (its name plus ".fsm"), one int per page.
+ * <p>
+ * The map is only a hint.  Inserts check the page they are sent to and
+ * correct the map when it was wrong, and pages the map knows nothing
+ * about (a missing or short .fsm file, e.g. after a crash or for a file
+ * written by HeapFileEncoder) count as possibly free until they have been
+ * visited once.  Changes since the map was last saved are lost in a
+ * crash, which only costs some free slots until the page is changed
+ * again.
+ * <p>
+ * The map's monitor is taken under page latches and takes no other lock.
+ *
+ * @Threadsafe
+ */
+class FreeSpaceMap {
+
+    /** Free slot count of a page the map knows nothing about. */
+    private static final int UNKNOWN = -1;
+
+    private final File file;
+    // free slots by page number, or UNKNOWN; protected by this
+    private int[] free = new int[0];
+    private int numPages = 0;
+    // the pages that may have room; protected by this
+    private final BitSet hasRoom = new BitSet();
+    private boolean dirty = false;
+
+    /**
+     * Loads the map saved next to a heap file, if any.
+     *
+     * @param heapFile the file backing the HeapFile
+     * @param numPages the number of pages in it now
+     */
+    FreeSpaceMap(File heapFile, int numPages) {
+        this.file = new File(heapFile.getPath() + ".fsm");
+        int saved = 0;
+        if (file.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                saved = (int) Math.min(numPages, file.length() / 4);
+                grow(saved);
+                for (int i = 0; i < saved; i++) {
+                    set(i, in.readInt());
+                }
+            } catch (IOException e) {
+                // a damaged map is rebuilt as pages are visited
+                saved = 0;
+            }
+        }
+        grow(numPages);
+        for (int i = saved; i < numPages; i++) {
+            set(i, UNKNOWN);
+        }
+        this.dirty = false;
+    }
+
+    private void grow(int pages) {
+        if (pages > free.length) {
+            free = Arrays.copyOf(free, Math.max(pages, 2 * free.length));
+        }
+        numPages = Math.max(numPages, pages);
+    }
+
+    private void set(int pageNo, int slots) {
+        free[pageNo] = slots;
+        hasRoom.set(pageNo, slots != 0);
+        dirty = true;
+    }
+
+    /**
+     * Records the number of free slots of a page, e.g. after an insert or
+     * delete, or for a page just appended.
+     */
+    synchronized void update(int pageNo, int freeSlots) {
+        grow(pageNo + 1);
+        if (free[pageNo] != freeSlots) set(pageNo, freeSlots);
+    }
+
+    /**
+     * @return the first page at or after from that may have a free slot,
+     *         or -1 if there is none
+     */
+    synchronized int pageWithRoom(int from) {
+        int pageNo = hasRoom.nextSetBit(from);
+        return pageNo < numPages ? pageNo : -1;
+    }
+
+    /** @return the free slots of a page as last recorded, or -1 if unknown */
+    synchronized int getFreeSlots(int pageNo) {
+        return pageNo < numPages ? free[pageNo] : UNKNOWN;
+    }
+
+    /** Saves the map next to the heap file if it changed since it was loaded or saved. */
+    synchronized void save() throws IOException {
+        if (!dirty) return;
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            for (int i = 0; i < numPages; i++) {
+                out.writeInt(free[i]);
+            }
+        }
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file)) throw new IOException("can't save free space map " + file);
+        }
+        dirty = false;
+    }
+}
@@ -1,6 +1,10 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.util.*;
 
 /**
@@ -9,6 +13,24 @@ import java.util.*;
  * size, and the file is simply a collection of those pages. HeapFile works
  * closely with HeapPage. The format of HeapPages is described in the HeapPage
  * constructor.
+ * <p>
+ * A file's pages can also be in another {@link Format}, set per table; all
+ * pages of a file have the same format, and it must be the one the file
+ * was written in.
+ * <p>
+ * Pages are read and written with positional I/O on one FileChannel that
+ * stays open for the life of the HeapFile (see {@link #close()}), so a
+ * page access costs a single read or write call.
+ * <p>
+ * In {@link Access#MMAP} mode, meant for read-mostly tables, pages are
+ * decoded straight from a read-only mapping of the file instead of being
+ * read into a buffer.  The mapping covers the file as it was when it was
+ * made and is made again when a page past its end is read, e.g. after the
+ * file grew.  Pages are still written through the channel; the mapping
+ * shares the operating system's page cache, so it sees those writes.
+ * <p>
+ * Inserts find a page with room through a {@link FreeSpaceMap}, saved next
+ * to the file when it is closed, instead of trying every page in turn.
  *
  * @see simpledb.HeapPage#HeapPage
  * @author Sam Madden
@@ -17,6 +39,62 @@ public class HeapFile implements DbFile {
 
     private File heapFile;
     private TupleDesc td;
+    // opened on first use; changed under this
+    private volatile FileChannel channel;
+
+    /** How a HeapFile reads its pages. */
+    public enum Access {
+        /** positional reads from the file channel */
+        CHANNEL,
+        /** decoding from a read-only memory mapping of the file */
+        MMAP
+    }
+
+    /** How a HeapFile lays out the tuples of a page. */
+    public enum Format {
+        /** fixed-length slots and a slot bitmap; see {@link HeapPage} */
+        HEAP {
+            TuplePage page(HeapPageId id, TupleDesc td, byte[] data) throws IOException {
+                return new HeapPage(id, td, data);
+            }
+        },
+        /** a slot directory and variable-length records; see {@link SlottedPage} */
+        SLOTTED {
+            TuplePage page(HeapPageId id, TupleDesc td, byte[] data) throws IOException {
+                return new SlottedPage(id, td, data);
+            }
+        },
+        /** HeapPage slots with the values of each field stored together; see {@link PaxPage} */
+        PAX {
+            TuplePage page(HeapPageId id, TupleDesc td, byte[] data) throws IOException {
+                return new PaxPage(id, td, data);
+            }
+        },
+        /** dictionary-encoded strings and bit-packed ints; see {@link CompressedPage} */
+        COMPRESSED {
+            TuplePage page(HeapPageId id, TupleDesc td, byte[] data) throws IOException {
+                return new CompressedPage(id, td, data);
+            }
+        };
+
+        /** @return a page of this format read from data */
+        abstract TuplePage page(HeapPageId id, TupleDesc td, byte[] data) throws IOException;
+
+        /** @return the format with the given name, in any case, or null if there is none */
+        public static Format named(String name) {
+            for (Format format : values()) {
+                if (format.name().equalsIgnoreCase(name)) return format;
+            }
+            return null;
+        }
+    }
+
+    private volatile Access access = Access.CHANNEL;
+    private volatile Format format = Format.HEAP;
+    // read-only mapping of the whole file in MMAP mode, or null; changed under this
+    private volatile MappedByteBuffer mapped;
+    // loaded on first use; changed under this
+    private volatile FreeSpaceMap freeSpace;
 
     /**
      * Constructs a heap file backed by the specified file.
@@ -66,22 +144,98 @@ public class HeapFile implements DbFile {
         return this.td;
     }
 
+    /**
+     * Returns the open channel of the backing file, opening it if needed.
+     * A channel closed by an interrupted thread is opened again.
+     */
+    private FileChannel channel() throws IOException {
+        FileChannel ch = this.channel;
+        if (ch != null && ch.isOpen()) return ch;
+        synchronized (this) {
+            if (this.channel == null || !this.channel.isOpen()) {
+                this.channel = new RandomAccessFile(this.heapFile, "rw").getChannel();
+            }
+            return this.channel;
+        }
+    }
+
+    /**
+     * Saves the free space map and closes the channel of the backing file.
+     * The file is opened again if it is used afterwards.
+     */
+    public synchronized void close() throws IOException {
+        if (this.freeSpace != null) this.freeSpace.save();
+        this.mapped = null;
+        if (this.channel != null) {
+            this.channel.close();
+            this.channel = null;
+        }
+    }
+
+    /** Sets how this file reads its pages; see {@link Access}. */
+    public synchronized void setAccess(Access access) {
+        this.access = access;
+        if (access != Access.MMAP) this.mapped = null;
+    }
+
+    /** @return how this file reads its pages */
+    public Access getAccess() {
+        return this.access;
+    }
+
+    /** Sets the format of this file's pages; see {@link Format}. */
+    public void setFormat(Format format) {
+        this.format = format;
+    }
+
+    /** @return the format of this file's pages */
+    public Format getFormat() {
+        return this.format;
+    }
+
+    /**
+     * Returns a mapping that covers the given file offset, mapping the file
+     * again if it grew past the current mapping.
+     *
+     * @return the mapping, or null if the file does not reach the offset or
+     *         is too large to map at once
+     */
+    private MappedByteBuffer mapping(long end) throws IOException {
+        MappedByteBuffer map = this.mapped;
+        if (map != null && end <= map.capacity()) return map;
+        synchronized (this) {
+            if (this.mapped == null || end > this.mapped.capacity()) {
+                long size = channel().size();
+                if (end > size || size > Integer.MAX_VALUE) return null;
+                this.mapped = channel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            return this.mapped;
+        }
+    }
+
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) throws IllegalArgumentException {
-        RandomAccessFile reader = null;
-        byte[] buffer = new byte[BufferPool.getPageSize()]; // all 0
+        long from = (long) pid.getPageNumber() * BufferPool.getPageSize();
+        HeapPageId hpid = new HeapPageId(pid.getTableId(), pid.getPageNumber());
 
         try {
-            int from = pid.getPageNumber() * BufferPool.getPageSize();
-
-            reader = new RandomAccessFile(this.heapFile, "r");
-            if (from < reader.length()) {
-                reader.seek(from);
-                reader.read(buffer);
-                reader.close();
+            if (this.access == Access.MMAP) {
+                MappedByteBuffer map = mapping(from + BufferPool.getPageSize());
+                if (map != null) {
+                    // copied once, in bulk, since a mapped page changes when it is written back
+                    ByteBuffer page = map.duplicate();
+                    page.position((int) from);
+                    byte[] data = new byte[BufferPool.getPageSize()];
+                    page.get(data);
+                    return this.format.page(hpid, this.td, data);
+                }
+                // pages past the end (or in a huge file) are read as usual
             }
-            // If the page to read exceeds file length, allocate a new empty page.
-            return new HeapPage(new HeapPageId(pid.getTableId(), pid.getPageNumber()), buffer);
+            // the page keeps the array as its image, so each read gets a new one
+            ByteBuffer buffer = ByteBuffer.allocate(BufferPool.getPageSize());
+            // If the page to read exceeds file length, the rest stays 0: a new empty page.
+            transfer(buffer, from, false);
+            return this.format.page(hpid, this.td, buffer.array());
         } catch (IOException e) {
             throw new IllegalArgumentException();
         }
@@ -94,11 +248,32 @@ public class HeapFile implements DbFile {
         int pgNo = page.getId().getPageNumber();
         long offset = (long) BufferPool.getPageSize()*pgNo;
 
-        RandomAccessFile newFile = new RandomAccessFile(this.heapFile, "rw");
-        newFile.seek(offset);
-        newFile.write(page.getPageData());
-        newFile.close();
-        return;
+        transfer(ByteBuffer.wrap(page.getPageData()), offset, true);
+    }
+
+    /**
+     * Writes all of buffer at the given file offset, or reads into it until
+     * it is full or the file ends.
+     */
+    private void transfer(ByteBuffer buffer, long offset, boolean write) throws IOException {
+        try {
+            transfer(channel(), buffer, offset, write);
+        } catch (ClosedChannelException e) {
+            // closed by close() or by an interrupt of another thread; open it again
+            buffer.rewind();
+            transfer(channel(), buffer, offset, write);
+        }
+    }
+
+    private static void transfer(FileChannel ch, ByteBuffer buffer, long offset, boolean write)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            if (write) {
+                ch.write(buffer, offset + buffer.position());
+            } else if (ch.read(buffer, offset + buffer.position()) < 0) {
+                break;
+            }
+        }
     }
 
     /**
@@ -109,31 +284,100 @@ public class HeapFile implements DbFile {
         return (int) Math.ceil(this.heapFile.length()*1.0 / BufferPool.getPageSize());
     }
 
+    /** @return the free space map of this file, loading it if needed */
+    private FreeSpaceMap freeSpace() {
+        FreeSpaceMap map = this.freeSpace;
+        if (map != null) return map;
+        synchronized (this) {
+            if (this.freeSpace == null) this.freeSpace = new FreeSpaceMap(this.heapFile, numPages());
+            return this.freeSpace;
+        }
+    }
+
+    /**
+     * Records the number of free slots of a page in the free space map.
+     * Called under the page's latch after its slots changed, also by
+     * LogFile when it redoes or rolls back a change.
+     */
+    void noteFreeSlots(TuplePage page) {
+        freeSpace().update(page.getId().getPageNumber(), page.getNumEmptySlots());
+    }
+
     // see DbFile.java for javadocs
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // Lab2 added
         ArrayList<Page> modified = new ArrayList<>();
-        for (int i = 0; i < numPages(); i++) {
+        boolean recordLocked = Database.getBufferPool().isRecordLocked(getId());
+        FreeSpaceMap map = freeSpace();
+        for (int from = 0; ; ) {
+            int i = map.pageWithRoom(from);
+            if (i < 0) {
+                // one appender at a time, or two could claim the same page number;
+                // the new page is written empty, so its insert is logged like any other
+                synchronized (this) {
+                    i = map.pageWithRoom(from);
+                    if (i < 0) {
+                        i = numPages();
+                        TuplePage empty = this.format.page(new HeapPageId(getId(), i), this.td,
+                                HeapPage.createEmptyPageData());
+                        writePage(empty);
+                        noteFreeSlots(empty);
+                    }
+                }
+            }
             PageId pid = new HeapPageId(getId(), i);
-            HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
-            if (page.getNumEmptySlots() > 0) {
+            TuplePage page = (TuplePage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+            if (recordLocked) {
+                if (insertIntoUnlockedSlot(tid, page, t)) {
+                    modified.add(page);
+                    break;
+                }
+            } else {
 //                page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
-                page.insertTuple(t);
-                modified.add(page);
-                break;
+                synchronized (page) {
+                    if (page.hasRoomFor(t)) {
+                        page.insertTuple(t);
+                        changed(tid, page, t.getRecordId(), null);
+                        modified.add(page);
+                        break;
+                    }
+                }
             }
-        }
-        if (modified.isEmpty()) {
-            HeapPage page = new HeapPage(new HeapPageId(getId(), numPages()), HeapPage.createEmptyPageData());
-            page.insertTuple(t);
-            writePage(page);
-            modified.add(page);
+            // the map was wrong, t is too long for the room left, or every
+            // free slot is locked by a deleter
+            synchronized (page) {
+                noteFreeSlots(page);
+            }
+            from = i + 1;
         }
         return modified;
     }
 
+    /**
+     * Inserts t into the first free slot of a shared page that tid can lock
+     * exclusively without waiting.  Slots emptied by deletes that have not
+     * committed yet stay locked by the deleter, so they are skipped and the
+     * deleter can still put the tuple back if it aborts.
+     *
+     * @return true if t was inserted
+     */
+    private boolean insertIntoUnlockedSlot(TransactionId tid, TuplePage page, Tuple t)
+            throws DbException, IOException {
+        synchronized (page) {
+            for (int i = page.nextFreeSlot(0); i >= 0; i = page.nextFreeSlot(i + 1)) {
+                if (!page.hasRoomFor(t, i)) continue;
+                if (Database.getBufferPool().tryLockRecord(tid, new RecordId(page.getId(), i), Permissions.READ_WRITE)) {
+                    page.insertTuple(t, i);
+                    changed(tid, page, t.getRecordId(), null);
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     // see DbFile.java for javadocs
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
@@ -145,25 +389,117 @@ public class HeapFile implements DbFile {
         //PageId pid = new HeapPageId(getId(), t.getRecordId().getTupleNumber());
         PageId pid = t.getRecordId().getPageId();
 
-        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+        TuplePage page = (TuplePage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
         // will there be multiple pages that has the same tuple?
         try {
-            page.deleteTuple(t);
+            int slot = t.getRecordId().getTupleNumber();
+            synchronized (page) {
+                Tuple current = page.getTuple(slot);
+                page.deleteTuple(t);
+                if (current != null) changed(tid, page, new RecordId(pid, slot), current);
+            }
 
         } catch (DbException e) {
             e.printStackTrace();
+        } catch (IOException e) {
+            throw new DbException("can't log delete from " + pid + ": " + e.getMessage());
         }
         modified.add(page);
         return modified;
     }
 
+    /**
+     * Logs an insert or delete tid just made on a page, and tells the
+     * version store about it if snapshot isolation is on.  Called under the
+     * page's latch, right after the change, so the page cannot be written
+     * before its log record.  Logging sets the page's pageLSN.  The free
+     * space map learns the page's new number of free slots.
+     *
+     * @param deleted the tuple a delete removed, or null for an insert
+     */
+    private void changed(TransactionId tid, TuplePage page, RecordId rid, Tuple deleted) throws IOException {
+        LogFile log = Database.getLogFile();
+        if (deleted == null) {
+            log.logInsert(tid, page, rid.getTupleNumber(), page.getTuple(rid.getTupleNumber()));
+        } else {
+            log.logDelete(tid, page, rid.getTupleNumber(), deleted);
+        }
+        noteFreeSlots(page);
+        VersionStore versions = Database.getBufferPool().getVersionStore();
+        if (versions != null) {
+            versions.recordChange(tid, rid, deleted == null ? null : VersionStore.copyOf(deleted, rid));
+        }
+    }
+
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
         // some code goes here
         return new HeapFileIterator(tid, this);
     }
 
+    /**
+     * Returns an iterator that reads pages through the given buffer access
+     * strategy, e.g. a bulk-read ring for large sequential scans.
+     *
+     * @see BufferAccessStrategy
+     */
+    public DbFileIterator iterator(TransactionId tid, BufferAccessStrategy strategy) {
+        return new HeapFileIterator(tid, this, strategy);
+    }
+
+    /**
+     * Returns an iterator over tuples holding only the given fields, e.g.
+     * the ones a query uses, which saves decoding the others.  Pages whose
+     * format stores the values of a field together (see {@link Format#PAX})
+     * decode just those values.
+     *
+     * @param strategy the buffer access strategy to read pages through, or null
+     * @param columns the fields to keep, by index in this file's TupleDesc
+     * @see #getTupleDesc(int[])
+     */
+    public DbFileIterator iterator(TransactionId tid, BufferAccessStrategy strategy, int[] columns) {
+        return new HeapFileIterator(tid, this, strategy, columns, new Predicate[0]);
+    }
+
+    /**
+     * Returns an iterator over the tuples that satisfy all the given
+     * predicates, holding only the given fields.  Pages whose format
+     * encodes values (see {@link Format#COMPRESSED}) test the predicates on
+     * the encoded values and skip pages none of whose tuples can satisfy
+     * them.  In tables with record locks, each tuple is only tested once
+     * it is locked.
+     *
+     * @param strategy the buffer access strategy to read pages through, or null
+     * @param columns the fields to keep, by index in this file's TupleDesc,
+     *     or null for all of them
+     * @param filters predicates on fields by index in this file's TupleDesc
+     */
+    public DbFileIterator iterator(TransactionId tid, BufferAccessStrategy strategy, int[] columns,
+                                   Predicate[] filters) {
+        return new HeapFileIterator(tid, this, strategy, columns, filters);
+    }
+
+    /**
+     * @return the TupleDesc of the tuples holding only the given fields
+     */
+    public TupleDesc getTupleDesc(int[] columns) {
+        Type[] types = new Type[columns.length];
+        String[] names = new String[columns.length];
+        for (int k = 0; k < columns.length; k++) {
+            types[k] = this.td.getFieldType(columns[k]);
+            names[k] = this.td.getFieldName(columns[k]);
+        }
+        return new TupleDesc(types, names);
+    }
+
     // This is a self defined iterator function for the heap file
+    // In tables with record locks, every tuple is locked shared before it is
+    // returned and then re-read, since its page may have changed meanwhile.
+    // Under snapshot isolation, pages are read without locks and the tuples
+    // come from the transaction's snapshot instead.
+    // The pages ahead of the scan are prefetched by a ReadAhead.
+    // An iterator with columns returns tuples holding only those fields, and
+    // one with filters only the tuples that satisfy them.
     public class HeapFileIterator implements DbFileIterator {
 
         private Iterator<Tuple> tupleIterator = null;
@@ -172,11 +508,43 @@ public class HeapFile implements DbFile {
         private HeapFile heapfile;
         private boolean status;
         private int pageNo;
+        private final BufferAccessStrategy strategy;
+        private boolean recordLocked;
+        private Permissions pagePerm;
+        private VersionStore versions;
+        // the locked tuple next() returns, in tables with record locks
+        private Tuple nextLocked;
+        private ReadAhead readAhead;
+        // the fields to keep and their TupleDesc, or null for whole tuples
+        private final int[] columns;
+        private final TupleDesc projected;
+        // the predicates tuples must satisfy, by index in the file's TupleDesc
+        private final Predicate[] filters;
 
         // Constructor for the heapfileiterator
         public HeapFileIterator(TransactionId tid, HeapFile f) {
+            this(tid, f, null);
+        }
+
+        // Constructor for an iterator reading through an access strategy (may be null)
+        public HeapFileIterator(TransactionId tid, HeapFile f, BufferAccessStrategy strategy) {
+            this(tid, f, strategy, null);
+        }
+
+        // Constructor for an iterator keeping only the given fields (may be null)
+        public HeapFileIterator(TransactionId tid, HeapFile f, BufferAccessStrategy strategy, int[] columns) {
+            this(tid, f, strategy, columns, new Predicate[0]);
+        }
+
+        // Constructor for an iterator returning the tuples that satisfy the filters
+        public HeapFileIterator(TransactionId tid, HeapFile f, BufferAccessStrategy strategy, int[] columns,
+                                Predicate[] filters) {
             this.tid = tid;
             this.heapfile = f;
+            this.strategy = strategy;
+            this.columns = columns;
+            this.projected = columns == null ? null : f.getTupleDesc(columns);
+            this.filters = filters;
         }
 //
 //        public HeapPage getCurrentPage(int pageNum) throws TransactionAbortedException, DbException {
@@ -189,14 +557,81 @@ public class HeapFile implements DbFile {
         public void open() throws DbException, TransactionAbortedException {
             this.status = true;
             this.pageNum = 0;
-            HeapPage currpage;
-            currpage = (HeapPage) Database.getBufferPool()
-                    .getPage(this.tid, new HeapPageId(this.heapfile.getId(), this.pageNum), Permissions.READ_WRITE);
-            this.tupleIterator = currpage.iterator();
+            this.nextLocked = null;
+            this.versions = Database.getBufferPool().getVersionStore();
+            // snapshot readers take no locks at all
+            this.recordLocked = this.versions == null && Database.getBufferPool().isRecordLocked(this.heapfile.getId());
+            // with record locks a reader only needs IS on the table
+            this.pagePerm = this.recordLocked ? Permissions.READ_ONLY : Permissions.READ_WRITE;
+            if (this.readAhead != null) this.readAhead.close();
+            this.readAhead = new ReadAhead(this.heapfile, this.strategy);
+            this.tupleIterator = tuplesOf(this.pageNum);
+        }
+
+        private Iterator<Tuple> tuplesOf(int pageNo) throws DbException, TransactionAbortedException {
+            HeapPageId pid = new HeapPageId(this.heapfile.getId(), pageNo);
+            this.readAhead.pageRequested(pageNo);
+            if (this.versions != null) {
+                TuplePage page = (TuplePage) Database.getBufferPool().getPageUnlocked(pid, this.strategy);
+                return select(this.versions.visibleTuples(this.tid, page));
+            }
+            TuplePage page = (TuplePage) Database.getBufferPool().getPage(this.tid, pid, this.pagePerm, this.strategy);
+            // in tables with record locks, the slots are only tested once
+            // hasNext has locked and re-read them: an uncommitted tuple
+            // failing the filters may hide a committed one that passes
+            if (this.recordLocked) return page.iterator();
+            return page.iterator(this.columns, this.projected, this.filters);
+        }
+
+        // the tuples that satisfy the filters, projected
+        private Iterator<Tuple> select(final Iterator<Tuple> tuples) {
+            if (this.columns == null && this.filters.length == 0) return tuples;
+            return new Iterator<Tuple>() {
+                private Tuple next;
+
+                public boolean hasNext() {
+                    while (next == null && tuples.hasNext()) {
+                        Tuple t = tuples.next();
+                        if (AbstractTuplePage.passes(t, filters)) {
+                            next = columns == null ? t : AbstractTuplePage.project(t, columns, projected);
+                        }
+                    }
+                    return next != null;
+                }
+
+                public Tuple next() {
+                    if (!hasNext()) throw new NoSuchElementException();
+                    Tuple t = next;
+                    next = null;
+                    return t;
+                }
+
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
         }
 
         @Override
         public boolean hasNext() throws DbException, TransactionAbortedException {
+            if (!this.recordLocked) return hasNextOnPage();
+            while (this.nextLocked == null) {
+                if (!hasNextOnPage()) return false;
+                RecordId rid = this.tupleIterator.next().getRecordId();
+                if (rid == null) continue;
+                Database.getBufferPool().lockRecord(this.tid, rid, Permissions.READ_ONLY);
+                // the tuple may have been deleted or replaced while we waited
+                TuplePage page = (TuplePage) Database.getBufferPool()
+                        .getPage(this.tid, rid.getPageId(), this.pagePerm, this.strategy);
+                Tuple t = page.getTuple(rid.getTupleNumber());
+                if (t != null && !AbstractTuplePage.passes(t, this.filters)) t = null;
+                if (t != null && this.columns != null) t = AbstractTuplePage.project(t, this.columns, this.projected);
+                this.nextLocked = t;
+            }
+            return true;
+        }
+
+        private boolean hasNextOnPage() throws DbException, TransactionAbortedException {
             if (this.status) {
                 if (this.tupleIterator == null) return false;
                 if (this.tupleIterator.hasNext()) return true;
@@ -207,9 +642,7 @@ public class HeapFile implements DbFile {
                     this.pageNum ++;
                     if (this.pageNum < 0 || this.pageNum >= this.heapfile.numPages()) break;
                     else {
-                        HeapPage thispage = (HeapPage) Database.getBufferPool()
-                                .getPage(this.tid, new HeapPageId(this.heapfile.getId(), this.pageNum), Permissions.READ_WRITE);
-                        this.tupleIterator = thispage.iterator();
+                        this.tupleIterator = tuplesOf(this.pageNum);
                     }
                     if (this.tupleIterator.hasNext()) return true;
                 }
@@ -220,7 +653,10 @@ public class HeapFile implements DbFile {
         @Override
         public Tuple next() throws DbException, TransactionAbortedException {
             if (!this.hasNext()) throw new NoSuchElementException();
-            return this.tupleIterator.next();
+            if (!this.recordLocked) return this.tupleIterator.next();
+            Tuple t = this.nextLocked;
+            this.nextLocked = null;
+            return t;
         }
 
         @Override
@@ -233,6 +669,11 @@ public class HeapFile implements DbFile {
             this.status = false;
             this.pageNum = 0;
             this.tupleIterator = null;
+            this.nextLocked = null;
+            if (this.readAhead != null) {
+                this.readAhead.close();
+                this.readAhead = null;
+            }
         }
     }
 }
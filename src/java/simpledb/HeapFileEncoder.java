@@ -2,6 +2,7 @@ package simpledb;
 
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Iterator;
 
 /**
  * HeapFileEncoder reads a comma delimited text file or accepts
@@ -95,7 +96,8 @@ public class HeapFileEncoder {
       for (int i = 0; i < numFields ; i++) {
           nrecbytes += typeAr[i].getLen();
       }
-      int nrecords = (npagebytes * 8) /  (nrecbytes * 8 + 1);  //floor comes for free
+      // each page starts with its pageLSN, 0 until the log changes it
+      int nrecords = ((npagebytes - HeapPage.LSN_SIZE) * 8) /  (nrecbytes * 8 + 1);  //floor comes for free
       
     //  per record, we need one bit; there are nrecords per page, so we need
     // nrecords bits, i.e., ((nrecords/32)+1) integers.
@@ -154,8 +156,8 @@ public class HeapFileEncoder {
                 }
                 pageStream.writeInt(s.length());
                 pageStream.writeBytes(s);
-                while (overflow-- > 0)
-                    pageStream.write((byte)0);
+                if (overflow > 0)
+                    pageStream.write(new byte[overflow]);
             }
             curpos = 0;
             if (c == '\n')
@@ -201,10 +203,11 @@ public class HeapFileEncoder {
             
             // pad the rest of the page with zeroes
             
-            for (i=0; i<(npagebytes - (recordcount * nrecbytes + nheaderbytes)); i++)
+            for (i=0; i<(npagebytes - (recordcount * nrecbytes + nheaderbytes + HeapPage.LSN_SIZE)); i++)
                 pageStream.writeByte(0);
             
-            // write header and body to file
+            // write pageLSN, header and body to file
+            new DataOutputStream(os).writeLong(0);
             headerStream.flush();
             headerBAOS.writeTo(os);
             pageStream.flush();
@@ -223,4 +226,55 @@ public class HeapFileEncoder {
     br.close();
     os.close();
   }
+
+  /** Convert the specified input text file into a binary page file whose
+   * pages are in the given format; see
+   * {@link #convert(File, File, int, int, Type[], char)} for the input.
+   * Pages of formats other than HEAP are BufferPool.getPageSize() bytes.
+   *
+   * @param format the format of the pages written
+   * @throws IllegalArgumentException if npagebytes is not the page size of
+   *   a format other than HEAP
+   */
+  public static void convert(File inFile, File outFile, int npagebytes,
+                 int numFields, Type[] typeAr, char fieldSeparator, HeapFile.Format format)
+      throws IOException {
+      if (format == HeapFile.Format.HEAP) {
+          convert(inFile, outFile, npagebytes, numFields, typeAr, fieldSeparator);
+          return;
+      }
+      if (npagebytes != BufferPool.getPageSize())
+          throw new IllegalArgumentException(format + " pages are " + BufferPool.getPageSize() + " bytes");
+      // write heap pages first, then move their tuples to pages of the format
+      File heapFile = File.createTempFile("tempTable", ".dat");
+      heapFile.deleteOnExit();
+      convert(inFile, heapFile, npagebytes, numFields, typeAr, fieldSeparator);
+      TupleDesc td = new TupleDesc(typeAr);
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(heapFile)));
+      OutputStream os = new BufferedOutputStream(new FileOutputStream(outFile));
+      try {
+          TuplePage out = format.page(new HeapPageId(0, 0), td, HeapPage.createEmptyPageData());
+          byte[] data = new byte[npagebytes];
+          for (long pages = heapFile.length() / npagebytes, p = 0; p < pages; p++) {
+              in.readFully(data);
+              HeapPage page = new HeapPage(new HeapPageId(0, (int) p), td, data.clone());
+              for (Iterator<Tuple> it = page.iterator(); it.hasNext(); ) {
+                  Tuple t = it.next();
+                  if (!out.hasRoomFor(t)) {
+                      os.write(out.getPageData());
+                      out = format.page(new HeapPageId(0, 0), td, HeapPage.createEmptyPageData());
+                  }
+                  out.insertTuple(t);
+              }
+          }
+          // the last page; like in the heap format, an empty table has one empty page
+          os.write(out.getPageData());
+      } catch (DbException e) {
+          throw new IOException("can't convert " + inFile + ": " + e.getMessage());
+      } finally {
+          in.close();
+          os.close();
+          heapFile.delete();
+      }
+  }
 }
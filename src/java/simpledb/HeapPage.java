@@ -2,33 +2,49 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * The page's monitor is its latch: methods that read or change the slots
+ * are synchronized, so transactions holding record locks on different
+ * tuples of the same page can modify it concurrently.
+ * <p>
+ * Pages are decoded lazily.  A page keeps the image it was read from and
+ * only decodes its header up front; the Tuple of a slot is created the
+ * first time it is asked for, and its fields are decoded from the image
+ * when they are used.  The image is never changed: slots changed since the
+ * page was read are tracked, and getPageData copies the image and encodes
+ * only those.  Before-images are kept as described in AbstractTuplePage.
  *
  * @see HeapFile
  * @see BufferPool
  *
  */
-public class HeapPage implements Page {
-
-    final HeapPageId pid;
-    final TupleDesc td;
-    final byte header[];
+public class HeapPage extends AbstractTuplePage {
+
+    final int headerSize;
+    // the slot bitmap in 64-bit words (slot i is bit i % 64 of word i / 64),
+    // the number of empty slots, and no empty slot is below nextFree
+    private final long[] used;
+    private int numEmpty;
+    private int nextFree = 0;
+    // the tuples created so far; null for empty slots and slots not decoded yet
     final Tuple tuples[];
     final int numSlots;
-
-    byte[] oldData;
-    private final Byte oldDataLock= (byte) 0;
+    // slots whose contents differ from the image
+    final BitSet changed = new BitSet();
 
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
-     * The format of a HeapPage is a set of header bytes indicating
+     * The format of a HeapPage is a long pageLSN (the LSN of the last log
+     * record applied to the page, or 0), a set of header bytes indicating
      * the slots of the page that are in use, some number of tuple slots.
      *  Specifically, the number of tuples is equal to: <p>
-     *          floor((BufferPool.getPageSize()*8) / (tuple size * 8 + 1))
+     *          floor(((BufferPool.getPageSize() - 8)*8) / (tuple size * 8 + 1))
      * <p> where tuple size is the size of tuples in this
      * database table, which can be determined via {@link Catalog#getTupleDesc}.
      * The number of 8-bit header words is equal to:
@@ -40,27 +56,55 @@ public class HeapPage implements Page {
      * @see BufferPool#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
-        this.pid = id;
-        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
-        this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        this(id, Database.getCatalog().getTupleDesc(id.getTableId()), data);
+    }
 
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
+    /**
+     * Create a HeapPage of a table with the given schema, e.g. for a file
+     * that is not in the catalog.  The page keeps data as its image, so
+     * data must not change afterwards.
+     */
+    HeapPage(HeapPageId id, TupleDesc td, byte[] data) throws IOException {
+        super(id, td, data);
+        this.numSlots = getNumTuples();
 
+        // read the header slots of this page; tuples are decoded on demand
+        headerSize = getHeaderSize();
+        byte[] header = Arrays.copyOfRange(this.image, LSN_SIZE, LSN_SIZE + headerSize);
         tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
+
+        used = new long[(numSlots + 63) / 64];
+        for (int k = 0; k < header.length; k++) {
+            used[k >>> 3] |= (header[k] & 0xffL) << (8 * (k & 7));
         }
-        dis.close();
+        // ignore bits past the last slot
+        if (numSlots % 64 != 0) used[used.length - 1] &= (1L << numSlots) - 1;
+        int usedSlots = 0;
+        for (long word : used) usedSlots += Long.bitCount(word);
+        numEmpty = numSlots - usedSlots;
+    }
 
-        setBeforeImage();
+    /**
+     * Create a HeapPage from the bytes from the position of a buffer on,
+     * e.g. a page of a memory-mapped file.  The bytes are copied once, in
+     * bulk, since a mapped page changes when the page is written back.  The
+     * buffer's position is not changed.  The format is described in
+     * {@link #HeapPage(HeapPageId, byte[])}.
+     */
+    public HeapPage(HeapPageId id, ByteBuffer data) throws IOException {
+        this(id, copyPage(data));
+    }
+
+    private static byte[] copyPage(ByteBuffer data) {
+        byte[] copy = new byte[BufferPool.getPageSize()];
+        ByteBuffer src = data.duplicate();
+        src.get(copy, 0, Math.min(copy.length, src.remaining()));
+        return copy;
+    }
+
+    /** @return the offset of a slot's tuple in the page image */
+    private int slotOffset(int slot) {
+        return LSN_SIZE + headerSize + slot * td.getSize();
     }
 
     /** Retrieve the number of tuples on this page.
@@ -68,9 +112,9 @@ public class HeapPage implements Page {
      */
     private int getNumTuples() {
         // some code goes here
-        int pageSize = Database.getBufferPool().getPageSize();
+        int pageSize = BufferPool.getPageSize();
         int tupleSize = this.td.getSize();
-        int tupleNum = (int) Math.floor(((double) pageSize*8.0 )/((double)(tupleSize*8.0+1.0)));
+        int tupleNum = (int) Math.floor(((double) (pageSize - LSN_SIZE)*8.0 )/((double)(tupleSize*8.0+1.0)));
         return tupleNum;
 
     }
@@ -86,71 +130,13 @@ public class HeapPage implements Page {
         return headerSize;
     }
 
-    /** Return a view of this page before it was modified
-     -- used by recovery */
-    public HeapPage getBeforeImage(){
-        try {
-            byte[] oldDataRef = null;
-            synchronized(oldDataLock)
-            {
-                oldDataRef = oldData;
-            }
-            return new HeapPage(pid,oldDataRef);
-        } catch (IOException e) {
-            e.printStackTrace();
-            //should never happen -- we parsed it OK before!
-            System.exit(1);
-        }
-        return null;
+    protected TuplePage pageOf(byte[] data) throws IOException {
+        return new HeapPage(pid, td, data);
     }
 
-    public void setBeforeImage() {
-        synchronized(oldDataLock)
-        {
-            oldData = getPageData().clone();
-        }
-    }
-
-    /**
-     * @return the PageId associated with this page.
-     */
-    public HeapPageId getId() {
-        return this.pid;
-        //throw new UnsupportedOperationException("implement this");
-    }
-
-    /**
-     * Suck up tuples from the source file.
-     */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
-        }
-
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
-            }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
-        }
-
-        return t;
+    @Override
+    public HeapPage getBeforeImage() {
+        return (HeapPage) super.getBeforeImage();
     }
 
     /**
@@ -164,65 +150,40 @@ public class HeapPage implements Page {
      * @see #HeapPage
      * @return A byte array correspond to the bytes of this page.
      */
-    public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (int i=0; i<header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
+    public synchronized byte[] getPageData() {
+        byte[] data = this.image.clone();
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        buf.putLong(0, getLsn());
+        for (int k = 0; k < headerSize; k++) {
+            data[LSN_SIZE + k] = (byte) (used[k >>> 3] >>> (8 * (k & 7)));
         }
 
-        // create the tuples
-        for (int i=0; i<tuples.length; i++) {
-
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
-                continue;
-            }
-
-            // non-empty slot
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
+        // only the slots changed since the page was read differ from its image
+        for (int i = changed.nextSetBit(0); i >= 0; i = changed.nextSetBit(i + 1)) {
+            writeSlot(data, i, isSlotUsed(i) ? tuples[i] : null);
         }
+        return data;
+    }
 
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
+    /** Write the fields of t into a slot of a page image, or zeros if t is null. */
+    void writeSlot(byte[] data, int slot, Tuple t) {
+        int offset = slotOffset(slot);
+        if (t != null) {
+            byte[] tuple = serializeTuple(t);
+            System.arraycopy(tuple, 0, data, offset, tuple.length);
+        } else {
+            Arrays.fill(data, offset, offset + td.getSize(), (byte) 0);
         }
+    }
 
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+    /** @return a tuple decoding the fields of a slot from the image on demand */
+    Tuple readTuple(int slot) {
+        return new Tuple(td, this.image, slotOffset(slot));
+    }
 
-        return baos.toByteArray();
+    /** @return the serialized fields of a slot as they are in the image */
+    byte[] readTupleData(int slot) {
+        return Arrays.copyOfRange(this.image, slotOffset(slot), slotOffset(slot) + td.getSize());
     }
 
     /**
@@ -246,7 +207,7 @@ public class HeapPage implements Page {
      *         already empty.
      * @param t The tuple to delete
      */
-    public void deleteTuple(Tuple t) throws DbException {
+    public synchronized void deleteTuple(Tuple t) throws DbException {
         // some code goes here
         RecordId rid = t.getRecordId();
         if (rid == null) throw new DbException("tuple not valid");
@@ -255,8 +216,10 @@ public class HeapPage implements Page {
         if (!isSlotUsed(t_number)) throw new DbException("this tuple slot is empty");
         else if (!hpId.equals(this.pid)) throw new DbException("the tuple is not on this page");
         else {
+            beforeChange();
             markSlotUsed(t_number, false);
             this.tuples[t_number] = null;
+            this.changed.set(t_number);
             t.setRecordId(null);
         }
     }
@@ -268,67 +231,186 @@ public class HeapPage implements Page {
      *         is mismatch.
      * @param t The tuple to add.
      */
-    public void insertTuple(Tuple t) throws DbException {
+    public synchronized void insertTuple(Tuple t) throws DbException {
         // some code goes here
         if (getNumEmptySlots() == 0 || !t.getTupleDesc().equals(this.td))
             throw new DbException("Cannot insert");
-        for (int i = 0; i < getNumTuples(); i++) {
-            if (!isSlotUsed(i)) {
-                markSlotUsed(i, true);
-                this.tuples[i] = t;
-                t.setRecordId(new RecordId(this.pid, i));
-                break;
-            }
+        beforeChange();
+        int i = nextFreeSlot(0);
+        markSlotUsed(i, true);
+        this.tuples[i] = t;
+        this.changed.set(i);
+        t.setRecordId(new RecordId(this.pid, i));
+    }
+
+    public synchronized boolean hasRoomFor(Tuple t) {
+        return numEmpty > 0;
+    }
+
+    public synchronized boolean hasRoomFor(Tuple t, int slot) {
+        return slot >= 0 && slot < numSlots && !isSlotUsed(slot);
+    }
+
+    /**
+     * Adds the specified tuple to the given empty slot of the page, e.g. a
+     * slot the caller has locked or the slot an aborted delete vacated.
+     * @throws DbException if the slot is in use or tupledesc is mismatch.
+     * @param t The tuple to add.
+     * @param slot The slot to store it in.
+     */
+    public synchronized void insertTuple(Tuple t, int slot) throws DbException {
+        if (slot < 0 || slot >= numSlots || isSlotUsed(slot) || !t.getTupleDesc().equals(this.td))
+            throw new DbException("Cannot insert into slot " + slot);
+        beforeChange();
+        markSlotUsed(slot, true);
+        this.tuples[slot] = t;
+        this.changed.set(slot);
+        t.setRecordId(new RecordId(this.pid, slot));
+    }
+
+    /**
+     * @return the tuple stored in the given slot, or null if the slot is empty
+     */
+    public synchronized Tuple getTuple(int slot) {
+        if (slot < 0 || slot >= numSlots || !isSlotUsed(slot)) return null;
+        return tupleAt(slot);
+    }
+
+    /** @return the tuple in a used slot, creating it from the image if needed */
+    private Tuple tupleAt(int slot) {
+        Tuple t = this.tuples[slot];
+        if (t == null) {
+            t = readTuple(slot);
+            t.setRecordId(new RecordId(pid, slot));
+            this.tuples[slot] = t;
         }
+        return t;
     }
 
     /**
-     * Marks this page as dirty/not dirty and record that transaction
-     * that did the dirtying
+     * @return the number of tuple slots on this page
      */
-    private TransactionId dirtyTid = null;
+    public int getNumSlots() {
+        return this.numSlots;
+    }
 
-    public void markDirty(boolean dirty, TransactionId tid) {
-        // some code goes here
-        //(John) Lab2 Flush
-        if (dirty){
-            this.dirtyTid = tid;
-        } else {
-            this.dirtyTid = null;
+    /**
+     * @return the serialized fields of the tuple in the given slot, as
+     *     logged by LogFile, or null if the slot is empty
+     */
+    public synchronized byte[] getTupleData(int slot) {
+        if (slot >= 0 && slot < numSlots && isSlotUsed(slot) && !changed.get(slot)) {
+            return readTupleData(slot);
         }
+        Tuple t = getTuple(slot);
+        return t == null ? null : serializeTuple(t);
     }
 
     /**
-     * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
+     * @return the serialized fields of t, in the format of a page slot
      */
+    public static byte[] serializeTuple(Tuple t) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(t.getTupleDesc().getSize());
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            for (int j=0; j<t.getTupleDesc().numFields(); j++) {
+                t.getField(j).serialize(dos);
+            }
+            dos.flush();
+        } catch (IOException e) {
+            // this really shouldn't happen
+            e.printStackTrace();
+        }
+        return baos.toByteArray();
+    }
 
-    public TransactionId isDirty() {
-        // some code goes here
-        //(John) Lab2 Flush
-        return this.dirtyTid;
+    /**
+     * Stores the serialized tuple in the given slot, replacing whatever it
+     * held.  Used to redo inserts and undo deletes from the log, so applying
+     * it twice has the same effect as applying it once.
+     */
+    public synchronized void putTupleData(int slot, byte[] data) throws DbException {
+        if (slot < 0 || slot >= numSlots) throw new DbException("no slot " + slot + " on " + pid);
+        Tuple t = new Tuple(td);
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        try {
+            for (int j=0; j<td.numFields(); j++) {
+                t.setField(j, td.getFieldType(j).parse(dis));
+            }
+        } catch (java.text.ParseException e) {
+            throw new DbException("can't parse logged tuple for slot " + slot + " on " + pid);
+        }
+        t.setRecordId(new RecordId(pid, slot));
+        beforeChange();
+        markSlotUsed(slot, true);
+        this.tuples[slot] = t;
+        this.changed.set(slot);
+    }
+
+    /**
+     * Empties the given slot, whether or not it was in use.  Used to redo
+     * deletes and undo inserts from the log.
+     */
+    public synchronized void clearSlot(int slot) throws DbException {
+        if (slot < 0 || slot >= numSlots) throw new DbException("no slot " + slot + " on " + pid);
+        beforeChange();
+        if (this.tuples[slot] != null) this.tuples[slot].setRecordId(null);
+        markSlotUsed(slot, false);
+        this.tuples[slot] = null;
+        this.changed.set(slot);
     }
 
     /**
      * Returns the number of empty slots on this page.
      */
-    public int getNumEmptySlots() {
+    public synchronized int getNumEmptySlots() {
         // some code goes here
-        int count = 0;
-        for (int i = 0; i < numSlots; i++){
-            if (this.isSlotUsed(i) == false) count++;
-        }
-        return count;
+        return numEmpty;
     }
 
     /**
      * Returns true if associated slot on this page is filled.
      */
-    public boolean isSlotUsed(int i)
+    public synchronized boolean isSlotUsed(int i)
 
     {
         // some code goes here
-        BitSet bitset = BitSet.valueOf(header);
-        return bitset.get(i);
+        if (i < 0 || i >= numSlots) return false;
+        return (used[i >>> 6] & (1L << i)) != 0;
+    }
+
+    /**
+     * @return the first empty slot at or after from, or -1 if there is none
+     */
+    public synchronized int nextFreeSlot(int from) {
+        if (numEmpty == 0) return -1;
+        int i = nextSlot(Math.max(from, nextFree), false);
+        // with no empty slot below from, the search found the lowest one
+        if (from <= nextFree) nextFree = i < 0 ? numSlots : i;
+        return i;
+    }
+
+    /**
+     * @return the first used slot at or after from, or -1 if there is none
+     */
+    public synchronized int nextUsedSlot(int from) {
+        return nextSlot(from, true);
+    }
+
+    /** Scan the bitmap a word at a time for the first used or empty slot at or after from. */
+    private int nextSlot(int from, boolean isUsed) {
+        if (from < 0) from = 0;
+        if (from >= numSlots) return -1;
+        int w = from >>> 6;
+        long word = (isUsed ? used[w] : ~used[w]) & (-1L << from);
+        while (true) {
+            if (word != 0) {
+                int i = (w << 6) + Long.numberOfTrailingZeros(word);
+                return i < numSlots ? i : -1;
+            }
+            if (++w >= used.length) return -1;
+            word = isUsed ? used[w] : ~used[w];
+        }
     }
 
     /**
@@ -337,33 +419,65 @@ public class HeapPage implements Page {
     private void markSlotUsed(int i, boolean value) {
         // some code goes here
         // Lab 2 added
-        int byteIndex = i / 8;
-        int byteOffset = i % 8;
-//        int m = 0x00000000;
-//        int mask = m | (1 << (7 - byteOffset));
+        long bit = 1L << i;
+        if (value == ((used[i >>> 6] & bit) != 0)) return;
         if (value) {
-            this.header[byteIndex] |= (1 << byteOffset);
+            used[i >>> 6] |= bit;
+            numEmpty--;
         }
         else {
-            this.header[byteIndex] &= ~(1 << byteOffset);
+            used[i >>> 6] &= ~bit;
+            numEmpty++;
+            if (i < nextFree) nextFree = i;
         }
     }
 
     /**
      * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
      * (note that this iterator shouldn't return tuples in empty slots!)
+     * <p>
+     * The iterator visits the slots that are used when it is created and
+     * reads each tuple when it gets to it, skipping slots emptied meanwhile;
+     * callers that need the tuples as of one instant hold the page's latch
+     * while iterating.
      */
+    @Override
     public Iterator<Tuple> iterator()
     {
         // some code goes here
-        ArrayList<Tuple> tuple = new ArrayList<Tuple>();
-        for (int i = 0; i < this.numSlots; ++i)
-        {
-            if (this.isSlotUsed(i)) tuple.add(tuples[i]);
+        final long[] slots;
+        synchronized (this) {
+            slots = used.clone();
         }
-        List<Tuple> immutabletuple = Collections
-                .unmodifiableList(tuple);
-        return immutabletuple.iterator();
+        return new Iterator<Tuple>() {
+            private int w = 0;
+            private long word = slots.length > 0 ? slots[0] : 0;
+            private Tuple next;
+
+            public boolean hasNext() {
+                while (next == null) {
+                    while (word == 0) {
+                        if (++w >= slots.length) return false;
+                        word = slots[w];
+                    }
+                    int slot = (w << 6) + Long.numberOfTrailingZeros(word);
+                    word &= word - 1;
+                    next = getTuple(slot);
+                }
+                return true;
+            }
+
+            public Tuple next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                Tuple t = next;
+                next = null;
+                return t;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
     }
 
 
@@ -0,0 +1,57 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * Measures filling an empty HeapPage with tuples, scanning a full one and
+ * testing each of its slots with isSlotUsed.  For comparison, it also tests
+ * the slots the way isSlotUsed did before HeapPage kept its bitmap in long
+ * words, building a BitSet from the header bytes for every slot tested.
+ * <p>
+ * Usage: java simpledb.HeapPageBench [pages [rounds]]
+ */
+public class HeapPageBench {
+
+    public static void main(String[] args) throws Exception {
+        int pages = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        TupleDesc td = Utility.getTupleDesc(2);
+        HeapPageId pid = new HeapPageId(0, 0);
+        int slots = new HeapPage(pid, td, HeapPage.createEmptyPageData()).getNumSlots();
+        Tuple[] tuples = new Tuple[slots];
+        for (int i = 0; i < slots; i++) tuples[i] = Utility.getHeapTuple(i, 2);
+
+        long sink = 0;
+        for (int round = 0; round < rounds; round++) {
+            long fill = 0, scan = 0, slotScan = 0, bitSetScan = 0;
+            for (int p = 0; p < pages; p++) {
+                HeapPage page = new HeapPage(pid, td, HeapPage.createEmptyPageData());
+                long t0 = System.nanoTime();
+                for (int i = 0; page.getNumEmptySlots() > 0; i++) page.insertTuple(tuples[i]);
+                long t1 = System.nanoTime();
+                for (Iterator<Tuple> it = page.iterator(); it.hasNext(); ) sink += it.next().hashCode();
+                long t2 = System.nanoTime();
+                for (int i = 0; i < slots; i++) {
+                    if (page.isSlotUsed(i)) sink++;
+                }
+                long t3 = System.nanoTime();
+                byte[] header = Arrays.copyOfRange(page.getPageData(), HeapPage.LSN_SIZE,
+                        HeapPage.LSN_SIZE + page.headerSize);
+                long t4 = System.nanoTime();
+                for (int i = 0; i < slots; i++) {
+                    if (BitSet.valueOf(header).get(i)) sink++;
+                }
+                long t5 = System.nanoTime();
+                fill += t1 - t0;
+                scan += t2 - t1;
+                slotScan += t3 - t2;
+                bitSetScan += t5 - t4;
+            }
+            System.out.printf("slots=%d fill a page %.2f us, scan a full page %.2f us, test its slots"
+                            + " %.2f us, with a BitSet per call %.2f us (%d)%n",
+                    slots, fill / 1e3 / pages, scan / 1e3 / pages, slotScan / 1e3 / pages,
+                    bitSetScan / 1e3 / pages, sink & 1);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Measures update throughput on a few hot pages with page and with record
+ * lock granularity.  Each thread runs transactions that replace one random
+ * slot of a random hot page, deleting its tuple and inserting a copy, and hold
+ * their locks for a moment of simulated work before committing.  With page
+ * locks, transactions updating different tuples of a page wait for each
+ * other; with record locks, only those picking the same tuple do.
+ * <p>
+ * Usage: java simpledb.LockGranularityBench [threads [seconds [hotPages [workMillis]]]]
+ */
+public class LockGranularityBench {
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int hotPages = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+        int workMillis = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+
+        File dir = new File(System.getProperty("java.io.tmpdir"), "simpledb-lock-bench");
+        dir.mkdirs();
+        for (LockManager.Granularity granularity : LockManager.Granularity.values()) {
+            HeapFile table = ScanResistanceBench.table(new File(dir, granularity.name().toLowerCase() + ".dat"), hotPages);
+            Database.getCatalog().setLockGranularity(table.getId(), granularity);
+            Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+            Updater[] updaters = new Updater[threads];
+            long deadline = System.currentTimeMillis() + seconds * 1000L;
+            for (int i = 0; i < threads; i++) {
+                updaters[i] = new Updater(table, hotPages, workMillis, deadline, new Random(i));
+                updaters[i].start();
+            }
+            long commits = 0, aborts = 0;
+            for (Updater u : updaters) {
+                u.join();
+                if (u.failure != null) throw u.failure;
+                commits += u.commits;
+                aborts += u.aborts;
+            }
+            System.out.printf("%-6s threads=%d hot pages=%d commits/s=%.0f aborts/s=%.0f%n",
+                    granularity, threads, hotPages, commits / (double) seconds, aborts / (double) seconds);
+        }
+        Database.getLogFile().shutdown();
+    }
+
+    /** Replaces random tuples of the hot pages, one per transaction, until the deadline. */
+    private static class Updater extends Thread {
+        private final HeapFile table;
+        private final int hotPages;
+        private final int workMillis;
+        private final long deadline;
+        private final Random rnd;
+        long commits = 0;
+        long aborts = 0;
+        volatile Exception failure;
+
+        Updater(HeapFile table, int hotPages, int workMillis, long deadline, Random rnd) {
+            this.table = table;
+            this.hotPages = hotPages;
+            this.workMillis = workMillis;
+            this.deadline = deadline;
+            this.rnd = rnd;
+        }
+
+        public void run() {
+            try {
+                while (System.currentTimeMillis() < deadline) {
+                    Transaction t = new Transaction();
+                    t.start();
+                    try {
+                        Tuple victim = pick(t.getId());
+                        if (victim == null) {
+                            t.commit();
+                            continue;
+                        }
+                        Tuple copy = new Tuple(victim.getTupleDesc());
+                        for (int i = 0; i < copy.getTupleDesc().numFields(); i++) {
+                            copy.setField(i, victim.getField(i));
+                        }
+                        Database.getBufferPool().deleteTuple(t.getId(), victim);
+                        Database.getBufferPool().insertTuple(t.getId(), table.getId(), copy);
+                        Thread.sleep(workMillis);
+                        t.commit();
+                        commits++;
+                    } catch (TransactionAbortedException e) {
+                        // a deadlock victim
+                        t.abort();
+                        aborts++;
+                    }
+                }
+            } catch (Exception e) {
+                failure = e;
+            }
+        }
+
+        /** @return a random slot's tuple of a random hot page, locked, or null if the slot is empty */
+        private Tuple pick(TransactionId tid) throws TransactionAbortedException, DbException {
+            BufferPool pool = Database.getBufferPool();
+            PageId pid = new HeapPageId(table.getId(), rnd.nextInt(hotPages));
+            TuplePage page = (TuplePage) pool.getPage(tid, pid, Permissions.READ_WRITE);
+            int slot = rnd.nextInt(page.getNumSlots());
+            if (pool.isRecordLocked(table.getId())) {
+                // lock the slot before reading it, like a scan does
+                pool.lockRecord(tid, new RecordId(pid, slot), Permissions.READ_WRITE);
+            }
+            return page.getTuple(slot);
+        }
+    }
+}
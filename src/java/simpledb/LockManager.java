@@ -1,234 +1,660 @@
 package simpledb;
 
-import java.io.*;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 
-//Lab 3 Lock Manager
+/**
+ * LockManager implements strict two-phase locking for the BufferPool.
+ * <p>
+ * Every locked resource has a queue of lock requests: the granted requests
+ * followed by the waiting ones in arrival order.  A waiting request sleeps
+ * on its queue's Condition and is granted by the transaction that releases
+ * the conflicting lock, so lock handoff does not wait for a polling
+ * interval.  Waiting requests are granted in FIFO order, except that a
+ * transaction upgrading its shared lock to an exclusive one goes ahead of
+ * other waiters.
+ * <p>
+ * Deadlocks are detected with a waits-for graph: whenever a request blocks,
+ * the lock manager follows the edges from the blocked transaction to the
+ * transactions it waits for (holders of conflicting locks and conflicting
+ * requests queued ahead of it).  Every new cycle must pass through the
+ * request that just blocked, so searching from it finds all deadlocks as
+ * they form.  One transaction of the cycle is chosen by the VictimPolicy
+ * and aborted; the others keep waiting.  The lock timeout remains only as
+ * a safety net.
+ * <p>
+ * Locking is hierarchical: before locking a page, a transaction takes an
+ * intention lock (IS or IX) on the page's table.  Once a transaction holds
+ * more than the escalation threshold of page locks on one table, its table
+ * lock is escalated to S (or X if it wrote any of them) and the page locks
+ * are dropped; later requests for pages of that table are covered by the
+ * table lock and do not touch the lock table at all.  Escalation never
+ * waits: if the table lock cannot be upgraded right away it is retried on
+ * a later page request.
+ * <p>
+ * Tables whose {@link Granularity} is RECORD are locked one tuple at a
+ * time: BufferPool only takes the intention lock on the table when it
+ * fetches a page, and the access methods lock the RecordIds they read or
+ * write.  Record locks count towards escalation just like page locks.
+ *
+ * @Threadsafe, all state is guarded by one latch
+ */
 public class LockManager {
 
-    // Lock Map for pid
-    private Map<PageId, Set<TransactionId>> readLocks;
-    private Map<PageId, TransactionId> writeLocks;
+    /** System property used to set the lock timeout in milliseconds at startup. */
+    public static final String TIMEOUT_PROPERTY = "simpledb.LockTimeout";
 
+    /** Default time a lock request may wait before its transaction aborts.
+     Deadlocks are detected directly, so this only bounds pathological waits. */
+    public static final long DEFAULT_TIMEOUT_MS = 5000;
+
+    /** System property used to set the lock escalation threshold at startup. */
+    public static final String ESCALATION_PROPERTY = "simpledb.LockEscalationThreshold";
+
+    /** Default number of page locks on one table a transaction may hold before escalation. */
+    public static final int DEFAULT_ESCALATION_THRESHOLD = 64;
+
+    /** System property used to select the deadlock victim policy at startup. */
+    public static final String VICTIM_PROPERTY = "simpledb.DeadlockVictim";
+
+    /** How the transaction to abort is chosen among those in a deadlock cycle. */
+    public enum VictimPolicy {
+        /** abort the most recently started transaction */
+        YOUNGEST,
+        /** abort the transaction holding the fewest locks */
+        FEWEST_LOCKS,
+        /** abort the transaction holding the fewest write locks, i.e. that wrote least */
+        LEAST_WORK
+    }
+
+    /** The unit below the table lock in which a table is locked. */
+    public enum Granularity {
+        /** lock the pages a transaction fetches (the default) */
+        PAGE,
+        /** lock the tuples a transaction reads or writes, by RecordId */
+        RECORD
+    }
+
+    /** The lock resource standing for a whole table. */
+    private static final class TableLock {
+        final int tableId;
+
+        TableLock(int tableId) {
+            this.tableId = tableId;
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof TableLock && ((TableLock) o).tableId == tableId;
+        }
+
+        public int hashCode() {
+            return tableId;
+        }
+
+        public String toString() {
+            return "table " + tableId;
+        }
+    }
+
+    /** A granted or waiting request of one transaction for one resource. */
+    private static class Request {
+        final TransactionId tid;
+        final LockMode mode;
+        final boolean upgrade;
+        final LockQueue queue;
+        boolean granted = false;
+        boolean aborted = false;
+
+        Request(TransactionId tid, LockMode mode, boolean upgrade, LockQueue queue) {
+            this.tid = tid;
+            this.mode = mode;
+            this.upgrade = upgrade;
+            this.queue = queue;
+        }
+    }
+
+    /** The requests for one resource, granted ones first. */
+    private static class LockQueue {
+        final LinkedList<Request> requests = new LinkedList<>();
+        final Condition changed;
+
+        LockQueue(Condition changed) {
+            this.changed = changed;
+        }
+
+        Request granted(TransactionId tid) {
+            for (Request r : requests) {
+                if (r.granted && r.tid.equals(tid)) return r;
+            }
+            return null;
+        }
+
+        /** Upgrades go right behind the granted requests, others at the tail. */
+        void enqueue(Request req) {
+            if (!req.upgrade) {
+                requests.addLast(req);
+                return;
+            }
+            ListIterator<Request> it = requests.listIterator();
+            while (it.hasNext()) {
+                Request r = it.next();
+                if (!r.granted && !r.upgrade) {
+                    it.previous();
+                    break;
+                }
+            }
+            it.add(req);
+        }
+    }
+
+    private final ReentrantLock latch = new ReentrantLock();
+    private final Map<Object, LockQueue> queues = new HashMap<>();
     // Lock Map for tid (for transactionComplete)
-    private Map<TransactionId, Set<PageId>> tidLocks;
+    private final Map<TransactionId, Set<Object>> tidLocks = new HashMap<>();
+    // the blocked request of every waiting transaction: the nodes of the waits-for graph
+    private final Map<TransactionId, Request> waiting = new HashMap<>();
+    // number of page and record locks each transaction holds per table id, for escalation
+    private final Map<TransactionId, Map<Integer, Integer>> lockCounts = new HashMap<>();
+    private volatile long timeoutMs;
+    private volatile int escalationThreshold;
+    private volatile VictimPolicy victimPolicy;
+    private long deadlocks = 0;
+    private long escalations = 0;
 
     // Constructor
     public LockManager(){
-        this.readLocks = new ConcurrentHashMap<>();
-        this.writeLocks = new ConcurrentHashMap<>();
-        this.tidLocks = new ConcurrentHashMap<>();
+        this.timeoutMs = Long.getLong(TIMEOUT_PROPERTY, DEFAULT_TIMEOUT_MS);
+        this.escalationThreshold = Integer.getInteger(ESCALATION_PROPERTY, DEFAULT_ESCALATION_THRESHOLD);
+        String victim = System.getProperty(VICTIM_PROPERTY);
+        this.victimPolicy = victim == null ? VictimPolicy.YOUNGEST : VictimPolicy.valueOf(victim.trim().toUpperCase());
+    }
+
+    /** @return the policy choosing which transaction of a deadlock aborts */
+    public VictimPolicy getVictimPolicy() {
+        return this.victimPolicy;
+    }
+
+    /** Set the policy choosing which transaction of a deadlock aborts. */
+    public void setVictimPolicy(VictimPolicy victimPolicy) {
+        this.victimPolicy = victimPolicy;
+    }
+
+    /** @return how many page or record locks on one table a transaction may hold before escalation */
+    public int getEscalationThreshold() {
+        return this.escalationThreshold;
+    }
+
+    /** Set how many page or record locks on one table a transaction may hold before escalation. */
+    public void setEscalationThreshold(int escalationThreshold) {
+        this.escalationThreshold = escalationThreshold;
+    }
+
+    /** @return the number of table lock escalations so far */
+    public long getEscalationCount() {
+        latch.lock();
+        try {
+            return this.escalations;
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /** @return the number of deadlocks detected (and broken) so far */
+    public long getDeadlockCount() {
+        latch.lock();
+        try {
+            return this.deadlocks;
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /** @return how long a lock request may wait, in milliseconds */
+    public long getTimeout() {
+        return this.timeoutMs;
+    }
+
+    /** Set how long a lock request may wait before its transaction aborts. */
+    public void setTimeout(long timeoutMs) {
+        this.timeoutMs = timeoutMs;
     }
 
     // return if (tid, pid) has a lock
     public boolean holdsLock(TransactionId tid, PageId pid){
-        if (readLocks.containsKey(pid)){
-            if(readLocks.get(pid).contains(tid)) return true;
-        }
-        if (writeLocks.containsKey(pid)){
-            if(writeLocks.get(pid).equals(tid)) return true;
-        }
-        return false;
-    }
-
-    // Jack lab3 modification (remove Interrupt exception)
-    // timeouts deadlock detection method added
-    public void acquireLock(TransactionId tid, PageId pid, Permissions p, boolean selfAbort)
-            throws TransactionAbortedException, RuntimeException{
-
-        // Add thread for sleep function
-        Thread thread = new Thread();
-
-        // if lock did not receive, sleep 10 millis and try again
-        boolean getLock = false;
-        if(p.equals(Permissions.READ_ONLY)){
-            long startTime = System.nanoTime();
-            getLock = acquireReadLock(tid, pid);
-            while(!getLock) {
-                System.out.println("Read blocked for 10 ms  ("+pid+"  "+ tid+ ")");
-                try {
-                    thread.sleep(10);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-                long endTime = System.nanoTime();
-                long duration = (endTime - startTime) / 1000000; // in milliseconds
-                if (duration >= 100) {
-                    if (selfAbort) throw new TransactionAbortedException();
-                    else throw new RuntimeException();
-                }
-                else getLock = acquireReadLock(tid, pid);
-            }
-
-        } else if (p.equals(Permissions.READ_WRITE)) {
-            long startTime = System.nanoTime();
-            getLock = acquireWriteLock(tid, pid);
-            while(!getLock) {
-                System.out.println("Write blocked for 10 ms ("+pid+"  "+ tid+ ")");
-                try {
-                    thread.sleep(10);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-                long endTime = System.nanoTime();
-                long duration = (endTime - startTime) / 1000000; // in milliseconds
-                if (duration >= 100) {
-                    if (selfAbort) throw new TransactionAbortedException();
-                    else throw new RuntimeException();
-                }
-                getLock = acquireWriteLock(tid, pid);
-            }
+        latch.lock();
+        try {
+            LockQueue q = queues.get(pid);
+            return (q != null && q.granted(tid) != null) || tableCovers(tid, pid.getTableId(), LockMode.SHARED);
+        } finally {
+            latch.unlock();
         }
     }
 
-    // return true if a read lock is available
-    public synchronized boolean acquireReadLock(TransactionId tid, PageId pid){
+    /** @return true if tid holds a table lock giving it mode on every page of the table */
+    private boolean tableCovers(TransactionId tid, int tableId, LockMode mode) {
+        LockQueue q = queues.get(new TableLock(tableId));
+        if (q == null) return false;
+        Request held = q.granted(tid);
+        return held != null && held.mode.covers(mode);
+    }
 
-        //case if already have a read lock
-        if (readLocks.containsKey(pid)){
-            if (readLocks.get(pid).contains(tid)) {
-                System.out.println("Read lock already have when read ("+pid+"  "+ tid+ ")");
-                return true;
-            }
+    /** @return true if tid holds a lock on the record, directly or through its table */
+    public boolean holdsLock(TransactionId tid, RecordId rid) {
+        latch.lock();
+        try {
+            LockQueue q = queues.get(rid);
+            return (q != null && q.granted(tid) != null)
+                    || tableCovers(tid, rid.getPageId().getTableId(), LockMode.SHARED);
+        } finally {
+            latch.unlock();
         }
+    }
+
+    /**
+     * Acquire a lock on pid in the mode required by p, blocking until it is
+     * granted.
+     *
+     * @throws TransactionAbortedException if tid was chosen as the victim of
+     *         a deadlock or the lock timeout expired
+     */
+    public void acquireLock(TransactionId tid, PageId pid, Permissions p)
+            throws TransactionAbortedException {
+        acquireBelowTable(tid, pid.getTableId(), pid, LockMode.forPermissions(p));
+    }
 
-        if (writeLocks.containsKey(pid)){
-            //case if already have a write lock
-            if (writeLocks.get(pid).equals(tid)) {
-                System.out.println("Write lock already have when read ("+pid+"  "+ tid+ ")");
-                return true;
+    /**
+     * Acquire a lock on one tuple in the mode required by p, blocking until
+     * it is granted.  Used for tables locked with RECORD granularity.
+     *
+     * @throws TransactionAbortedException if tid was chosen as the victim of
+     *         a deadlock or the lock timeout expired
+     */
+    public void acquireLock(TransactionId tid, RecordId rid, Permissions p)
+            throws TransactionAbortedException {
+        acquireBelowTable(tid, rid.getPageId().getTableId(), rid, LockMode.forPermissions(p));
+    }
+
+    /**
+     * Acquire only the intention lock a transaction needs on a table before
+     * it reads (IS) or writes (IX) some of its records.
+     *
+     * @throws TransactionAbortedException if tid was chosen as the victim of
+     *         a deadlock or the lock timeout expired
+     */
+    public void acquireIntentionLock(TransactionId tid, int tableId, Permissions p)
+            throws TransactionAbortedException {
+        LockMode mode = LockMode.forPermissions(p);
+        latch.lock();
+        try {
+            if (tableCovers(tid, tableId, mode)) return;
+            acquire(tid, new TableLock(tableId), mode.intention());
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /**
+     * Grant a lock on one tuple in the mode required by p only if that can
+     * be done without waiting.  The caller must already hold the intention
+     * lock on the record's table.
+     *
+     * @return true if tid now holds the lock
+     */
+    public boolean tryAcquireLock(TransactionId tid, RecordId rid, Permissions p) {
+        LockMode mode = LockMode.forPermissions(p);
+        latch.lock();
+        try {
+            if (tableCovers(tid, rid.getPageId().getTableId(), mode)) return true;
+            LockQueue q = queues.get(rid);
+            if (q == null) {
+                q = new LockQueue(latch.newCondition());
+                queues.put(rid, q);
+            }
+            Request held = q.granted(tid);
+            if (held != null && held.mode.covers(mode)) return true;
+            Request req = new Request(tid, held == null ? mode : held.mode.combine(mode), held != null, q);
+            // do not overtake waiters: they would otherwise starve
+            boolean waiters = false;
+            for (Request r : q.requests) {
+                if (!r.granted) waiters = true;
             }
-            //false case, block
-            else {
-                System.out.println("Read lock blocked by other write ("+pid+"  "+ tid+ ")");
+            if (waiters || !isGrantable(q, req)) {
+                if (q.requests.isEmpty()) queues.remove(rid);
                 return false;
             }
+            if (held != null) q.requests.remove(held);
+            req.granted = true;
+            q.requests.addFirst(req);
+            recordGrant(tid, rid);
+            return true;
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /**
+     * Lock a page or record after the intention lock on its table, then
+     * escalate if tid now holds too many locks on that table.
+     */
+    private void acquireBelowTable(TransactionId tid, int tableId, Object resource, LockMode mode)
+            throws TransactionAbortedException {
+        TableLock table = new TableLock(tableId);
+        latch.lock();
+        try {
+            if (tableCovers(tid, tableId, mode)) return;
+            acquire(tid, table, mode.intention());
+            acquire(tid, resource, mode);
+            Map<Integer, Integer> counts = lockCounts.get(tid);
+            if (counts != null && counts.getOrDefault(tableId, 0) > this.escalationThreshold) {
+                tryEscalate(tid, table);
+            }
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /**
+     * Replace tid's page or record locks on a table by one table lock, if
+     * the table lock can be granted without waiting.  Caller holds the latch.
+     */
+    private void tryEscalate(TransactionId tid, TableLock table) {
+        List<Object> children = new ArrayList<>();
+        boolean wrote = false;
+        for (Object resource : tidLocks.get(tid)) {
+            Integer tableId = tableOf(resource);
+            if (tableId == null || tableId != table.tableId) continue;
+            children.add(resource);
+            wrote |= queues.get(resource).granted(tid).mode.isWrite();
         }
+        LockQueue q = queues.get(table);
+        Request held = q.granted(tid);
+        LockMode target = wrote ? LockMode.EXCLUSIVE : LockMode.SHARED;
+        Request escalated = new Request(tid, held.mode.combine(target), true, q);
+        if (!isGrantable(q, escalated)) return;
+        q.requests.remove(held);
+        escalated.granted = true;
+        q.requests.addFirst(escalated);
+        escalations++;
 
-        // Add a new read lock
-        System.out.println("New read lock     ("+pid+"  "+ tid+ ")");
-        newLock(tid, pid, Permissions.READ_ONLY);
-        return true;
+        for (Object resource : children) {
+            release(tid, resource);
+        }
     }
 
-    public synchronized boolean acquireWriteLock(TransactionId tid, PageId pid){
-        if (writeLocks.containsKey(pid)){
-            //case if already have a write lock
-            if (writeLocks.get(pid).equals(tid)) {
-                //    System.out.println("Write lock already have when write ("+pid+"  "+ tid+ ")");
-                return true;
+    /** @return the table a page or record lock belongs to, or null for table locks */
+    private static Integer tableOf(Object resource) {
+        if (resource instanceof PageId) return ((PageId) resource).getTableId();
+        if (resource instanceof RecordId) return ((RecordId) resource).getPageId().getTableId();
+        return null;
+    }
+
+    /**
+     * Acquire a lock on a resource, blocking until it is granted.
+     *
+     * @throws TransactionAbortedException if tid was chosen as the victim of
+     *         a deadlock, the request timed out or the waiting thread was
+     *         interrupted
+     */
+    void acquire(TransactionId tid, Object resource, LockMode mode)
+            throws TransactionAbortedException {
+        latch.lock();
+        try {
+            LockQueue q = queues.get(resource);
+            if (q == null) {
+                q = new LockQueue(latch.newCondition());
+                queues.put(resource, q);
             }
-            //false case, block
-            else {
-                System.out.println("Write lock blocked by other write ("+pid+"  "+ tid+ ")");
-                return false;
+            Request held = q.granted(tid);
+            if (held != null && held.mode.covers(mode)) return;
+
+            Request req = new Request(tid, held == null ? mode : held.mode.combine(mode), held != null, q);
+            q.enqueue(req);
+            grant(q);
+            if (!req.granted) {
+                waiting.put(tid, req);
+                resolveDeadlocks(req);
             }
+
+            long left = TimeUnit.MILLISECONDS.toNanos(this.timeoutMs);
+            try {
+                while (!req.granted) {
+                    if (req.aborted || left <= 0) {
+                        abandon(q, resource, req);
+                        throw new TransactionAbortedException();
+                    }
+                    try {
+                        left = q.changed.awaitNanos(left);
+                    } catch (InterruptedException e) {
+                        abandon(q, resource, req);
+                        Thread.currentThread().interrupt();
+                        throw new TransactionAbortedException();
+                    }
+                }
+            } finally {
+                waiting.remove(tid);
+            }
+
+            recordGrant(tid, resource);
+        } finally {
+            latch.unlock();
         }
+    }
 
-        if (!readLocks.containsKey(pid)){
-            //No other read lock
-            System.out.println("New Write lock    ("+pid+"  "+ tid+ ")");
-            this.newLock(tid, pid, Permissions.READ_WRITE);
-            return true;
-        } else {
-            //case if only a self read lock exist, upgrade to a write lock
-            if (readLocks.get(pid).contains(tid) && readLocks.get(pid).size() == 1) {
-                releasePage(tid, pid);
-                newLock(tid, pid, Permissions.READ_WRITE);
-                System.out.println("Upgrade Write lock ("+pid+"  "+ tid+ ")");
-                return true;
+    /** Remember that tid holds a lock on resource; caller holds the latch. */
+    private void recordGrant(TransactionId tid, Object resource) {
+        Set<Object> resources = tidLocks.get(tid);
+        if (resources == null) {
+            resources = new HashSet<>();
+            tidLocks.put(tid, resources);
+        }
+        Integer tableId = tableOf(resource);
+        if (resources.add(resource) && tableId != null) {
+            countLock(tid, tableId, 1);
+        }
+    }
+
+    /** Withdraw a waiting request; requests behind it may now be grantable. */
+    private void abandon(LockQueue q, Object resource, Request req) {
+        if (!q.requests.remove(req)) return;
+        if (q.requests.isEmpty()) queues.remove(resource);
+        else grant(q);
+    }
+
+    /**
+     * Break every deadlock the newly blocked request closes.  Each cycle is
+     * broken by aborting one of its members; if that is not the requester,
+     * the victim's own thread is woken to withdraw its request and abort.
+     */
+    private void resolveDeadlocks(Request req) {
+        List<TransactionId> cycle;
+        while (!req.aborted && (cycle = findCycle(req.tid)) != null) {
+            deadlocks++;
+            TransactionId victim = chooseVictim(cycle);
+            Request victimReq = waiting.remove(victim);
+            victimReq.aborted = true;
+            // drop the request now so the rest of the graph no longer waits on it
+            victimReq.queue.requests.remove(victimReq);
+            grant(victimReq.queue);
+            victimReq.queue.changed.signalAll();
+            Debug.log("deadlock among %s, aborting %d", cycle, victim.getId());
+        }
+    }
+
+    /** @return the transactions req.tid waits for in the waits-for graph */
+    private Set<TransactionId> blockers(Request req) {
+        Set<TransactionId> result = new HashSet<>();
+        for (Request r : req.queue.requests) {
+            if (r == req) continue;
+            if (r.tid.equals(req.tid) || r.mode.isCompatible(req.mode)) continue;
+            // holders block us, and so do incompatible requests queued ahead
+            if (r.granted || req.queue.requests.indexOf(r) < req.queue.requests.indexOf(req)) {
+                result.add(r.tid);
             }
-            //false case, block
-            System.out.println("Write lock blocked by other read ("+pid+"  "+ tid+ ")");
-            return false;
         }
+        return result;
     }
 
-    //Add a new lock if permitted from acquirement
-    public void newLock(TransactionId tid, PageId pid, Permissions p) {
-        //New lock add to pid Maps
-        if(p.equals(Permissions.READ_ONLY)){
-            if (! readLocks.containsKey(pid)) {
-                readLocks.put(pid, new HashSet<TransactionId>());
+    /**
+     * Depth-first search of the waits-for graph for a cycle through start.
+     *
+     * @return the transactions on the cycle, or null if there is none
+     */
+    private List<TransactionId> findCycle(TransactionId start) {
+        Deque<TransactionId> path = new ArrayDeque<>();
+        Deque<Iterator<TransactionId>> pending = new ArrayDeque<>();
+        Set<TransactionId> visited = new HashSet<>();
+        path.push(start);
+        pending.push(blockers(waiting.get(start)).iterator());
+        visited.add(start);
+        while (!pending.isEmpty()) {
+            Iterator<TransactionId> next = pending.peek();
+            if (!next.hasNext()) {
+                pending.pop();
+                path.pop();
+                continue;
             }
-            readLocks.get(pid).add(tid);
-        } else if (p.equals(Permissions.READ_WRITE)) {
-            writeLocks.put(pid, tid);
-        } else {
-            System.out.println("Error when adding new Lock ("+pid+"  "+ tid+ ")");
-            return;
+            TransactionId t = next.next();
+            if (t.equals(start)) {
+                List<TransactionId> cycle = new ArrayList<>(path);
+                Collections.reverse(cycle);
+                return cycle;
+            }
+            Request blocked = waiting.get(t);
+            // only waiting transactions have outgoing edges
+            if (blocked == null || !visited.add(t)) continue;
+            path.push(t);
+            pending.push(blockers(blocked).iterator());
         }
+        return null;
+    }
 
-        //New lock add to tid Map
-        if (!tidLocks.containsKey(tid)) tidLocks.put(tid, new HashSet<>());
-        if (!tidLocks.get(tid).contains(pid)) tidLocks.get(tid).add(pid);
+    private TransactionId chooseVictim(List<TransactionId> cycle) {
+        TransactionId victim = null;
+        for (TransactionId t : cycle) {
+            if (victim == null || victimCost(t) < victimCost(victim)
+                    || (victimCost(t) == victimCost(victim) && t.getId() > victim.getId())) {
+                victim = t;
+            }
+        }
+        return victim;
+    }
+
+    /** @return how much work aborting t throws away under the current policy; ties abort the youngest */
+    private long victimCost(TransactionId t) {
+        Set<Object> held = tidLocks.get(t);
+        switch (this.victimPolicy) {
+            case FEWEST_LOCKS:
+                return held == null ? 0 : held.size();
+            case LEAST_WORK:
+                long exclusive = 0;
+                if (held != null) {
+                    for (Object resource : held) {
+                        Request r = queues.get(resource).granted(t);
+                        if (r != null && r.mode.isWrite()) exclusive++;
+                    }
+                }
+                return exclusive;
+            default:
+                return -t.getId();
+        }
+    }
+
+    /**
+     * Grant waiting requests in queue order until one conflicts with the
+     * granted set, and wake the waiters if anything was granted.
+     */
+    private void grant(LockQueue q) {
+        boolean changed = false;
+        for (Request r : new ArrayList<>(q.requests)) {
+            if (r.granted) continue;
+            if (!isGrantable(q, r)) break;
+            if (r.upgrade) {
+                // the exclusive lock replaces the shared one it upgrades
+                q.requests.remove(q.granted(r.tid));
+            }
+            r.granted = true;
+            changed = true;
+        }
+        if (changed) q.changed.signalAll();
     }
 
+    private boolean isGrantable(LockQueue q, Request req) {
+        for (Request r : q.requests) {
+            if (r.granted && !r.tid.equals(req.tid) && !r.mode.isCompatible(req.mode)) return false;
+        }
+        return true;
+    }
 
     // remove a single lock on (tid, pid)
     public void releasePage(TransactionId tid, PageId pid) {
-        //System.out.println("Entered RP ("+pid+"  "+ tid+ ")");
-        if (readLocks.containsKey(pid)) {
-            //remove certain tid in the pid set
-            if (readLocks.get(pid).contains(tid)) {
-                System.out.println("remove read lock  ("+pid+"  "+ tid+ ")");
-                readLocks.get(pid).remove(tid);
-            }
-            //remove pid if no tid remained
-            if (readLocks.get(pid).isEmpty()){
-                readLocks.remove(pid);
-            }
+        latch.lock();
+        try {
+            release(tid, pid);
+        } finally {
+            latch.unlock();
         }
-        if (writeLocks.containsKey(pid)) {
-            System.out.println("remove write lock ("+pid+"  "+ tid+ ")");
-            writeLocks.remove(pid);
+    }
+
+    // remove a single lock on (tid, rid)
+    public void releaseRecord(TransactionId tid, RecordId rid) {
+        latch.lock();
+        try {
+            release(tid, rid);
+        } finally {
+            latch.unlock();
         }
+    }
 
-        // remove lock on tid
-        if (!readLocks.containsKey(pid) && !writeLocks.containsKey(pid) && tidLocks.containsKey(tid)) {
-            if (tidLocks.get(tid).contains(pid)) {
-                tidLocks.get(tid).remove(pid);
+    /** Release every lock tid holds on the resource; caller holds the latch. */
+    private void release(TransactionId tid, Object resource) {
+        LockQueue q = queues.get(resource);
+        if (q != null) {
+            Iterator<Request> it = q.requests.iterator();
+            while (it.hasNext()) {
+                Request r = it.next();
+                if (r.granted && r.tid.equals(tid)) it.remove();
             }
-            if (tidLocks.get(tid).isEmpty()){
-                tidLocks.remove(tid);
+            if (q.requests.isEmpty()) queues.remove(resource);
+            else grant(q);
+        }
+        Set<Object> held = tidLocks.get(tid);
+        if (held != null) {
+            Integer tableId = tableOf(resource);
+            if (held.remove(resource) && tableId != null) {
+                countLock(tid, tableId, -1);
             }
+            if (held.isEmpty()) tidLocks.remove(tid);
         }
     }
 
-    // remove all locks on pid
-    public void releaseDiscardPage(PageId pid){
-        //System.out.println("Entered RDP ("+pid+"  "+  ")");
-        if (readLocks.containsKey(pid)){
-            for (TransactionId tid : readLocks.get(pid)){
-                releasePage(tid, pid);
-            }
-        }
-        if (writeLocks.containsKey(pid)) {
-            releasePage(writeLocks.get(pid), pid);
+    private void countLock(TransactionId tid, int tableId, int delta) {
+        Map<Integer, Integer> counts = lockCounts.get(tid);
+        if (counts == null) {
+            counts = new HashMap<>();
+            lockCounts.put(tid, counts);
         }
+        int count = counts.getOrDefault(tableId, 0) + delta;
+        if (count > 0) counts.put(tableId, count);
+        else counts.remove(tableId);
+        if (counts.isEmpty()) lockCounts.remove(tid);
     }
 
     // remove all lock on tid
     public void transactionComplete(TransactionId tid){
-        if (tidLocks.containsKey(tid)) {
-            if(!tidLocks.get(tid).isEmpty()) {
-                // ArrayList to prevent hashmap ConcurrentModificationException
-                ArrayList<PageId> pidList = new ArrayList<>();
-                for (PageId pid : tidLocks.get(tid)) {
-                    pidList.add(pid);
-                }
-                for (int i = 0; i < pidList.size(); i++){
-                    releasePage(tid, pidList.get(i));
-                }
+        latch.lock();
+        try {
+            Set<Object> held = tidLocks.get(tid);
+            if (held == null) return;
+            // copy to prevent ConcurrentModificationException
+            for (Object resource : new ArrayList<>(held)) {
+                release(tid, resource);
             }
+        } finally {
+            latch.unlock();
         }
     }
 
-//    public void abort(TransactionId tid){
-//        //To be added
-//
-//    }
-
 }
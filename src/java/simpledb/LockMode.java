@@ -0,0 +1,69 @@
+package simpledb;
+
+/**
+ * The modes in which LockManager grants locks.
+ * <p>
+ * Pages are locked SHARED or EXCLUSIVE.  Tables are locked in the intention
+ * modes by transactions that lock some of their pages, or SHARED/EXCLUSIVE
+ * when a transaction reads or writes the whole table (e.g. after lock
+ * escalation), following the usual multi-granularity protocol.
+ */
+public enum LockMode {
+    INTENTION_SHARED, INTENTION_EXCLUSIVE, SHARED, SHARED_INTENTION_EXCLUSIVE, EXCLUSIVE;
+
+    // COMPATIBLE[a][b]: can a lock in mode a be held while another transaction holds mode b
+    private static final boolean[][] COMPATIBLE = {
+            //            IS     IX     S      SIX    X
+            /* IS  */ { true,  true,  true,  true,  false },
+            /* IX  */ { true,  true,  false, false, false },
+            /* S   */ { true,  false, true,  false, false },
+            /* SIX */ { true,  false, false, false, false },
+            /* X   */ { false, false, false, false, false },
+    };
+
+    // COVERS[a][b]: does holding mode a give at least the rights of mode b
+    private static final boolean[][] COVERS = {
+            //            IS     IX     S      SIX    X
+            /* IS  */ { true,  false, false, false, false },
+            /* IX  */ { true,  true,  false, false, false },
+            /* S   */ { true,  false, true,  false, false },
+            /* SIX */ { true,  true,  true,  true,  false },
+            /* X   */ { true,  true,  true,  true,  true  },
+    };
+
+    /** @return true if a lock in this mode can be held together with a lock in the other mode */
+    public boolean isCompatible(LockMode other) {
+        return COMPATIBLE[ordinal()][other.ordinal()];
+    }
+
+    /** @return true if holding this mode gives at least the rights of the other mode */
+    public boolean covers(LockMode other) {
+        return COVERS[ordinal()][other.ordinal()];
+    }
+
+    /**
+     * @return the weakest mode that covers both this mode and the other,
+     *   i.e. the mode a lock held in this mode is upgraded to
+     */
+    public LockMode combine(LockMode other) {
+        if (covers(other)) return this;
+        if (other.covers(this)) return other;
+        // the only incomparable pair: S and IX
+        return SHARED_INTENTION_EXCLUSIVE;
+    }
+
+    /** @return true if this mode allows writing the locked resource or its children */
+    public boolean isWrite() {
+        return this == INTENTION_EXCLUSIVE || this == SHARED_INTENTION_EXCLUSIVE || this == EXCLUSIVE;
+    }
+
+    /** @return the lock mode needed on a page for the given permissions */
+    public static LockMode forPermissions(Permissions p) {
+        return p.equals(Permissions.READ_WRITE) ? EXCLUSIVE : SHARED;
+    }
+
+    /** @return the intention mode needed on a table before locking one of its pages in the given mode */
+    public LockMode intention() {
+        return isWrite() ? INTENTION_EXCLUSIVE : INTENTION_SHARED;
+    }
+}
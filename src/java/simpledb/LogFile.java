@@ -3,8 +3,13 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
-import java.lang.reflect.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /**
  LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -16,57 +21,134 @@ import java.util.concurrent.ConcurrentHashMap;
  <p>
 
  Many of the methods here are synchronized (to prevent concurrent log
- writes from happening); many of the methods in BufferPool are also
- synchronized (for similar reasons.)  Problem is that BufferPool writes
- log records (on page flushed) and the log file flushes BufferPool
- pages (on checkpoints and recovery.)  This can lead to deadlock.  For
- that reason, any LogFile operation that needs to access the BufferPool
- must not be declared synchronized and must begin with a block like:
+ writes from happening).  HeapFile logs each change while it holds the
+ latch (monitor) of the page it changes, and BufferPool forces the log
+ while holding a partition latch and the latch of the page it is about
+ to write.  So the LogFile monitor is always taken last: code holding it
+ must never latch a page or a BufferPool partition.  Operations that
+ change pages (rollback, checkpoints and recovery) read the log under the
+ monitor and change the pages outside of it, taking the monitor again
+ for every compensation record they append.
 
  <p>
- <pre>
- synchronized (Database.getBufferPool()) {
- synchronized (this) {
+ <u> Log buffer: </u>
+ <p>
+
+ Records are not written to the file field by field.  They are assembled
+ in a direct ByteBuffer and written to the segments
+ when the buffer fills up or when the log is forced.  A record's LSN is
+ the log offset at which it starts, so {@link #force(long)} only writes
+ and syncs the buffer if the requested record is not yet durable.  Code
+ that reads the log back must first call writeBuffer() (all such
+ code already holds the monitor).
+
+ <p>
+ <u> Log offsets: </u>
+ <p>
+
+ Log offsets (LSNs) keep growing for the life of the database: they are
+ stored in pages as pageLSNs, so they must not move when the log is
+ truncated or thrown away.  The log file itself only holds a header; the
+ records are stored in segment files of a fixed size next to it (see
+ {@link LogSegments}).  Truncation moves the offset of the first record
+ in the header forward and deletes the segments before it.
 
- ..
+ <p>
+ <u> Background checkpoints: </u>
+ <p>
 
- }
- }
- </pre>
+ With a checkpoint interval set, a background thread takes a checkpoint
+ at every interval.  First it writes the pages that are still dirty since
+ before the previous checkpoint, so each checkpoint lets truncation move
+ past the previous one and the log stays about two intervals long.
+
+ <p>
+ <u> Recovery: </u>
+ <p>
+
+ Recovery follows ARIES.  Every TuplePage holds the LSN of the last record
+ applied to it (its pageLSN), and BufferPool knows the LSN of the first
+ change to each dirty page since it was written (its recLSN).
+ Checkpoints are fuzzy: they flush nothing, but log the transaction
+ table and the dirty page table.  Analysis rebuilds both tables from the
+ last checkpoint on; redo then repeats history from the smallest recLSN,
+ skipping records that the dirty page table or the pageLSN shows are
+ already on disk, and undo rolls the losers back with CLRs.
+
+ <p> Redo is spread over a pool of threads (simpledb.RedoThreads, one
+ per core by default).  The changes are grouped by page, and each page is
+ redone by a single task, so changes to one page keep their log order
+ while different pages are redone in parallel.  Since a change stores the
+ whole tuple or clears the slot, only the last change to each slot needs
+ to be applied; each page is fetched once and its pageLSN is set to its
+ last change.
+
+ <p>
+ <u> Group commit: </u>
+ <p>
+
+ logCommit appends its record under the LogFile monitor but waits for it
+ to reach the disk outside of it.  The first committer that finds no
+ flush in progress becomes the leader: it waits up to the group commit
+ delay for more commits to join (or until the batch is full), then
+ forces everything appended so far with one fsync, which makes all the
+ waiting followers durable too.  Committers that arrive during a flush
+ wait for the next one.  The fsync itself runs without the monitor, so
+ other transactions keep appending meanwhile.
  */
 
 /**
- <p> The format of the log file is as follows:
+ <p> The format of the log (its header file followed by the contents of
+ its segments) is as follows:
 
  <ul>
 
  <li> The first long integer of the file represents the offset of the
  last written checkpoint, or -1 if there are no checkpoints
 
+ <li> The second long integer is the offset of the first record in the
+ file.  The first file of a log starts right after the header; offsets
+ are not reset when the log is truncated or restarted.
+
  <li> All additional data in the log consists of log records.  Log
  records are variable length.
 
  <li> Each log record begins with an integer type and a long integer
  transaction id.
 
- <li> Each log record ends with a long integer file offset representing
- the position in the log file where the record began.
+ <li> Each log record ends with a long integer log offset representing
+ the position in the log where the record began.
 
- <li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
- CHECKPOINT
+ <li> There are seven record types: ABORT, COMMIT, BEGIN, CHECKPOINT,
+ INSERT, DELETE and CLR.  (Type 3, UPDATE, held full before and after
+ page images and is no longer written.)
 
  <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
- <li>UPDATE RECORDS consist of two entries, a before image and an
- after image.  These images are serialized Page objects, and can be
- accessed with the LogFile.readPageData() and LogFile.writePageData()
- methods.  See LogFile.print() for an example.
-
- <li> CHECKPOINT records consist of active transactions at the time
- the checkpoint was taken and their first log record on disk.  The format
- of the record is an integer count of the number of transactions, as well
- as a long integer transaction id and a long integer first record offset
- for each active transaction.
+ <li> INSERT and DELETE records log one change to one TuplePage slot.
+ After the transaction id they hold the offset of the transaction's
+ previous INSERT, DELETE or CLR record (or -1), then the table id, page
+ number and slot number, and the length and bytes of the tuple that was
+ inserted or deleted, serialized as in a HeapPage slot whatever the
+ page's format.  Redo sets or clears the
+ slot, undo does the opposite; both can be applied more than once.
+
+ <li> CLR (compensation) records log the undo of an INSERT or DELETE
+ record during rollback or recovery.  After the previous record offset
+ they hold the offset of the next record of the transaction still to be
+ undone (the undone record's previous record) and the type of slot change
+ that redoes them, followed by the same fields as INSERT and DELETE.  CLRs
+ are redone but never undone, so a rollback interrupted by a crash
+ resumes where it stopped.
+
+ <li> CHECKPOINT records consist of the transaction table and the dirty
+ page table at the time the checkpoint was taken.  The format of the
+ record is an integer count of the number of active transactions, and a
+ long integer transaction id, first record offset and last INSERT, DELETE
+ or CLR record offset (or -1) for each; then an integer count of the
+ number of dirty pages, and an integer table id, integer page number and
+ long integer recLSN for each.  Records before the checkpoint, the first
+ records and the recLSNs are not needed anymore and are truncated.
 
  </ul>
 
@@ -80,19 +162,91 @@ public class LogFile {
 
     static final int ABORT_RECORD = 1;
     static final int COMMIT_RECORD = 2;
-    static final int UPDATE_RECORD = 3;
+    static final int UPDATE_RECORD = 3; // no longer written
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int INSERT_RECORD = 6;
+    static final int DELETE_RECORD = 7;
+    static final int CLR_RECORD = 8;
     static final long NO_CHECKPOINT_ID = -1;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
+    // checkpoint offset and offset of the first record
+    final static int HEADER_SIZE = 2 * LONG_SIZE;
+
+    // the segment files holding the records, and a stream reading them
+    private final LogSegments segments;
+    private final LogSegments.Reader reader;
+    private final DataInputStream in;
+    // log offset of the first record; protected by this
+    long firstLsn = HEADER_SIZE;
+    // log offset of the last checkpoint, or NO_CHECKPOINT_ID; protected by this
+    long lastCheckpoint = NO_CHECKPOINT_ID;
 
     long currentOffset = -1;//protected by this
     //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
+    // offset of the last INSERT, DELETE or CLR record of each transaction,
+    // where its rollback starts; protected by this
+    HashMap<Long,Long> tidToLastLogRecord = new HashMap<Long,Long>();
+
+    /** System property setting the longest time, in microseconds, a group
+     commit leader waits for more commits before forcing the log. */
+    public static final String GROUP_COMMIT_DELAY_PROPERTY = "simpledb.GroupCommitDelay";
+
+    /** System property setting the number of waiting commits at which the
+     leader stops waiting and forces the log. */
+    public static final String GROUP_COMMIT_BATCH_PROPERTY = "simpledb.GroupCommitBatch";
+
+    public static final int DEFAULT_GROUP_COMMIT_BATCH = 32;
+
+    long appendSeq = 0; // number of records appended so far; protected by this
+
+    /** System property setting the size of the log buffer in bytes. */
+    public static final String LOG_BUFFER_PROPERTY = "simpledb.LogBufferSize";
+
+    public static final int DEFAULT_LOG_BUFFER_SIZE = 1 << 20;
+
+    /** System property setting the size of log segment files in bytes;
+     it must not change while a log exists. */
+    public static final String LOG_SEGMENT_PROPERTY = "simpledb.LogSegmentSize";
+
+    public static final long DEFAULT_LOG_SEGMENT_SIZE = 16 << 20;
+
+    /** System property setting the number of threads redoing changes
+     during recovery; defaults to the number of cores. */
+    public static final String REDO_THREADS_PROPERTY = "simpledb.RedoThreads";
+
+    /** System property setting the interval, in milliseconds, at which a
+     background thread takes checkpoints; 0 (the default) turns it off. */
+    public static final String CHECKPOINT_INTERVAL_PROPERTY = "simpledb.CheckpointInterval";
+
+    private Thread checkpointer;
+    // guards checkpointing; the checkpointer waits on it between rounds
+    private final Object checkpointerSleep = new Object();
+    private boolean checkpointing = false;
+
+    // records appended but not yet written to the file; protected by this
+    private final ByteBuffer logBuffer;
+    // the DataOutput records are appended through; writes into logBuffer
+    private final DataOutputStream out;
+    // log offset at which logBuffer's contents go; protected by this
+    long writtenOffset = 0;
+    // offset up to which the log is known to be on disk; protected by this
+    long durableOffset = 0;
+
+    // group commit state, protected by groupLock (which is taken after this, never before)
+    private final Object groupLock = new Object();
+    private long durableSeq = 0; // records up to this appendSeq are on disk
+    private boolean flushing = false;
+    private int waitingCommits = 0;
+    private long commitForces = 0;
+    private long durableCommits = 0;
+    private volatile long groupCommitDelayMicros = Long.getLong(GROUP_COMMIT_DELAY_PROPERTY, 0);
+    private volatile int groupCommitBatch = Integer.getInteger(GROUP_COMMIT_BATCH_PROPERTY, DEFAULT_GROUP_COMMIT_BATCH);
 
     /** Constructor.
      Initialize and back the log file with the specified file.
@@ -109,6 +263,14 @@ public class LogFile {
         this.logFile = f;
         raf = new RandomAccessFile(f, "rw");
         recoveryUndecided = true;
+        logBuffer = ByteBuffer.allocateDirect(Integer.getInteger(LOG_BUFFER_PROPERTY, DEFAULT_LOG_BUFFER_SIZE));
+        out = new DataOutputStream(new LogBufferStream());
+        segments = new LogSegments(f, Long.getLong(LOG_SEGMENT_PROPERTY, DEFAULT_LOG_SEGMENT_SIZE));
+        reader = segments.new Reader();
+        in = new DataInputStream(reader);
+
+        long interval = Long.getLong(CHECKPOINT_INTERVAL_PROPERTY, 0);
+        if (interval > 0) startCheckpointer(interval);
 
         // install shutdown hook to force cleanup on close
         // Runtime.getRuntime().addShutdownHook(new Thread() {
@@ -121,18 +283,111 @@ public class LogFile {
         // may not match tableids in the current catalog.
     }
 
+    /** Appends into logBuffer, writing the buffer out whenever it is full.
+     Only used with the LogFile monitor held. */
+    private class LogBufferStream extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {
+            if (!logBuffer.hasRemaining()) writeBuffer();
+            logBuffer.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (!logBuffer.hasRemaining()) writeBuffer();
+                int n = Math.min(len, logBuffer.remaining());
+                logBuffer.put(b, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+    }
+
+    /** @return the log offset the next record will start at, i.e. its LSN */
+    private long endOffset() {
+        return writtenOffset + logBuffer.position();
+    }
+
+    /** Write the buffered records to the segments (without syncing them).
+     Caller holds this monitor. */
+    void writeBuffer() throws IOException {
+        logBuffer.flip();
+        int n = logBuffer.remaining();
+        segments.write(logBuffer, writtenOffset);
+        writtenOffset += n;
+        logBuffer.clear();
+    }
+
+    /** Drop anything buffered and continue appending at the end of the
+     stored log.  Caller holds this monitor. */
+    private void resetAppendOffset() throws IOException {
+        logBuffer.clear();
+        writtenOffset = Math.max(firstLsn, segments.end());
+        durableOffset = Math.min(durableOffset, writtenOffset);
+        currentOffset = writtenOffset;
+    }
+
+    /** Position the log reader at the record starting at the given log
+     offset.  Caller holds this monitor. */
+    private void seek(long lsn) throws IOException {
+        reader.seek(lsn);
+    }
+
+    /** @return the log offset of the next record the log reader reads */
+    private long position() throws IOException {
+        return reader.position();
+    }
+
+    /** @return the log offset of the first record */
+    private long firstOffset() {
+        return firstLsn;
+    }
+
+    /** Throw away the log and start an empty one whose first record goes
+     at the given offset.  Caller holds this monitor. */
+    private void startLog(long first) throws IOException {
+        segments.deleteAll();
+        raf.seek(0);
+        raf.setLength(0);
+        raf.writeLong(NO_CHECKPOINT_ID);
+        raf.writeLong(first);
+        firstLsn = first;
+        lastCheckpoint = NO_CHECKPOINT_ID;
+        durableOffset = first;
+        resetAppendOffset();
+    }
+
+    /** @return the offset right after the stored log, where a new log must
+     start so that its offsets stay above every pageLSN, or the offset of
+     the first record of a brand new log */
+    private long endOfExistingLog() throws IOException {
+        long end = HEADER_SIZE;
+        if (raf.length() >= HEADER_SIZE) {
+            raf.seek(LONG_SIZE);
+            end = Math.max(end, raf.readLong());
+        }
+        return Math.max(end, segments.end());
+    }
+
+    /** Point the header at a new checkpoint or first record, and sync it.
+     Caller holds this monitor. */
+    private void writeHeader() throws IOException {
+        raf.seek(0);
+        raf.writeLong(lastCheckpoint);
+        raf.writeLong(firstLsn);
+        raf.getChannel().force(true);
+    }
+
     // we're about to append a log record. if we weren't sure whether the
     // DB wants to do recovery, we're sure now -- it didn't. So truncate
-    // the log.
+    // the log (but keep its offsets growing).
     void preAppend() throws IOException {
         totalRecords++;
+        appendSeq++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            startLog(endOfExistingLog());
         }
     }
 
@@ -145,155 +400,365 @@ public class LogFile {
      @param tid The aborting transaction.
      */
     public void logAbort(TransactionId tid) throws IOException {
-        // must have buffer pool lock before proceeding, since this
-        // calls rollback
-
-        synchronized (Database.getBufferPool()) {
-
-            synchronized(this) {
-                preAppend();
-                //Debug.log("ABORT");
-                //should we verify that this is a live transaction?
-
-                // must do this here, since rollback only works for
-                // live transactions (needs tidToFirstLogRecord)
-                rollback(tid);
-
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                force();
-                tidToFirstLogRecord.remove(tid.getId());
-            }
+        // rollback changes pages, so it must run without the monitor
+        rollback(tid);
+
+        synchronized(this) {
+            //Debug.log("ABORT");
+            //should we verify that this is a live transaction?
+            appendAbort(tid.getId());
+            force();
+            tidToFirstLogRecord.remove(tid.getId());
         }
     }
 
+    /** Append an ABORT record.  Caller holds this monitor. */
+    private void appendAbort(long tid) throws IOException {
+        preAppend();
+        out.writeInt(ABORT_RECORD);
+        out.writeLong(tid);
+        out.writeLong(currentOffset);
+        currentOffset = endOffset();
+    }
+
     /** Write a commit record to disk for the specified tid,
      and force the log to disk.
 
      @param tid The committing transaction.
      */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
+    public void logCommit(TransactionId tid) throws IOException {
+        long seq;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            out.writeInt(COMMIT_RECORD);
+            out.writeLong(tid.getId());
+            out.writeLong(currentOffset);
+            currentOffset = endOffset();
+            seq = appendSeq;
+            tidToFirstLogRecord.remove(tid.getId());
+            tidToLastLogRecord.remove(tid.getId());
+        }
+        awaitDurable(seq);
+    }
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    /**
+     * Block until the first seq records appended to the log are on disk,
+     * forcing the log on behalf of every waiting committer if no other
+     * thread is doing so.  Must not be called holding this monitor.
+     */
+    private void awaitDurable(long seq) throws IOException {
+        boolean interrupted = false;
+        synchronized (groupLock) {
+            waitingCommits++;
+            // a leader waiting for its batch to fill may now be done
+            groupLock.notifyAll();
+            while (durableSeq < seq && flushing) {
+                try {
+                    groupLock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (durableSeq >= seq) {
+                waitingCommits--;
+                durableCommits++;
+                if (interrupted) Thread.currentThread().interrupt();
+                return;
+            }
+            // we lead the next flush; give other commits a chance to join it
+            flushing = true;
+            long left = TimeUnit.MICROSECONDS.toNanos(this.groupCommitDelayMicros);
+            long deadline = System.nanoTime() + left;
+            while (waitingCommits < this.groupCommitBatch && left > 0 && !interrupted) {
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(groupLock, left);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+                left = deadline - System.nanoTime();
+            }
+        }
+
+        long target = 0;
+        boolean forced = false;
+        try {
+            long from, offset;
+            synchronized (this) {
+                writeBuffer();
+                target = appendSeq;
+                from = durableOffset;
+                offset = writtenOffset;
+            }
+            segments.sync(from, offset);
+            synchronized (this) {
+                durableOffset = Math.max(durableOffset, offset);
+            }
+            forced = true;
+        } finally {
+            synchronized (groupLock) {
+                flushing = false;
+                waitingCommits--;
+                if (forced) {
+                    durableSeq = Math.max(durableSeq, target);
+                    commitForces++;
+                    durableCommits++;
+                }
+                groupLock.notifyAll();
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+        }
     }
 
-    /** Write an UPDATE record to disk for the specified tid and page
-     (with provided         before and after images.)
-     @param tid The transaction performing the write
-     @param before The before image of the page
-     @param after The after image of the page
+    /** @return the LSN the next log record will get */
+    public synchronized long getNextLsn() {
+        return currentOffset;
+    }
 
-     @see simpledb.Page#getBeforeImage
-     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
-                                       Page after)
-            throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
-        preAppend();
-        /* update record conists of
+    /** @return the number of log forces performed on behalf of committing transactions */
+    public long getCommitForceCount() {
+        synchronized (groupLock) {
+            return commitForces;
+        }
+    }
 
-           record type
-           transaction id
-           before page data (see writePageData)
-           after page data
-           start offset
-        */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
+    /** @return the number of commits made durable so far */
+    public long getDurableCommitCount() {
+        synchronized (groupLock) {
+            return durableCommits;
+        }
+    }
 
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+    /** Set how long a group commit leader waits for more commits, in microseconds. */
+    public void setGroupCommitDelay(long micros) {
+        this.groupCommitDelayMicros = micros;
+    }
 
-        Debug.log("WRITE OFFSET = " + currentOffset);
+    /** Set the number of waiting commits at which a group commit leader stops waiting. */
+    public void setGroupCommitBatch(int batch) {
+        this.groupCommitBatch = batch;
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int pageInfo[] = pid.serialize();
+    /** An INSERT, DELETE or CLR record, as read back from the log. */
+    static class TupleChange {
+        int type;
+        long tid;
+        long lsn;
+        // the transaction's previous INSERT, DELETE or CLR record, or -1
+        long prevLsn;
+        // CLR only: the next record of the transaction still to undo, or -1
+        long undoNextLsn = -1;
+        // the slot change that redoes this record: INSERT_RECORD or DELETE_RECORD
+        int op;
+        HeapPageId pid;
+        int slot;
+        byte[] data;
+    }
 
-        //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
+    /** Write an INSERT record for a tuple tid just put into a slot of a
+     TuplePage, and make it the page's pageLSN.  The caller still holds the
+     page's latch, so the page is not written before the record.  The
+     pageLSN is set under this monitor, so a checkpoint never misses the
+     page in its dirty page table.
+     @param tid The transaction performing the insert
+     @param page The page the tuple was inserted into
+     @param slot The slot the tuple was inserted into
+     @param t The inserted tuple
+     @return the LSN of the record
+     */
+    public long logInsert(TransactionId tid, TuplePage page, int slot, Tuple t) throws IOException {
+        byte[] data = HeapPage.serializeTuple(t);
+        synchronized (this) {
+            long lsn = logTupleChange(INSERT_RECORD, tid.getId(), -1, INSERT_RECORD, page.getId(), slot, data);
+            page.setLsn(lsn);
+            return lsn;
+        }
+    }
 
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
+    /** Write a DELETE record for a tuple tid just removed from a slot of a
+     TuplePage; see {@link #logInsert}.
+     @param tid The transaction performing the delete
+     @param page The page the tuple was deleted from
+     @param slot The slot the tuple was deleted from
+     @param t The deleted tuple
+     @return the LSN of the record
+     */
+    public long logDelete(TransactionId tid, TuplePage page, int slot, Tuple t) throws IOException {
+        byte[] data = HeapPage.serializeTuple(t);
+        synchronized (this) {
+            long lsn = logTupleChange(DELETE_RECORD, tid.getId(), -1, DELETE_RECORD, page.getId(), slot, data);
+            page.setLsn(lsn);
+            return lsn;
+        }
+    }
 
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+    /** Append an INSERT, DELETE or CLR record and make it the head of the
+     transaction's undo chain.  Caller holds this monitor.
+     @param undoNext for a CLR, the next record to undo; ignored otherwise
+     @param op for a CLR, the slot change that redoes it; ignored otherwise
+     */
+    private long logTupleChange(int type, long tid, long undoNext, int op,
+                                PageId pid, int slot, byte[] data) throws IOException {
+        preAppend();
+        long lsn = currentOffset;
+        Long prev = tidToLastLogRecord.get(tid);
+        /* a tuple change record consists of
 
-        raf.writeInt(pageInfo.length);
-        for (int i = 0; i < pageInfo.length; i++) {
-            raf.writeInt(pageInfo[i]);
+           record type
+           transaction id
+           previous record of the transaction
+           (CLR only) next record to undo, redo slot change
+           table id, page number, slot number
+           tuple length, tuple bytes
+           start offset
+        */
+        out.writeInt(type);
+        out.writeLong(tid);
+        out.writeLong(prev == null ? -1 : prev);
+        if (type == CLR_RECORD) {
+            out.writeLong(undoNext);
+            out.writeInt(op);
         }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
+        out.writeInt(pid.getTableId());
+        out.writeInt(pid.getPageNumber());
+        out.writeInt(slot);
+        out.writeInt(data.length);
+        out.write(data);
+        out.writeLong(currentOffset);
+        currentOffset = endOffset();
+        tidToLastLogRecord.put(tid, lsn);
+        return lsn;
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
+    /** Read the INSERT, DELETE or CLR record starting at lsn.  Caller holds
+     this monitor and has written the log buffer out. */
+    private TupleChange readTupleChange(long lsn) throws IOException {
+        seek(lsn);
+        TupleChange c = new TupleChange();
+        c.lsn = lsn;
+        c.type = in.readInt();
+        c.tid = in.readLong();
+        readTupleChangeBody(in, c);
+        in.readLong();
+        return c;
+    }
 
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
+    /** Read the fields of a tuple change record that follow its type and
+     transaction id. */
+    private void readTupleChangeBody(DataInput in, TupleChange c) throws IOException {
+        if (c.type != INSERT_RECORD && c.type != DELETE_RECORD && c.type != CLR_RECORD) {
+            throw new IOException("Not a tuple change record, type = " + c.type);
+        }
+        c.prevLsn = in.readLong();
+        c.op = c.type;
+        if (c.type == CLR_RECORD) {
+            c.undoNextLsn = in.readLong();
+            c.op = in.readInt();
+        }
+        c.pid = new HeapPageId(in.readInt(), in.readInt());
+        c.slot = in.readInt();
+        c.data = new byte[in.readInt()];
+        in.readFully(c.data);
+    }
 
+    /** Redo the changes to each page in parallel, one task per page.  Must
+     not be called holding this monitor. */
+    private void redoAll(final TransactionId dirtier, Map<PageId, List<TupleChange>> changes)
+            throws IOException {
+        if (changes.isEmpty()) return;
+        int threads = Integer.getInteger(REDO_THREADS_PROPERTY, Runtime.getRuntime().availableProcessors());
+        threads = Math.max(1, Math.min(threads, changes.size()));
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
         try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object idArgs[] = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = raf.readInt();
+            List<Future<Void>> tasks = new ArrayList<Future<Void>>();
+            for (final List<TupleChange> pageChanges : changes.values()) {
+                tasks.add(pool.submit(new Callable<Void>() {
+                    public Void call() throws IOException {
+                        redoPage(dirtier, pageChanges);
+                        return null;
+                    }
+                }));
             }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
-
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
-
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+            for (Future<Void> task : tasks) {
+                task.get();
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            throw new IOException("redo failed: " + cause, cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("redo interrupted");
+        } finally {
+            pool.shutdownNow();
+        }
+    }
 
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
+    /** Redo the tuple change records of one page, in log order, on the
+     buffer pool's copy of it, skipping those the pageLSN shows the page
+     already has.  Only the last change to each slot is applied, and the
+     slots in the order of those changes: slots of a page share its free
+     space, so an insert may need the room of a delete logged before it.
+     Must not be called holding this monitor. */
+    private void redoPage(TransactionId dirtier, List<TupleChange> pageChanges) throws IOException {
+        TupleChange last = pageChanges.get(pageChanges.size() - 1);
+        TuplePage page = poolPage(last);
+        synchronized (page) {
+            if (page.getLsn() >= last.lsn) return;
+            // in the order of each slot's last change, i.e. log order
+            Map<Integer, TupleChange> bySlot = new LinkedHashMap<Integer, TupleChange>();
+            long first = 0;
+            for (TupleChange c : pageChanges) {
+                if (c.lsn <= page.getLsn()) continue;
+                if (first == 0) first = c.lsn;
+                bySlot.remove(c.slot);
+                bySlot.put(c.slot, c);
+            }
+            for (TupleChange c : bySlot.values()) {
+                apply(page, c.op, c);
+            }
+            // the recLSN is the first change redone, not the last
+            page.setRecLsn(first);
+            page.setLsn(last.lsn);
+            page.markDirty(true, dirtier);
+        }
+    }
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+    /** Undo an INSERT or DELETE record on the buffer pool's copy of its
+     page, logging a CLR for it.  Must not be called holding this monitor. */
+    private void undo(TransactionId dirtier, TupleChange c) throws IOException {
+        int op = c.type == INSERT_RECORD ? DELETE_RECORD : INSERT_RECORD;
+        TuplePage page = poolPage(c);
+        synchronized (page) {
+            apply(page, op, c);
+            synchronized (this) {
+                page.setLsn(logTupleChange(CLR_RECORD, c.tid, c.prevLsn, op, c.pid, c.slot, c.data));
+            }
+            page.markDirty(true, dirtier);
+        }
+    }
 
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException e){
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InstantiationException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (IllegalAccessException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InvocationTargetException e) {
-            e.printStackTrace();
-            throw new IOException();
+    private TuplePage poolPage(TupleChange c) throws IOException {
+        try {
+            return (TuplePage) Database.getBufferPool().getPageUnlocked(c.pid, null);
+        } catch (DbException e) {
+            throw new IOException("can't read page of log record at " + c.lsn + ": " + e.getMessage());
         }
-        return newPage;
+    }
 
+    /** Store c's tuple in its slot (INSERT_RECORD) or clear the slot
+     (DELETE_RECORD), and tell the file's free space map. */
+    private static void apply(TuplePage page, int op, TupleChange c) throws IOException {
+        try {
+            if (op == INSERT_RECORD) page.putTupleData(c.slot, c.data);
+            else page.clearSlot(c.slot);
+            DbFile file = Database.getCatalog().getDatabaseFile(c.pid.getTableId());
+            if (file instanceof HeapFile) ((HeapFile) file).noteFreeSlots(page);
+        } catch (DbException e) {
+            throw new IOException("can't apply log record at " + c.lsn + ": " + e.getMessage());
+        }
     }
 
     /** Write a BEGIN record for the specified transaction
@@ -308,51 +773,61 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
+        out.writeInt(BEGIN_RECORD);
+        out.writeLong(tid.getId());
+        out.writeLong(currentOffset);
         tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        currentOffset = endOffset();
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Checkpoint the log and write a checkpoint record.  The checkpoint
+     is fuzzy: it flushes no pages, but records the transaction table and
+     the dirty page table, so recovery can start from it. */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
+        synchronized (this) {
+            //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
+            preAppend();
+            // takes no latches, so it is safe under this monitor; every page
+            // changed by a record logged so far already has its recLSN
+            Map<PageId, Long> dirty = Database.getBufferPool().getDirtyPages();
+            long startCpOffset, endCpOffset;
+            Set<Long> keys = tidToFirstLogRecord.keySet();
+            Iterator<Long> els = keys.iterator();
+            startCpOffset = endOffset();
+            out.writeInt(CHECKPOINT_RECORD);
+            out.writeLong(-1); //no tid , but leave space for convenience
+
+            //write list of outstanding transactions
+            out.writeInt(keys.size());
+            while (els.hasNext()) {
+                Long key = els.next();
+                Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
+                out.writeLong(key);
+                //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
+                out.writeLong(tidToFirstLogRecord.get(key));
+                Long last = tidToLastLogRecord.get(key);
+                out.writeLong(last == null ? -1 : last);
+            }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+            //write dirty page table
+            out.writeInt(dirty.size());
+            for (Map.Entry<PageId, Long> e : dirty.entrySet()) {
+                out.writeInt(e.getKey().getTableId());
+                out.writeInt(e.getKey().getPageNumber());
+                out.writeLong(e.getValue());
             }
+            out.writeLong(currentOffset);
+            endCpOffset = endOffset();
+            currentOffset = endCpOffset;
+
+            //once the CP is durable, make sure the CP location at the
+            // beginning of the log file is updated
+            force();
+            lastCheckpoint = startCpOffset;
+            writeHeader();
+            //Debug.log("CP OFFSET = " + currentOffset);
         }
 
         logTruncate();
@@ -362,150 +837,190 @@ public class LogFile {
      consumption */
     public synchronized void logTruncate() throws IOException {
         preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
+        writeBuffer();
+        long cpLoc = lastCheckpoint;
+
+        if (cpLoc == NO_CHECKPOINT_ID) {
+            return;
+        }
 
         long minLogRecord = cpLoc;
+        seek(cpLoc);
+        int cpType = in.readInt();
+        @SuppressWarnings("unused")
+        long cpTid = in.readLong();
 
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
+        if (cpType != CHECKPOINT_RECORD) {
+            throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+        }
 
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+        int numOutstanding = in.readInt();
+        for (int i = 0; i < numOutstanding; i++) {
+            @SuppressWarnings("unused")
+            long tid = in.readLong();
+            long firstLogRecord = in.readLong();
+            in.readLong();
+            if (firstLogRecord < minLogRecord) {
+                minLogRecord = firstLogRecord;
             }
-
-            int numOutstanding = raf.readInt();
-
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
+        }
+        int numDirty = in.readInt();
+        for (int i = 0; i < numDirty; i++) {
+            in.readInt();
+            in.readInt();
+            long recLsn = in.readLong();
+            if (recLsn < minLogRecord) {
+                minLogRecord = recLsn;
             }
         }
 
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                    case UPDATE_RECORD:
-                        Page before = readPageData(raf);
-                        Page after = readPageData(raf);
-
-                        writePageData(logNew, before);
-                        writePageData(logNew, after);
-                        break;
-                    case CHECKPOINT_RECORD:
-                        int numXactions = raf.readInt();
-                        logNew.writeInt(numXactions);
-                        while (numXactions-- > 0) {
-                            long xid = raf.readLong();
-                            long xoffset = raf.readLong();
-                            logNew.writeLong(xid);
-                            logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                        }
-                        break;
-                    case BEGIN_RECORD:
-                        tidToFirstLogRecord.put(record_tid,newStart);
-                        break;
-                }
+        // we can truncate everything before minLogRecord: the header moves
+        // first, then whole segments before it are deleted
+        if (minLogRecord <= firstLsn) {
+            return;
+        }
+        Debug.log("TRUNCATING LOG; NEW START : " + minLogRecord + " WAS : " + firstLsn);
+        firstLsn = minLogRecord;
+        writeHeader();
+        segments.truncateBefore(minLogRecord);
+    }
 
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
+    /** @return the number of segment files the log is stored in */
+    public int getSegmentCount() {
+        return segments.count();
+    }
 
-            } catch (EOFException e) {
-                break;
-            }
+    /**
+     * Start a background thread that takes a checkpoint every interval,
+     * first writing the pages dirty since before the previous checkpoint.
+     * Does nothing if one is running already.
+     *
+     * @param intervalMillis the time between checkpoints
+     */
+    public synchronized void startCheckpointer(final long intervalMillis) {
+        if (checkpointer != null) return;
+        synchronized (checkpointerSleep) {
+            checkpointing = true;
         }
+        checkpointer = new Thread("simpledb-checkpointer") {
+            @Override
+            public void run() {
+                while (true) {
+                    // not interrupted to stop: an interrupt would close the
+                    // log's file channels in the middle of a force
+                    synchronized (checkpointerSleep) {
+                        if (checkpointing) {
+                            try {
+                                checkpointerSleep.wait(intervalMillis);
+                            } catch (InterruptedException e) {
+                                // check checkpointing
+                            }
+                        }
+                        if (!checkpointing) return;
+                    }
+                    try {
+                        backgroundCheckpoint();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        };
+        checkpointer.setDaemon(true);
+        checkpointer.start();
+    }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
-
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
+    /** Stop the background checkpoint thread, if any, and wait for it. */
+    public void stopCheckpointer() {
+        Thread t;
+        synchronized (this) {
+            t = checkpointer;
+            checkpointer = null;
+        }
+        if (t == null) return;
+        synchronized (checkpointerSleep) {
+            checkpointing = false;
+            checkpointerSleep.notifyAll();
+        }
+        try {
+            t.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
-        currentOffset = raf.getFilePointer();
-        //print();
+    private void backgroundCheckpoint() throws IOException {
+        long previous;
+        synchronized (this) {
+            // until recover() runs, the log on disk may still be needed
+            if (recoveryUndecided) return;
+            previous = lastCheckpoint;
+        }
+        if (previous != NO_CHECKPOINT_ID) {
+            Database.getBufferPool().flushPagesDirtiedBefore(previous);
+        }
+        logCheckpoint();
     }
 
-    /** Rollback the specified transaction, setting the state of any
-     of pages it updated to their pre-updated state.  To preserve
-     transaction semantics, this should not be called on
-     transactions that have already committed (though this may not
-     be enforced by this method.)
+    /** Rollback the specified transaction, undoing its inserts and deletes
+     newest first and logging a CLR for each.  To preserve transaction
+     semantics, this should not be called on transactions that have
+     already committed (though this may not be enforced by this method.)
+     Rolling back a transaction again has no effect.
 
      @param tid The transaction to rollback
      */
     public void rollback(TransactionId tid) throws NoSuchElementException, IOException {
-        synchronized (Database.getBufferPool()) {
-            synchronized(this) {
-
-                preAppend();
-                // some code goes here
+        Long last;
+        synchronized (this) {
+            last = tidToLastLogRecord.get(tid.getId());
+        }
+        if (last != null) {
+            undoChain(tid, last);
+        }
+        synchronized (this) {
+            tidToLastLogRecord.remove(tid.getId());
+        }
+    }
 
-                Long tidid = tid.getId();
-                Long recordStart = currentOffset;
-                if (!tidToFirstLogRecord.containsKey(tidid)) {
-                    return;
-                }
-                long recordStartCopy = recordStart;
-                long startOffset = tidToFirstLogRecord.get(tidid);
-                while (recordStart > startOffset) {
-                    // find a record start offset and seek here
-                    raf.seek(recordStart-LONG_SIZE);
-                    recordStart = raf.readLong();
-                    raf.seek(recordStart);
-                    if (raf.readInt() == UPDATE_RECORD) {
-                        raf.seek(recordStart + INT_SIZE);
-                        if (raf.readLong() == tidid) {
-                            raf.seek(recordStart + INT_SIZE + LONG_SIZE);
-                            Page p = readPageData(raf);
-                            PageId pid = p.getId();
-                            Database.getBufferPool().discardPage(pid);
-                            DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
-                            file.writePage(p);
-                        }
-                    }
+    /** Undo the INSERT and DELETE records of a transaction that precede the
+     record at lsn, newest first, skipping those that earlier CLRs undid.
+     Must not be called holding this monitor. */
+    private void undoChain(TransactionId dirtier, long lsn) throws IOException {
+        List<TupleChange> todo = new ArrayList<TupleChange>();
+        synchronized (this) {
+            writeBuffer();
+            // records of transactions that never logged BEGIN may be truncated
+            while (lsn >= firstOffset()) {
+                TupleChange c = readTupleChange(lsn);
+                if (c.type == CLR_RECORD) {
+                    lsn = c.undoNextLsn;
+                } else {
+                    todo.add(c);
+                    lsn = c.prevLsn;
                 }
-                raf.seek(recordStartCopy);
             }
         }
+        for (TupleChange c : todo) {
+            undo(dirtier, c);
+        }
     }
 
     /** Shutdown the logging system, writing out whatever state
      is necessary so that start up can happen quickly (without
      extensive recovery.)
      */
-    public synchronized void shutdown() {
+    public void shutdown() {
+        // not synchronized: flushing pages forces the log under page latches
         try {
+            stopCheckpointer();
+            Database.getBufferPool().stopPageWriter();
+            Database.getBufferPool().flushAllPages();
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            synchronized (this) {
+                raf.close();
+                segments.close();
+            }
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -515,182 +1030,187 @@ public class LogFile {
     /** Recover the database system by ensuring that the updates of
      committed transactions are installed and that the
      updates of uncommitted transactions are not installed.
+     <p>
+     Analysis reads the transaction table and dirty page table of the last
+     checkpoint and updates them from the records after it; the
+     transactions that began but neither committed nor aborted are the
+     losers.  Redo repeats history from the smallest recLSN, and undo rolls
+     back the losers with CLRs and logs their aborts.  Finally the
+     recovered pages are flushed and a checkpoint is taken, so the next
+     restart has little to do.
      */
     public void recover() throws IOException {
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                System.out.println("Start Recover");
-                recoveryUndecided = false;
-                Map<Integer, Long> LSNoffset = new ConcurrentHashMap<>();
-                Set<Long> activeTid = new HashSet<>();
-                Set<Long> commitTid = new HashSet<>();
-                int LSN = 0;
-                int type = 0;
-                long record_tid = 0;
-                long record_offset = 0;
-                int cpLength = 0;
-
-                //Mark loser pages from checkpoint
-                raf.seek(0);
-                long checkpoint = raf.readLong();
-                if (checkpoint != NO_CHECKPOINT_ID) {
-                    raf.seek(checkpoint);
-                    raf.readInt();
-                    raf.readLong();
-                    cpLength = raf.readInt();
-                    for (int i = 0; i < cpLength; i++) {
-                        record_tid = raf.readLong();
-                        long offset = raf.readLong();
-                        activeTid.add(record_tid);
-                        tidToFirstLogRecord.put(record_tid, offset);
-                    }
-                    raf.readLong();
+        System.out.println("Start Recover");
+        TransactionId recovery = new TransactionId();
+        // changes to redo, by page, in log order
+        Map<PageId, List<TupleChange>> changes = new LinkedHashMap<PageId, List<TupleChange>>();
+        int numChanges = 0;
+        List<Long> losers;
+        synchronized (this) {
+            recoveryUndecided = false;
+            writeBuffer();
+            tidToFirstLogRecord.clear();
+            tidToLastLogRecord.clear();
+            if (raf.length() < HEADER_SIZE) {
+                // nothing was ever logged
+                startLog(endOfExistingLog());
+                System.out.println("Recovery Completed");
+                return;
+            }
+            raf.seek(0);
+            long checkpoint = raf.readLong();
+            firstLsn = raf.readLong();
+            lastCheckpoint = checkpoint;
+            Map<PageId, Long> dirty = new HashMap<PageId, Long>();
+            long analysisStart = firstOffset();
+
+            //Transaction and dirty page tables from checkpoint
+            if (checkpoint != NO_CHECKPOINT_ID) {
+                seek(checkpoint);
+                in.readInt();
+                in.readLong();
+                int cpLength = in.readInt();
+                for (int i = 0; i < cpLength; i++) {
+                    long record_tid = in.readLong();
+                    tidToFirstLogRecord.put(record_tid, in.readLong());
+                    long last = in.readLong();
+                    if (last != -1) tidToLastLogRecord.put(record_tid, last);
                 }
-
-                //Analysis Phase
-                System.out.println("Start Analysis");
-                raf.seek(0);
-                raf.readLong();
-                while(true) {
-                    try {
-                        // Record offset of every SLN
-                        record_offset = raf.getFilePointer();
-                        LSN++;
-                        LSNoffset.put(LSN, record_offset);
-
-                        // Scan logfile
-                        type = raf.readInt();
-                        record_tid = raf.readLong();
-                        switch (type) {
-                            case ABORT_RECORD:
-                                activeTid.remove(record_tid);
-                                break;
-
-                            case COMMIT_RECORD:
-                                activeTid.remove(record_tid);
-                                commitTid.add(record_tid);
-                                break;
-
-                            case UPDATE_RECORD:
-                                readPageData(raf);
-                                readPageData(raf);
-                                break;
-
-                            case BEGIN_RECORD:
-                                activeTid.add(record_tid);
-                                break;
-
-                            case CHECKPOINT_RECORD:
-                                cpLength = raf.readInt();
-                                for (int i = 0; i < cpLength; i++) {
-                                    raf.readLong();
-                                    raf.readLong();
-                                }
-                                break;
-
-                            default:
-                                throw new IOException("Unexpected type when Analysis, type = " + type);
-                        }
-                        raf.readLong();
-                    } catch (EOFException e) {
-                        //remove the last out of bound LSN
-                        LSNoffset.remove(LSN);
-                        LSN--;
-                        System.out.println("Total LSN = " + LSN);
-                        break;
-                    }
+                int numDirty = in.readInt();
+                for (int i = 0; i < numDirty; i++) {
+                    PageId pid = new HeapPageId(in.readInt(), in.readInt());
+                    dirty.put(pid, in.readLong());
                 }
+                analysisStart = checkpoint;
+            }
 
-                // Redo Phase, top-down
-                System.out.println("Start Redo");
-                for (int i = 1; i <= LSN; i++) {
-                    try {
-                        // Seek offset of each LSN
-                        int current_LSN = i;
-                        long current_offset = LSNoffset.get(current_LSN);
-                        raf.seek(current_offset);
-
-                        // Redo committed update
-                        type = raf.readInt();
-                        record_tid = raf.readLong();
-                        switch(type) {
-
-                            case ABORT_RECORD:
-                                break;
-
-                            case COMMIT_RECORD:
-                                break;
-
-                            case UPDATE_RECORD:
-                                Page oldPage = readPageData(raf);
-                                Page newPage = readPageData(raf);
-                                if (commitTid.contains(record_tid)) {
-                                    int tableId = newPage.getId().getTableId();
-                                    DbFile file = Database.getCatalog().getDatabaseFile(tableId);
-                                    file.writePage(newPage);
-                                }
-                                break;
-
-                            case BEGIN_RECORD:
-                                break;
-
-                            case CHECKPOINT_RECORD:
-                                break;
-
-                            default:
-                                throw new IOException("Unexpected type when Redo, type = " + type);
-                        }
-                    } catch (EOFException e) {
-                        throw new IOException("Out of bound when Redo, LSN = " + i);
+            //Analysis Phase
+            System.out.println("Start Analysis");
+            seek(analysisStart);
+            long end = analysisStart;
+            while (true) {
+                try {
+                    long offset = position();
+                    int type = in.readInt();
+                    long record_tid = in.readLong();
+                    TupleChange c = readRecordBody(type, record_tid, offset);
+                    switch (type) {
+                        case ABORT_RECORD:
+                        case COMMIT_RECORD:
+                            tidToFirstLogRecord.remove(record_tid);
+                            tidToLastLogRecord.remove(record_tid);
+                            break;
+
+                        case BEGIN_RECORD:
+                            tidToFirstLogRecord.put(record_tid, offset);
+                            break;
+
+                        case INSERT_RECORD:
+                        case DELETE_RECORD:
+                        case CLR_RECORD:
+                            tidToLastLogRecord.put(record_tid, offset);
+                            if (!dirty.containsKey(c.pid)) dirty.put(c.pid, offset);
+                            break;
                     }
+                    end = position();
+                } catch (EOFException e) {
+                    break;
                 }
+            }
 
-                // Undo Phase, bottom-up
-                System.out.println("Start Undo");
-                for (int i = LSN; i > 0 ; i--){
-                    try {
-                        // Seek offset of each LSN
-                        int current_LSN = i;
-                        long current_offset = LSNoffset.get(current_LSN);
-                        raf.seek(current_offset);
-
-                        // Undo loser update
-                        type = raf.readInt();
-                        record_tid = raf.readLong();
-                        switch (type) {
-                            case ABORT_RECORD:
-                                break;
-
-                            case COMMIT_RECORD:
-                                break;
-
-                            case UPDATE_RECORD:
-                                if (activeTid.contains(record_tid)) {
-                                    Page oldPage = readPageData(raf);
-                                    int tableId = oldPage.getId().getTableId();
-                                    DbFile file = Database.getCatalog().getDatabaseFile(tableId);
-                                    file.writePage(oldPage.getBeforeImage());
-                                }
-                                break;
-
-                            case BEGIN_RECORD:
-                                break;
-
-                            case CHECKPOINT_RECORD:
-                                break;
-
-                            default:
-                                throw new IOException("Unexpected type when Undo, type = " + type);
-                        }
-
-                    } catch (EOFException e){
-                        throw new IOException("Out of bound when Undo, SLN = " + i);
+            // a record torn by the crash is dropped, and appending continues after the last whole one
+            segments.truncateAfter(end);
+            resetAppendOffset();
+            // only transactions that logged BEGIN are rolled back
+            tidToLastLogRecord.keySet().retainAll(tidToFirstLogRecord.keySet());
+            losers = new ArrayList<Long>(tidToFirstLogRecord.keySet());
+
+            // Redo starts at the oldest change that may not be on disk
+            long redoStart = end;
+            for (long recLsn : dirty.values()) redoStart = Math.min(redoStart, recLsn);
+            seek(Math.max(redoStart, firstOffset()));
+            while (position() < end) {
+                long offset = position();
+                int type = in.readInt();
+                long record_tid = in.readLong();
+                TupleChange c = readRecordBody(type, record_tid, offset);
+                if (c == null) continue;
+                Long recLsn = dirty.get(c.pid);
+                // pages missing from the table, or dirtied later, were written since
+                if (recLsn != null && offset >= recLsn) {
+                    List<TupleChange> pageChanges = changes.get(c.pid);
+                    if (pageChanges == null) {
+                        pageChanges = new ArrayList<TupleChange>();
+                        changes.put(c.pid, pageChanges);
                     }
+                    pageChanges.add(c);
+                    numChanges++;
                 }
+            }
+            System.out.println("Redo from " + redoStart + ", " + numChanges + " tuple changes to "
+                    + changes.size() + " pages");
+        }
 
-                System.out.println("Recovery Completed");
+        // Redo Phase, repeating history
+        System.out.println("Start Redo");
+        redoAll(recovery, changes);
+
+        // Undo Phase, rolling back the losers
+        System.out.println("Start Undo");
+        for (long tid : losers) {
+            Long last;
+            synchronized (this) {
+                last = tidToLastLogRecord.get(tid);
+            }
+            if (last != null) {
+                undoChain(recovery, last);
+            }
+            synchronized (this) {
+                appendAbort(tid);
+                tidToFirstLogRecord.remove(tid);
+                tidToLastLogRecord.remove(tid);
             }
         }
+        force();
+        Database.getBufferPool().flushAllPages();
+        logCheckpoint();
+        System.out.println("Recovery Completed");
+    }
+
+    /** Read the rest of a record whose type and transaction id were just
+     read, including its trailing start offset.  Caller holds this monitor.
+     @return the record if it is an INSERT, DELETE or CLR, otherwise null
+     */
+    private TupleChange readRecordBody(int type, long tid, long lsn) throws IOException {
+        TupleChange c = null;
+        switch (type) {
+            case ABORT_RECORD:
+            case COMMIT_RECORD:
+            case BEGIN_RECORD:
+                break;
+
+            case INSERT_RECORD:
+            case DELETE_RECORD:
+            case CLR_RECORD:
+                c = new TupleChange();
+                c.type = type;
+                c.tid = tid;
+                c.lsn = lsn;
+                readTupleChangeBody(in, c);
+                break;
+
+            case CHECKPOINT_RECORD:
+                int cpLength = in.readInt();
+                in.skipBytes(cpLength * 3 * LONG_SIZE);
+                int numDirty = in.readInt();
+                in.skipBytes(numDirty * (2 * INT_SIZE + LONG_SIZE));
+                break;
+
+            default:
+                throw new IOException("Unexpected log record type " + type + " at " + lsn);
+        }
+        in.readLong();
+        return c;
     }
 
 
@@ -702,7 +1222,25 @@ public class LogFile {
     }
 
     public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+        long target = appendSeq;
+        writeBuffer();
+        segments.sync(durableOffset, writtenOffset);
+        durableOffset = writtenOffset;
+        synchronized (groupLock) {
+            durableSeq = Math.max(durableSeq, target);
+        }
+    }
+
+    /**
+     * Force the log to disk up to and including the record starting at lsn,
+     * e.g. the last change record of a page about to be written (WAL).
+     * Does nothing if that record is already durable.
+     *
+     * @param lsn the LSN of a record, as returned by {@link #logInsert}
+     */
+    public synchronized void force(long lsn) throws IOException {
+        if (lsn < durableOffset) return;
+        force();
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,229 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * LogSegments stores the records of a LogFile in a series of segment
+ * files of a fixed size.  Segment files are named after the log file and
+ * the log offset they start at, so the log offset o is stored in the
+ * segment starting at o - (o % segment size).  Truncating the log deletes
+ * whole segments instead of copying what is left.
+ *
+ * @Threadsafe
+ */
+class LogSegments {
+
+    private final File base;
+    private final long segmentSize;
+    // open segments by start offset; protected by this
+    private final TreeMap<Long, RandomAccessFile> segments = new TreeMap<Long, RandomAccessFile>();
+
+    /**
+     * @param base the log file; segments are stored next to it
+     * @param segmentSize the number of log bytes per segment file
+     */
+    LogSegments(File base, long segmentSize) throws IOException {
+        this.base = base;
+        this.segmentSize = segmentSize;
+        File dir = base.getAbsoluteFile().getParentFile();
+        String prefix = base.getName() + ".";
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        for (File f : files) {
+            String name = f.getName();
+            if (!name.startsWith(prefix)) continue;
+            try {
+                long start = Long.parseLong(name.substring(prefix.length()), 16);
+                segments.put(start, new RandomAccessFile(f, "rw"));
+            } catch (NumberFormatException e) {
+                // not a segment
+            }
+        }
+    }
+
+    private File fileOf(long start) {
+        return new File(base.getPath() + "." + String.format("%016x", start));
+    }
+
+    private long startOf(long offset) {
+        return offset - offset % segmentSize;
+    }
+
+    /** @return the segment holding offset, creating it if create is set, or null */
+    private synchronized RandomAccessFile segment(long offset, boolean create) throws IOException {
+        long start = startOf(offset);
+        RandomAccessFile f = segments.get(start);
+        if (f == null && create) {
+            f = new RandomAccessFile(fileOf(start), "rw");
+            segments.put(start, f);
+        }
+        return f;
+    }
+
+    /** @return the log offset right after the last byte stored, or -1 if
+     there are no segments */
+    synchronized long end() throws IOException {
+        if (segments.isEmpty()) return -1;
+        Map.Entry<Long, RandomAccessFile> last = segments.lastEntry();
+        return last.getKey() + last.getValue().length();
+    }
+
+    /** Write all of src at the given log offset, splitting it between segments. */
+    void write(ByteBuffer src, long offset) throws IOException {
+        while (src.hasRemaining()) {
+            long start = startOf(offset);
+            int n = (int) Math.min(src.remaining(), start + segmentSize - offset);
+            ByteBuffer part = src.duplicate();
+            part.limit(part.position() + n);
+            FileChannel channel = segment(offset, true).getChannel();
+            while (part.hasRemaining()) {
+                channel.write(part, offset - start + (n - part.remaining()));
+            }
+            src.position(src.position() + n);
+            offset += n;
+        }
+    }
+
+    /**
+     * Read bytes at the given log offset into dst, stopping at the end of
+     * the segment.
+     *
+     * @return the number of bytes read, or -1 if nothing is stored there
+     */
+    int read(ByteBuffer dst, long offset) throws IOException {
+        RandomAccessFile f = segment(offset, false);
+        if (f == null) return -1;
+        long start = startOf(offset);
+        ByteBuffer part = dst.duplicate();
+        part.limit((int) Math.min(dst.limit(), dst.position() + start + segmentSize - offset));
+        int n = f.getChannel().read(part, offset - start);
+        if (n > 0) dst.position(dst.position() + n);
+        return n;
+    }
+
+    /**
+     * Sync the segments holding log offsets from from up to to.  The
+     * fsyncs run without this object's monitor; segments deleted meanwhile
+     * are skipped, since their records are no longer needed.
+     */
+    void sync(long from, long to) throws IOException {
+        List<FileChannel> channels = new ArrayList<FileChannel>();
+        synchronized (this) {
+            if (to <= from) return;
+            for (RandomAccessFile f : segments.subMap(startOf(from), true, startOf(to - 1), true).values()) {
+                channels.add(f.getChannel());
+            }
+        }
+        for (FileChannel channel : channels) {
+            try {
+                channel.force(true);
+            } catch (ClosedChannelException e) {
+                // truncated away
+            }
+        }
+    }
+
+    /** Delete the segments that only hold log offsets before offset. */
+    synchronized void truncateBefore(long offset) throws IOException {
+        Iterator<Map.Entry<Long, RandomAccessFile>> it = segments.headMap(startOf(offset), false).entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, RandomAccessFile> e = it.next();
+            e.getValue().close();
+            fileOf(e.getKey()).delete();
+            it.remove();
+        }
+    }
+
+    /** Drop every byte stored at or after offset. */
+    synchronized void truncateAfter(long offset) throws IOException {
+        Iterator<Map.Entry<Long, RandomAccessFile>> it = segments.tailMap(startOf(offset), true).entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, RandomAccessFile> e = it.next();
+            if (e.getKey() < offset) {
+                e.getValue().setLength(offset - e.getKey());
+                continue;
+            }
+            e.getValue().close();
+            fileOf(e.getKey()).delete();
+            it.remove();
+        }
+    }
+
+    /** Delete all segments. */
+    synchronized void deleteAll() throws IOException {
+        truncateAfter(0);
+    }
+
+    /** @return the number of segment files */
+    synchronized int count() {
+        return segments.size();
+    }
+
+    /** Close all segment files. */
+    synchronized void close() throws IOException {
+        for (RandomAccessFile f : segments.values()) {
+            f.close();
+        }
+        segments.clear();
+    }
+
+    /**
+     * An InputStream over the stored log, starting at a given offset.
+     * Reading past the last stored byte returns end of stream.
+     */
+    class Reader extends InputStream {
+        private final ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+        // log offset of buf's first byte
+        private long bufStart = 0;
+        private long pos = 0;
+
+        /** Continue reading at the given log offset. */
+        void seek(long offset) {
+            pos = offset;
+            buf.clear().limit(0);
+        }
+
+        /** @return the log offset of the next byte read */
+        long position() {
+            return pos;
+        }
+
+        private boolean fill() throws IOException {
+            if (pos >= bufStart && pos < bufStart + buf.limit()) return true;
+            buf.clear();
+            bufStart = pos;
+            int n = LogSegments.this.read(buf, pos);
+            buf.flip();
+            return n > 0;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) return -1;
+            int b = buf.get((int) (pos - bufStart)) & 0xff;
+            pos++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (!fill()) return -1;
+            int n = (int) Math.min(len, bufStart + buf.limit() - pos);
+            int at = (int) (pos - bufStart);
+            for (int i = 0; i < n; i++) b[off + i] = buf.get(at + i);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            pos += n;
+            return n;
+        }
+    }
+}
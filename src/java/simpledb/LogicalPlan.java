@@ -6,6 +6,8 @@ import java.util.Iterator;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.HashSet;
 
 /**
  * LogicalPlan represents a logical query plan that has been through
@@ -271,6 +273,45 @@ public class LogicalPlan {
         throw new ParsingException("Unknown predicate " + s);
     }
 
+    /** Find the fields of a table the query refers to, so its scan only
+     *   returns those.
+     *  @return the indexes of the fields in the table's TupleDesc, or null
+     *   if the query uses all of them (e.g. SELECT *) or the table is not a
+     *   HeapFile
+     */
+    private int[] usedColumns(LogicalScanNode table) {
+        if (!(Database.getCatalog().getDatabaseFile(table.t) instanceof HeapFile)) return null;
+        Set<String> used = new HashSet<String>();
+        for (LogicalSelectListNode si : selectList) {
+            if (si.fname.endsWith(".*")) return null;
+            used.add(si.fname);
+        }
+        for (LogicalFilterNode lf : filters) {
+            used.add(lf.fieldQuantifiedName);
+        }
+        for (LogicalJoinNode lj : joins) {
+            used.add(lj.f1QuantifiedName);
+            used.add(lj.f2QuantifiedName);
+        }
+        if (aggField != null) used.add(aggField);
+        if (groupByField != null) used.add(groupByField);
+        if (hasOrderBy) used.add(oByField);
+
+        TupleDesc td = Database.getCatalog().getTupleDesc(table.t);
+        ArrayList<Integer> columns = new ArrayList<Integer>();
+        for (int i = 0; i < td.numFields(); i++) {
+            if (used.contains(table.alias + "." + td.getFieldName(i))) columns.add(i);
+        }
+        if (columns.size() == td.numFields()) return null;
+        // a table none of whose fields is used still has to produce its tuples
+        if (columns.isEmpty()) columns.add(0);
+        int[] result = new int[columns.size()];
+        for (int k = 0; k < result.length; k++) {
+            result[k] = columns.get(k);
+        }
+        return result;
+    }
+
     /** Convert this LogicalPlan into a physicalPlan represented by a {@link OpIterator}.  Attempts to
      *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
      *  @param t The transaction that the returned OpIterator will run as a part of
@@ -294,7 +335,9 @@ public class LogicalPlan {
             LogicalScanNode table = tableIt.next();
             SeqScan ss = null;
             try {
-                 ss = new SeqScan(t, Database.getCatalog().getDatabaseFile(table.t).getId(), table.alias);
+                 // scans return only the fields the query uses
+                 ss = new SeqScan(t, Database.getCatalog().getDatabaseFile(table.t).getId(), table.alias,
+                         usedColumns(table));
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown table " + table.t);
             }
@@ -334,11 +377,20 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            DbFile file = Database.getCatalog().getDatabaseFile(this.getTableId(lf.tableAlias));
+            if (subplan instanceof SeqScan && file instanceof HeapFile) {
+                // tested as the scan reads the pages, on encoded values where it can
+                ((SeqScan) subplan).addFilter(new Predicate(
+                        file.getTupleDesc().fieldNameToIndex(lf.fieldPureName), lf.p, f));
+            } else {
+                subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            }
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
             
-            double sel= s.estimateSelectivity(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p, f);
+            // stats know the fields by their index in the table, not in the scan
+            double sel= s.estimateSelectivity(Database.getCatalog().getTupleDesc(this.getTableId(lf.tableAlias))
+                    .fieldNameToIndex(lf.fieldPureName), lf.p, f);
             filterSelectivities.put(lf.tableAlias, filterSelectivities.get(lf.tableAlias) * sel);
 
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
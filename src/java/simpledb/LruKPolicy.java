@@ -0,0 +1,126 @@
+package simpledb;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * LRU-K replacement (O'Neil, O'Neil and Weikum).  The victim is the page
+ * whose K-th most recent reference is oldest; pages referenced fewer than K
+ * times have an infinite backward distance and go first, in LRU order.  A
+ * page touched once by a sequential scan therefore never displaces a page
+ * that is referenced repeatedly.
+ * <p>
+ * Reference history of recently evicted pages is retained (up to the pool
+ * size) so that a page that is re-read soon after eviction keeps its
+ * history.  Operations are O(log n).
+ */
+public class LruKPolicy extends AbstractReplacementPolicy {
+
+    /** Reference history of one page, most recent reference first. */
+    private static class History {
+        final long[] times;
+        int count = 0;
+
+        History(int k) {
+            this.times = new long[k];
+        }
+
+        void reference(long now) {
+            System.arraycopy(times, 0, times, 1, times.length - 1);
+            times[0] = now;
+            if (count < times.length) count++;
+        }
+
+        long last() {
+            return times[0];
+        }
+
+        /** @return the K-th most recent reference, or -1 if there is none */
+        long kth() {
+            return count < times.length ? -1 : times[times.length - 1];
+        }
+    }
+
+    private final int k;
+    private long clock = 0;
+    private final Map<PageId, History> resident;
+    private final LinkedHashMap<PageId, History> retained;
+    private final TreeSet<PageId> byDistance;
+
+    /**
+     * @param k the number of references to track per page (2 is typical)
+     * @param numPages the pool size, used to bound retained history
+     */
+    public LruKPolicy(int k, final int numPages) {
+        if (k < 1) throw new IllegalArgumentException("k must be positive");
+        this.k = k;
+        this.resident = new HashMap<PageId, History>();
+        this.retained = new LinkedHashMap<PageId, History>() {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<PageId, History> eldest) {
+                return size() > Math.max(numPages, 1);
+            }
+        };
+        this.byDistance = new TreeSet<PageId>(new Comparator<PageId>() {
+            public int compare(PageId a, PageId b) {
+                History ha = resident.get(a);
+                History hb = resident.get(b);
+                int c = Long.compare(ha.kth(), hb.kth());
+                if (c != 0) return c;
+                return Long.compare(ha.last(), hb.last());
+            }
+        });
+    }
+
+    protected void loaded(PageId pid) {
+        if (resident.containsKey(pid)) {
+            accessed(pid);
+            return;
+        }
+        History h = retained.remove(pid);
+        if (h == null) h = new History(k);
+        h.reference(++clock);
+        resident.put(pid, h);
+        byDistance.add(pid);
+    }
+
+    protected void accessed(PageId pid) {
+        History h = resident.get(pid);
+        if (h == null) {
+            loaded(pid);
+            return;
+        }
+        // re-key: remove under the old ordering, then insert under the new
+        byDistance.remove(pid);
+        h.reference(++clock);
+        byDistance.add(pid);
+    }
+
+    public void pageRemoved(PageId pid) {
+        if (!resident.containsKey(pid)) return;
+        byDistance.remove(pid);
+        resident.remove(pid);
+    }
+
+    public void pageEvicted(PageId pid) {
+        if (!resident.containsKey(pid)) return;
+        byDistance.remove(pid);
+        retained.put(pid, resident.remove(pid));
+    }
+
+    public PageId chooseVictim() {
+        return byDistance.isEmpty() ? null : byDistance.first();
+    }
+
+    public int size() {
+        return resident.size();
+    }
+
+    public String getName() {
+        return "lru-" + k;
+    }
+}
@@ -0,0 +1,44 @@
+package simpledb;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Least-recently-used replacement.  Pages are kept in an access-ordered
+ * LinkedHashMap, so every operation is O(1) and the victim is simply the
+ * first entry.
+ */
+public class LruPolicy extends AbstractReplacementPolicy {
+
+    private final LinkedHashMap<PageId, Boolean> order;
+
+    public LruPolicy() {
+        this.order = new LinkedHashMap<PageId, Boolean>(16, 0.75f, true);
+    }
+
+    protected void loaded(PageId pid) {
+        order.put(pid, Boolean.TRUE);
+    }
+
+    protected void accessed(PageId pid) {
+        // get() moves the entry to the most-recently-used end
+        if (order.get(pid) == null) order.put(pid, Boolean.TRUE);
+    }
+
+    public void pageRemoved(PageId pid) {
+        order.remove(pid);
+    }
+
+    public PageId chooseVictim() {
+        Iterator<PageId> it = order.keySet().iterator();
+        return it.hasNext() ? it.next() : null;
+    }
+
+    public int size() {
+        return order.size();
+    }
+
+    public String getName() {
+        return "lru";
+    }
+}
@@ -53,7 +53,7 @@ public interface Page {
 
     /*
      * a transaction that wrote this page just committed it.
-     * copy current content to the before image.
+     * the current content becomes the before image.
      */
     public void setBeforeImage();
 }
@@ -0,0 +1,58 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Measures how many pages per second HeapFile.readPage reads from a file
+ * in the OS cache, in page order and in random order.  It compares the
+ * file's channel and memory-mapped access with opening a RandomAccessFile
+ * for every page, as readPage did before HeapFile kept its channel open.
+ * <p>
+ * Usage: java simpledb.PageReadBench [pages [rounds]]
+ */
+public class PageReadBench {
+
+    private enum Mode { REOPEN, CHANNEL, MMAP }
+
+    public static void main(String[] args) throws Exception {
+        int pages = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        File dir = new File(System.getProperty("java.io.tmpdir"), "simpledb-read-bench");
+        dir.mkdirs();
+        HeapFile table = ScanResistanceBench.table(new File(dir, "t.dat"), pages);
+        int n = table.numPages();
+        for (int round = 0; round < rounds; round++) {
+            for (Mode mode : Mode.values()) {
+                if (mode != Mode.REOPEN) {
+                    table.setAccess(mode == Mode.MMAP ? HeapFile.Access.MMAP : HeapFile.Access.CHANNEL);
+                }
+                Random rnd = new Random(round);
+                long t0 = System.nanoTime();
+                for (int i = 0; i < n; i++) read(table, mode, i);
+                long t1 = System.nanoTime();
+                for (int i = 0; i < n; i++) read(table, mode, rnd.nextInt(n));
+                long t2 = System.nanoTime();
+                System.out.printf("%-8s pages=%d sequential %.0f pages/s random %.0f pages/s%n",
+                        mode, n, n / ((t1 - t0) / 1e9), n / ((t2 - t1) / 1e9));
+            }
+        }
+        table.close();
+        Database.getLogFile().shutdown();
+    }
+
+    private static Page read(HeapFile table, Mode mode, int pageNo) throws IOException {
+        HeapPageId pid = new HeapPageId(table.getId(), pageNo);
+        if (mode != Mode.REOPEN) return table.readPage(pid);
+        byte[] data = new byte[BufferPool.getPageSize()];
+        RandomAccessFile raf = new RandomAccessFile(table.getFile(), "r");
+        try {
+            raf.seek((long) pageNo * data.length);
+            raf.readFully(data);
+        } finally {
+            raf.close();
+        }
+        return new HeapPage(pid, data);
+    }
+}
@@ -0,0 +1,147 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * PageWriter is a background thread that writes dirty pages of a
+ * BufferPool ahead of eviction, so that transactions looking for a free
+ * frame usually find a clean victim and do not wait for a page write
+ * (and the log force before it) on their own thread.
+ * <p>
+ * Every interval it looks at the dirty pages of the pool.  If fewer than
+ * the target number of frames are clean, it writes the oldest dirty pages,
+ * in recLSN order, until the target is met or it has written the maximum
+ * number of pages for the round.  Writing in recLSN order also moves the
+ * redo start of the next checkpoint forward.
+ * <p>
+ * The writer only takes the latches flushPage takes, one page at a time.
+ *
+ * @Threadsafe
+ */
+public class PageWriter extends Thread {
+
+    private final BufferPool pool;
+    private final long intervalMillis;
+    private final int maxPagesPerRound;
+    private final int cleanTarget;
+    // guards running; the writer waits on it between rounds
+    private final Object sleep = new Object();
+    private boolean running = true;
+
+    // metrics; written by the writer thread only
+    private volatile long rounds = 0;
+    private volatile long pagesWritten = 0;
+    private volatile long lastDirtyPages = 0;
+    private volatile long lastFlushLag = 0;
+    private volatile long maxFlushLag = 0;
+
+    /**
+     * @param pool the buffer pool whose pages to write
+     * @param intervalMillis the time between two rounds
+     * @param maxPagesPerRound the most pages written in one round, which
+     *        bounds the write rate
+     * @param cleanTarget the number of clean (or free) frames to keep
+     */
+    PageWriter(BufferPool pool, long intervalMillis, int maxPagesPerRound, int cleanTarget) {
+        super("simpledb-page-writer");
+        this.pool = pool;
+        this.intervalMillis = intervalMillis;
+        this.maxPagesPerRound = maxPagesPerRound;
+        this.cleanTarget = cleanTarget;
+        setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            // not interrupted to stop: an interrupt would close the file
+            // channels of a page write in progress
+            synchronized (sleep) {
+                if (running) {
+                    try {
+                        sleep.wait(intervalMillis);
+                    } catch (InterruptedException e) {
+                        // check running
+                    }
+                }
+                if (!running) return;
+            }
+            try {
+                writeRound();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /** Run one round of writing. */
+    void writeRound() throws IOException {
+        final Map<PageId, Long> dirty = pool.getDirtyPages();
+        List<PageId> oldest = new ArrayList<PageId>(dirty.keySet());
+        Collections.sort(oldest, new Comparator<PageId>() {
+            public int compare(PageId a, PageId b) {
+                return Long.compare(dirty.get(a), dirty.get(b));
+            }
+        });
+
+        lastDirtyPages = oldest.size();
+        long lag = 0;
+        if (!oldest.isEmpty()) {
+            lag = Math.max(0, Database.getLogFile().getNextLsn() - dirty.get(oldest.get(0)));
+        }
+        lastFlushLag = lag;
+        maxFlushLag = Math.max(maxFlushLag, lag);
+
+        int clean = pool.getNumPages() - oldest.size();
+        int written = 0;
+        for (PageId pid : oldest) {
+            if (clean >= cleanTarget || written >= maxPagesPerRound) break;
+            if (pool.flushIfResident(pid)) {
+                written++;
+                clean++;
+            }
+        }
+        pagesWritten += written;
+        rounds++;
+    }
+
+    /** Stop the writer and wait for it to finish its round. */
+    public void shutdown() {
+        synchronized (sleep) {
+            running = false;
+            sleep.notifyAll();
+        }
+        try {
+            join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** @return the number of rounds run so far */
+    public long getRounds() {
+        return rounds;
+    }
+
+    /** @return the number of pages written by this writer so far */
+    public long getPagesWritten() {
+        return pagesWritten;
+    }
+
+    /** @return the number of dirty pages seen at the start of the last round */
+    public long getDirtyPages() {
+        return lastDirtyPages;
+    }
+
+    /** @return the flush lag seen at the start of the last round: the
+     number of log bytes written since the oldest change not on disk yet */
+    public long getFlushLag() {
+        return lastFlushLag;
+    }
+
+    /** @return the largest flush lag seen at the start of any round */
+    public long getMaxFlushLag() {
+        return maxFlushLag;
+    }
+}
@@ -0,0 +1,134 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * PaxPage is a page of a HeapFile in the {@link HeapFile.Format#PAX}
+ * format, which groups the values of a page column by column (Partition
+ * Attributes Across).  It holds as many tuples as a HeapPage and manages
+ * its slots the same way; only the layout of the slots differs.
+ * <p>
+ * The format is a long pageLSN and the slot bitmap of a HeapPage, followed
+ * by one run of values per field: the run of field j holds the value of
+ * field j of every slot, in slot order, each in the format of a HeapPage
+ * slot.  An empty slot's values are zero.
+ * <p>
+ * Since the values of a field are contiguous, a scan that needs a few
+ * fields of each tuple reads only their runs;
+ * {@link #iterator(int[], TupleDesc)} decodes the page a field at a time.
+ *
+ * @see HeapPage
+ */
+public class PaxPage extends HeapPage {
+
+    // the offset of each field's run of values in the image
+    private final int[] columnStarts;
+
+    /**
+     * Create a PaxPage from a set of bytes of data read from disk, in the
+     * format described above.
+     */
+    public PaxPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, Database.getCatalog().getTupleDesc(id.getTableId()), data);
+    }
+
+    /**
+     * Create a PaxPage of a table with the given schema, e.g. for a file
+     * that is not in the catalog.  The page keeps data as its image, so
+     * data must not change afterwards.
+     */
+    PaxPage(HeapPageId id, TupleDesc td, byte[] data) throws IOException {
+        super(id, td, data);
+        this.columnStarts = new int[td.numFields()];
+        int start = LSN_SIZE + headerSize;
+        for (int j = 0; j < td.numFields(); j++) {
+            columnStarts[j] = start;
+            start += numSlots * td.getFieldType(j).getLen();
+        }
+    }
+
+    @Override
+    protected TuplePage pageOf(byte[] data) throws IOException {
+        return new PaxPage(pid, td, data);
+    }
+
+    @Override
+    public PaxPage getBeforeImage() {
+        return (PaxPage) super.getBeforeImage();
+    }
+
+    @Override
+    void writeSlot(byte[] data, int slot, Tuple t) {
+        byte[] tuple = t == null ? new byte[td.getSize()] : serializeTuple(t);
+        int from = 0;
+        for (int j = 0; j < td.numFields(); j++) {
+            int len = td.getFieldType(j).getLen();
+            System.arraycopy(tuple, from, data, columnStarts[j] + slot * len, len);
+            from += len;
+        }
+    }
+
+    @Override
+    Tuple readTuple(int slot) {
+        return new Tuple(td, this.image, columnStarts, slot);
+    }
+
+    @Override
+    byte[] readTupleData(int slot) {
+        byte[] tuple = new byte[td.getSize()];
+        int to = 0;
+        for (int j = 0; j < td.numFields(); j++) {
+            int len = td.getFieldType(j).getLen();
+            System.arraycopy(this.image, columnStarts[j] + slot * len, tuple, to, len);
+            to += len;
+        }
+        return tuple;
+    }
+
+    /**
+     * Decodes the kept fields a field at a time, each from its run of
+     * values, into new tuples.  The tuples are those of the page when the
+     * iterator is created.
+     */
+    @Override
+    public Iterator<Tuple> iterator(int[] columns, TupleDesc projected) {
+        List<Tuple> out = new ArrayList<Tuple>();
+        synchronized (this) {
+            int[] slots = new int[numSlots - getNumEmptySlots()];
+            int n = 0;
+            for (int i = nextUsedSlot(0); i >= 0; i = nextUsedSlot(i + 1)) {
+                slots[n++] = i;
+                Tuple t = new Tuple(projected);
+                t.setRecordId(new RecordId(pid, i));
+                out.add(t);
+            }
+            for (int k = 0; k < columns.length; k++) {
+                int column = columns[k];
+                Type type = td.getFieldType(column);
+                int len = type.getLen();
+                for (int r = 0; r < n; r++) {
+                    int slot = slots[r];
+                    Field f;
+                    if (changed.get(slot)) {
+                        f = tuples[slot].getField(column);
+                    } else if (type == Type.INT_TYPE) {
+                        int at = columnStarts[column] + slot * len;
+                        byte[] b = this.image;
+                        f = new IntField((b[at] << 24) | ((b[at + 1] & 0xff) << 16)
+                                | ((b[at + 2] & 0xff) << 8) | (b[at + 3] & 0xff));
+                    } else {
+                        try {
+                            f = type.parse(new DataInputStream(new ByteArrayInputStream(
+                                    this.image, columnStarts[column] + slot * len, len)));
+                        } catch (java.text.ParseException e) {
+                            throw new NoSuchElementException("parsing error!");
+                        }
+                    }
+                    out.get(r).setField(k, f);
+                }
+            }
+        }
+        return Collections.unmodifiableList(out).iterator();
+    }
+}
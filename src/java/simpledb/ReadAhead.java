@@ -0,0 +1,139 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * ReadAhead prefetches the pages a sequential scan of a HeapFile is about
+ * to read.  The scan reports every page it moves to; once it has read two
+ * consecutive pages, the next pages of the window are loaded into the
+ * buffer pool by a shared pool of I/O threads, without locks, so the scan
+ * finds them resident when it gets (and locks) them.
+ * <p>
+ * The window adapts to how fast the scan consumes pages.  If the scan
+ * reaches a page whose read has not finished, it is faster than the reads
+ * and the window doubles.  If a prefetched page was evicted again before
+ * the scan got to it, the window was too large for the pool and it halves.
+ * The window never exceeds the maximum, nor, for scans reading through a
+ * BufferAccessStrategy, the scan's ring less the page being read.
+ * <p>
+ * A ReadAhead belongs to one scan and is not thread-safe.
+ */
+class ReadAhead {
+
+    /** System property setting the largest read-ahead window in pages; 0 turns read-ahead off. */
+    public static final String READ_AHEAD_PROPERTY = "simpledb.ReadAheadPages";
+
+    /** System property setting the number of threads reading ahead for all scans. */
+    public static final String READ_AHEAD_THREADS_PROPERTY = "simpledb.ReadAheadThreads";
+
+    public static final int DEFAULT_MAX_WINDOW = 32;
+
+    public static final int DEFAULT_THREADS = 4;
+
+    private static final int MIN_WINDOW = 2;
+
+    private static ExecutorService io;
+
+    private final BufferPool pool;
+    private final HeapFile file;
+    private final BufferAccessStrategy strategy;
+    private final int maxWindow;
+
+    private int window;
+    // the page the scan read last, and how many pages in a row it read in order
+    private int last = -2;
+    private int run = 0;
+    // the highest page prefetched so far
+    private int issuedTo = -1;
+    // prefetches of the pages the scan has not reached yet, by page number
+    private final Map<Integer, Future<?>> pending = new HashMap<Integer, Future<?>>();
+
+    /**
+     * @param file the file being scanned
+     * @param strategy the strategy the scan reads through, or null
+     */
+    ReadAhead(HeapFile file, BufferAccessStrategy strategy) {
+        this.pool = Database.getBufferPool();
+        this.file = file;
+        this.strategy = strategy;
+        int max = Integer.getInteger(READ_AHEAD_PROPERTY, DEFAULT_MAX_WINDOW);
+        max = Math.min(max, pool.getNumPages() / 4);
+        if (strategy != null) max = Math.min(max, strategy.getRingSize() - 1);
+        this.maxWindow = max;
+        this.window = Math.min(MIN_WINDOW, max);
+    }
+
+    private static synchronized ExecutorService io() {
+        if (io == null) {
+            io = Executors.newFixedThreadPool(Integer.getInteger(READ_AHEAD_THREADS_PROPERTY, DEFAULT_THREADS),
+                    new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "simpledb-read-ahead");
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+        }
+        return io;
+    }
+
+    /**
+     * Tell the read-ahead that the scan is about to read the given page,
+     * adapting the window and prefetching the pages after it.
+     */
+    void pageRequested(int pageNo) {
+        if (maxWindow < 1) return;
+        if (pageNo == last + 1) {
+            run++;
+        } else {
+            // the scan jumped: what was prefetched is no longer ahead of it
+            close();
+            run = 0;
+            window = Math.min(MIN_WINDOW, maxWindow);
+            issuedTo = pageNo;
+        }
+        last = pageNo;
+
+        Future<?> prefetch = pending.remove(pageNo);
+        if (prefetch != null) {
+            if (!prefetch.isDone()) {
+                window = Math.min(maxWindow, window * 2);
+            } else if (!pool.isCached(new HeapPageId(file.getId(), pageNo))) {
+                window = Math.max(Math.min(MIN_WINDOW, maxWindow), window / 2);
+            }
+        }
+        if (run < 1) return;
+
+        int numPages = file.numPages();
+        for (int p = Math.max(issuedTo + 1, pageNo + 1); p <= pageNo + window && p < numPages; p++) {
+            final PageId pid = new HeapPageId(file.getId(), p);
+            pending.put(p, io().submit(new Runnable() {
+                public void run() {
+                    try {
+                        pool.getPageUnlocked(pid, strategy);
+                    } catch (DbException | RuntimeException e) {
+                        // only a hint; the scan reads the page itself
+                    }
+                }
+            }));
+            issuedTo = p;
+        }
+    }
+
+    /** @return the current read-ahead window in pages */
+    int getWindow() {
+        return window;
+    }
+
+    /** Cancel the prefetches that have not started. */
+    void close() {
+        for (Future<?> prefetch : pending.values()) {
+            prefetch.cancel(false);
+        }
+        pending.clear();
+    }
+}
@@ -0,0 +1,136 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Checks that recovery redoes a delete and a later insert on a slotted page
+ * whose insert needs the room of the delete.  A first JVM fills a page of a
+ * SlottedPage table with long records and one short one, deletes the short
+ * record and flushes the page, then deletes a long record and inserts a
+ * long one, which takes the short record's slot and the long record's
+ * room, commits and halts without flushing.  A second JVM recovers the
+ * table and checks its records.
+ * <p>
+ * Both JVMs run in a scratch directory under java.io.tmpdir, which holds
+ * the table and the log.  The check exits with status 1 if the recovered
+ * table is not the committed one.
+ * <p>
+ * Usage: java simpledb.RecoveryCheck
+ */
+public class RecoveryCheck {
+
+    private static final TupleDesc TD = new TupleDesc(new Type[]{Type.INT_TYPE, Type.STRING_TYPE},
+            new String[]{"id", "s"});
+
+    private static final int DELETED = 5;
+    private static final int INSERTED = 1000;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0) {
+            HeapFile table = new HeapFile(new File("t.dat"), TD);
+            table.setFormat(HeapFile.Format.SLOTTED);
+            Database.getCatalog().addTable(table, "t");
+            if (args[0].equals("crash")) crash(table);
+            else System.exit(recover(table) ? 0 : 1);
+            return;
+        }
+
+        File dir = new File(System.getProperty("java.io.tmpdir"), "simpledb-recovery-check");
+        dir.mkdirs();
+        for (File f : dir.listFiles()) f.delete();
+        run(dir, "crash");
+        System.exit(run(dir, "recover"));
+    }
+
+    /** Runs a phase of the check in a new JVM. @return its exit status */
+    private static int run(File dir, String phase) throws Exception {
+        String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+        Process p = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                RecoveryCheck.class.getName(), phase).directory(dir).inheritIO().start();
+        return p.waitFor();
+    }
+
+    private static Tuple tuple(int id, String s) {
+        Tuple t = new Tuple(TD);
+        t.setField(0, new IntField(id));
+        t.setField(1, new StringField(s, Type.STRING_LEN));
+        return t;
+    }
+
+    private static String longString(int id) {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < Type.STRING_LEN) sb.append(id).append('-');
+        return sb.substring(0, Type.STRING_LEN);
+    }
+
+    private static void crash(HeapFile table) throws Exception {
+        BufferPool pool = Database.getBufferPool();
+        PageId first = new HeapPageId(table.getId(), 0);
+
+        // slot 0 holds a short record, the others long ones, up to a full page
+        Transaction t = new Transaction();
+        t.start();
+        pool.insertTuple(t.getId(), table.getId(), tuple(0, "x"));
+        int n = 1;
+        while (((TuplePage) pool.getPage(t.getId(), first, Permissions.READ_ONLY)).hasRoomFor(tuple(n, longString(n)))) {
+            pool.insertTuple(t.getId(), table.getId(), tuple(n, longString(n)));
+            n++;
+        }
+        t.commit();
+        delete(0);
+        pool.flushAllPages();
+
+        // the short record's room is too small for a long record, so the
+        // insert needs the room of the delete before it
+        delete(DELETED);
+        t = new Transaction();
+        t.start();
+        Tuple inserted = tuple(INSERTED, longString(INSERTED));
+        pool.insertTuple(t.getId(), table.getId(), inserted);
+        t.commit();
+        System.out.println("crash: " + n + " records on a page, deleted slots 0 and " + DELETED
+                + ", inserted into " + inserted.getRecordId().getPageId().getPageNumber()
+                + "/" + inserted.getRecordId().getTupleNumber());
+        Runtime.getRuntime().halt(0);
+    }
+
+    /** Deletes the record with the given id in a transaction of its own. */
+    private static void delete(int id) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        SeqScan scan = new SeqScan(t.getId(), Database.getCatalog().getTableId("t"));
+        Delete d = new Delete(t.getId(), new Filter(new Predicate(0, Predicate.Op.EQUALS, new IntField(id)), scan));
+        d.open();
+        d.next();
+        d.close();
+        t.commit();
+    }
+
+    /** @return whether the recovered table holds the committed records */
+    private static boolean recover(HeapFile table) throws Exception {
+        Database.getLogFile().recover();
+        Transaction t = new Transaction();
+        t.start();
+        SeqScan scan = new SeqScan(t.getId(), table.getId());
+        scan.open();
+        TreeSet<Integer> ids = new TreeSet<Integer>();
+        boolean ok = true;
+        while (scan.hasNext()) {
+            Tuple tuple = scan.next();
+            int id = ((IntField) tuple.getField(0)).getValue();
+            ids.add(id);
+            if (!((StringField) tuple.getField(1)).getValue().equals(longString(id))) ok = false;
+        }
+        scan.close();
+        t.commit();
+        ok &= ids.contains(INSERTED) && !ids.contains(0) && !ids.contains(DELETED);
+        Integer last = ids.lower(INSERTED);
+        for (int id = 1; last != null && id < last; id++) {
+            if (id != DELETED && !ids.contains(id)) ok = false;
+        }
+        System.out.println("recover: " + ids.size() + " records, " + (ok ? "as committed" : "NOT as committed: " + ids));
+        Database.getLogFile().shutdown();
+        return ok;
+    }
+}
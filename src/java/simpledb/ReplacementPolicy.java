@@ -0,0 +1,68 @@
+package simpledb;
+
+/**
+ * ReplacementPolicy decides which resident page the BufferPool gives up
+ * when it needs a free frame.  The BufferPool owns the pages themselves; a
+ * policy only tracks PageIds and the order in which they should be evicted.
+ * <p>
+ * The BufferPool reports every miss (pageLoaded), every hit (pageAccessed),
+ * every eviction of a victim (pageEvicted) and every other removal
+ * (pageRemoved), and asks chooseVictim() for a candidate when the pool is
+ * full.  Policies also count hits and misses so different
+ * policies can be compared on the same workload.
+ * <p>
+ * Policies are not thread safe on their own; the BufferPool serializes calls.
+ *
+ * @see BufferPool
+ * @see AbstractReplacementPolicy
+ */
+public interface ReplacementPolicy {
+
+    /**
+     * Called when a page that was not resident has been read into the pool.
+     * @param pid the id of the newly resident page
+     */
+    public void pageLoaded(PageId pid);
+
+    /**
+     * Called when a resident page is requested again.
+     * @param pid the id of the requested page
+     */
+    public void pageAccessed(PageId pid);
+
+    /**
+     * Called when a page leaves the pool without having been chosen as a
+     * victim, e.g. because it was discarded explicitly or recycled by a
+     * BufferAccessStrategy's ring.
+     * @param pid the id of the removed page
+     */
+    public void pageRemoved(PageId pid);
+
+    /**
+     * Called when a page chooseVictim() returned leaves the pool.  Policies
+     * that remember evicted pages (2Q, LRU-K) only remember these.
+     * @param pid the id of the evicted page
+     */
+    public void pageEvicted(PageId pid);
+
+    /**
+     * Returns the page that should be evicted next, without removing it.
+     * @return the id of the victim, or null if no page is tracked
+     */
+    public PageId chooseVictim();
+
+    /** @return the number of pages currently tracked by this policy */
+    public int size();
+
+    /** @return the name this policy is selected by, e.g. "lru" */
+    public String getName();
+
+    /** @return the number of requests served from the pool */
+    public long getHits();
+
+    /** @return the number of requests that had to read the page from disk */
+    public long getMisses();
+
+    /** Reset the hit and miss counters to zero. */
+    public void resetStats();
+}
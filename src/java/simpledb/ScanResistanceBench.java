@@ -0,0 +1,123 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Measures how well the buffer pool keeps a hot working set while a large
+ * table is scanned.  One thread looks up random pages of a small hot table
+ * while another scans a large table, first through the shared pool and then
+ * through a bulk-read {@link BufferAccessStrategy}; the hit ratio of the
+ * lookups shows how much of the hot set the scan evicted.  A last scan
+ * runs while the hot set is idle, so the replacement policy would evict it
+ * first; the hot pages left afterwards are the ones the scan did not
+ * displace.
+ * <p>
+ * Usage: java simpledb.ScanResistanceBench [poolPages [hotPages [scanPages [scans]]]]
+ */
+public class ScanResistanceBench {
+
+    public static void main(String[] args) throws Exception {
+        int poolPages = args.length > 0 ? Integer.parseInt(args[0]) : BufferPool.DEFAULT_PAGES;
+        int hotPages = args.length > 1 ? Integer.parseInt(args[1]) : poolPages;
+        int scanPages = args.length > 2 ? Integer.parseInt(args[2]) : 20 * poolPages;
+        int scans = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+
+        File dir = new File(System.getProperty("java.io.tmpdir"), "simpledb-scan-bench");
+        dir.mkdirs();
+        HeapFile hot = table(new File(dir, "hot.dat"), hotPages);
+        HeapFile big = table(new File(dir, "big.dat"), scanPages);
+
+        for (boolean ring : new boolean[]{false, true}) {
+            Database.resetBufferPool(poolPages);
+            BufferPool pool = Database.getBufferPool();
+            // warm up the hot set
+            lookups(hot, hotPages, 4 * hotPages, new Random(1));
+            Scanner scanner = new Scanner(big, ring ? BufferAccessStrategy.bulkRead(poolPages) : null, scans);
+            scanner.start();
+            long[] counts = new long[2];
+            Random rnd = new Random(2);
+            while (scanner.isAlive()) {
+                long[] c = lookups(hot, hotPages, 100, rnd);
+                counts[0] += c[0];
+                counts[1] += c[1];
+            }
+            scanner.join();
+            if (scanner.failure != null) throw scanner.failure;
+
+            // then one scan while the hot set sits idle, so the policy would
+            // evict it first: what is left is what the scan did not displace
+            lookups(hot, hotPages, 4 * hotPages, new Random(3));
+            scanner = new Scanner(big, ring ? BufferAccessStrategy.bulkRead(poolPages) : null, 1);
+            scanner.run();
+            if (scanner.failure != null) throw scanner.failure;
+            int resident = 0;
+            for (int i = 0; i < hotPages; i++) {
+                if (pool.isCached(new HeapPageId(hot.getId(), i))) resident++;
+            }
+            System.out.printf("%-10s pool=%d partitions=%d lookups during scans=%d hit ratio=%.3f"
+                            + " hot pages left after an idle scan=%d/%d%n",
+                    ring ? "bulk-read" : "shared", poolPages, pool.getNumPartitions(), counts[0],
+                    counts[0] == 0 ? 0.0 : (double) counts[1] / counts[0], resident, hotPages);
+        }
+        Database.getLogFile().shutdown();
+    }
+
+    /** Looks up n random pages of a table. @return the lookups and how many found their page resident */
+    private static long[] lookups(HeapFile table, int pages, int n, Random rnd) throws Exception {
+        BufferPool pool = Database.getBufferPool();
+        Transaction t = new Transaction();
+        t.start();
+        long hits = 0;
+        for (int i = 0; i < n; i++) {
+            HeapPageId pid = new HeapPageId(table.getId(), rnd.nextInt(pages));
+            if (pool.isCached(pid)) hits++;
+            pool.getPage(t.getId(), pid, Permissions.READ_ONLY);
+        }
+        t.commit();
+        return new long[]{n, hits};
+    }
+
+    /** Scans a table a number of times, through a strategy or the shared pool. */
+    private static class Scanner extends Thread {
+        private final HeapFile table;
+        private final BufferAccessStrategy strategy;
+        private final int scans;
+        volatile Exception failure;
+
+        Scanner(HeapFile table, BufferAccessStrategy strategy, int scans) {
+            this.table = table;
+            this.strategy = strategy;
+            this.scans = scans;
+        }
+
+        public void run() {
+            try {
+                for (int s = 0; s < scans; s++) {
+                    Transaction t = new Transaction();
+                    t.start();
+                    DbFileIterator it = strategy == null ? table.iterator(t.getId())
+                            : table.iterator(t.getId(), strategy);
+                    it.open();
+                    while (it.hasNext()) it.next();
+                    it.close();
+                    t.commit();
+                }
+            } catch (Exception e) {
+                failure = e;
+            }
+        }
+    }
+
+    /** @return a two-int-field table of about the given number of full pages */
+    static HeapFile table(File f, int pages) throws IOException {
+        TupleDesc td = Utility.getTupleDesc(2);
+        int perPage = (BufferPool.getPageSize() * 8) / (td.getSize() * 8 + 1);
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < pages * perPage; i++) {
+            tuples.add(new ArrayList<Integer>(Arrays.asList(i, i % 100)));
+        }
+        HeapFileEncoder.convert(tuples, f, BufferPool.getPageSize(), 2);
+        return Utility.openHeapFile(2, f);
+    }
+}
@@ -6,6 +6,11 @@ import java.util.*;
  * SeqScan is an implementation of a sequential scan access method that reads
  * each tuple of a table in no particular order (e.g., as they are laid out on
  * disk).
+ * <p>
+ * A scan can keep only some fields of the table, e.g. the ones a query
+ * uses; the other fields are then not decoded at all.  It can also return
+ * only the tuples that satisfy some predicates, which pages that encode
+ * their values test without decoding them.
  */
 public class SeqScan implements OpIterator {
 
@@ -14,6 +19,10 @@ public class SeqScan implements OpIterator {
     private TransactionId transID;
     private int tableID;
     private String tableAlias;
+    // the fields to keep, by index in the table's TupleDesc, or null for all
+    private int[] columns;
+    // the predicates on the table's fields tuples must satisfy
+    private Predicate[] filters = new Predicate[0];
 
     private DbFileIterator DBFIterator;
     /**
@@ -39,6 +48,19 @@ public class SeqScan implements OpIterator {
         this.tableAlias = tableAlias;
     }
 
+    /**
+     * Creates a sequential scan that returns tuples holding only the given
+     * fields of the table, in the given order.
+     *
+     * @param columns the fields to keep, by index in the table's TupleDesc,
+     *            or null for all of them
+     * @see #SeqScan(TransactionId, int, String)
+     */
+    public SeqScan(TransactionId tid, int tableid, String tableAlias, int[] columns) {
+        this(tid, tableid, tableAlias);
+        this.columns = columns;
+    }
+
     /**
      * @return
      *       return the table name of the table the operator scans. This should
@@ -73,6 +95,22 @@ public class SeqScan implements OpIterator {
         // some code goes here
         this.tableID = tableid;
         this.tableAlias = tableAlias;
+        this.columns = null;
+        this.filters = new Predicate[0];
+    }
+
+    /**
+     * Makes the scan return only the tuples that satisfy p, as a Filter over
+     * it would, but tested as the table's pages are read.
+     *
+     * The table must be a HeapFile.
+     *
+     * @param p a predicate on a field by its index in the table's TupleDesc,
+     *          not in this scan's
+     */
+    public void addFilter(Predicate p) {
+        this.filters = Arrays.copyOf(this.filters, this.filters.length + 1);
+        this.filters[this.filters.length - 1] = p;
     }
 
     public SeqScan(TransactionId tid, int tableId) {
@@ -81,10 +119,34 @@ public class SeqScan implements OpIterator {
 
     public void open() throws DbException, TransactionAbortedException {
         // some code goes here
-        this.DBFIterator = Database.getCatalog().getDatabaseFile(this.tableID).iterator(this.transID);
+        DbFile file = Database.getCatalog().getDatabaseFile(this.tableID);
+        BufferAccessStrategy strategy = bulkReadStrategy(file);
+        if (this.filters.length > 0) {
+            this.DBFIterator = ((HeapFile) file).iterator(this.transID, strategy, this.columns, this.filters);
+        } else if (this.columns != null) {
+            this.DBFIterator = ((HeapFile) file).iterator(this.transID, strategy, this.columns);
+        } else if (strategy != null) {
+            this.DBFIterator = ((HeapFile) file).iterator(this.transID, strategy);
+        } else {
+            this.DBFIterator = file.iterator(this.transID);
+        }
         this.DBFIterator.open();
     }
 
+    /**
+     * Like PostgreSQL, only tables larger than a quarter of the buffer pool
+     * are scanned through a bulk-read ring; smaller tables are cheap to cache
+     * and are read through the shared pool as usual.
+     *
+     * @return the strategy to scan the file with, or null for the shared pool
+     */
+    private BufferAccessStrategy bulkReadStrategy(DbFile file) {
+        if (!(file instanceof HeapFile)) return null;
+        int poolPages = Database.getBufferPool().getNumPages();
+        if (((HeapFile) file).numPages() <= poolPages / 4) return null;
+        return BufferAccessStrategy.bulkRead(poolPages);
+    }
+
     /**
      * Returns the TupleDesc with field names from the underlying HeapFile,
      * prefixed with the tableAlias string from the constructor. This prefix
@@ -98,6 +160,7 @@ public class SeqScan implements OpIterator {
     public TupleDesc getTupleDesc() {
         // some code goes here
         TupleDesc tupleDesc = Database.getCatalog().getDatabaseFile(this.tableID).getTupleDesc();
+        if (this.columns != null) tupleDesc = ((HeapFile) Database.getCatalog().getDatabaseFile(this.tableID)).getTupleDesc(this.columns);
         Type[] typeAr = new Type[tupleDesc.numFields()];
         String[] fieldAr = new String[tupleDesc.numFields()];
         for (int i = 0; i < tupleDesc.numFields(); i++) {
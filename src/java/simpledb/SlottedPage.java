@@ -0,0 +1,347 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * SlottedPage is a page of a HeapFile in the {@link HeapFile.Format#SLOTTED}
+ * format, which stores tuples as variable-length records: a string takes
+ * two bytes for its length plus its characters instead of the
+ * Type.STRING_LEN + 4 bytes of a HeapPage slot, so pages of tables with
+ * short strings hold many more tuples.
+ * <p>
+ * The format is a long pageLSN, an unsigned short number of slot directory
+ * entries, the directory, free space, and the records, packed against the
+ * end of the page.  A directory entry is an unsigned short offset and an
+ * unsigned short length: a used slot's record is at that offset, an empty
+ * slot has offset 0.  Fields of a record follow each other without
+ * padding; an int takes 4 bytes, a string an unsigned short length and its
+ * characters.
+ * <p>
+ * Records are not moved in the page's memory; getPageData writes the
+ * records it holds one after the other, so the page is compacted every time
+ * it is written and a delete frees its record's bytes without moving others.
+ * <p>
+ * The directory only grows, so a slot keeps its number.  A deleted record's
+ * bytes stay reserved for the slot (an empty entry with a length) until a
+ * tuple is put into the slot again or an {@link #insertTuple(Tuple)}, which
+ * holds the whole page, reclaims them.  In tables with record locks, the
+ * deleter locks the slot until it commits, so the reservation keeps the
+ * room to undo the delete from being taken by inserts into other slots.
+ *
+ * @see HeapFile
+ * @see AbstractTuplePage
+ */
+public class SlottedPage extends AbstractTuplePage {
+
+    /** Bytes of the page header: the pageLSN and the number of directory entries. */
+    static final int HEADER_SIZE = LSN_SIZE + 2;
+
+    /** Bytes of a slot directory entry. */
+    static final int ENTRY_SIZE = 4;
+
+    private final int pageSize;
+    // the most directory entries a page can hold, and the longest record of td
+    private final int maxSlots;
+    private final int maxRecord;
+    private int numSlots;
+    private final BitSet used = new BitSet();
+    // by slot: the length of the record in a used slot, or the bytes a
+    // deleted record still reserves in an empty one
+    private final int[] length;
+    // by slot: the offset in the image of an unchanged record, or -1
+    private final int[] offset;
+    // the tuples created so far; null for empty slots and slots not decoded yet
+    final Tuple tuples[];
+    // the bytes of the records in used slots, and those reserved by deletes
+    private int liveBytes = 0;
+    private int reservedBytes = 0;
+
+    /**
+     * Create a SlottedPage from a set of bytes of data read from disk, in
+     * the format described above.  An all-zero page is an empty page.
+     */
+    public SlottedPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, Database.getCatalog().getTupleDesc(id.getTableId()), data);
+    }
+
+    /**
+     * Create a SlottedPage of a table with the given schema, e.g. for a file
+     * that is not in the catalog.  The page keeps data as its image, so
+     * data must not change afterwards.
+     */
+    SlottedPage(HeapPageId id, TupleDesc td, byte[] data) throws IOException {
+        super(id, td, data);
+        this.pageSize = BufferPool.getPageSize();
+        if (pageSize > 0xffff) throw new IOException("slotted pages have at most 65535 bytes");
+        int minRecord = 0;
+        int longest = 0;
+        for (int j = 0; j < td.numFields(); j++) {
+            boolean string = td.getFieldType(j) == Type.STRING_TYPE;
+            minRecord += string ? 2 : td.getFieldType(j).getLen();
+            longest += string ? 2 + Type.STRING_LEN : td.getFieldType(j).getLen();
+        }
+        this.maxRecord = longest;
+        this.maxSlots = (pageSize - HEADER_SIZE) / (ENTRY_SIZE + minRecord);
+        this.length = new int[maxSlots];
+        this.offset = new int[maxSlots];
+        this.tuples = new Tuple[maxSlots];
+
+        ByteBuffer buf = ByteBuffer.wrap(this.image);
+        this.numSlots = buf.getShort(LSN_SIZE) & 0xffff;
+        if (numSlots > maxSlots) throw new IOException("bad slot directory on " + id);
+        int recordsStart = HEADER_SIZE + numSlots * ENTRY_SIZE;
+        for (int i = 0; i < numSlots; i++) {
+            int entry = HEADER_SIZE + i * ENTRY_SIZE;
+            int off = buf.getShort(entry) & 0xffff;
+            int len = buf.getShort(entry + 2) & 0xffff;
+            length[i] = len;
+            if (off == 0) {
+                offset[i] = -1;
+                reservedBytes += len;
+            } else {
+                if (off < recordsStart || off + len > pageSize) {
+                    throw new IOException("bad slot " + i + " on " + id);
+                }
+                offset[i] = off;
+                used.set(i);
+                liveBytes += len;
+            }
+        }
+    }
+
+    protected TuplePage pageOf(byte[] data) throws IOException {
+        return new SlottedPage(pid, td, data);
+    }
+
+    /** @return the bytes of t as a packed record */
+    static int packedSize(Tuple t) {
+        TupleDesc td = t.getTupleDesc();
+        int size = 0;
+        for (int j = 0; j < td.numFields(); j++) {
+            if (td.getFieldType(j) == Type.STRING_TYPE) {
+                size += 2 + Math.min(Type.STRING_LEN, ((StringField) t.getField(j)).getValue().length());
+            } else {
+                size += td.getFieldType(j).getLen();
+            }
+        }
+        return size;
+    }
+
+    /** Write t as a packed record at the given offset of data. */
+    static void pack(Tuple t, byte[] data, int at) {
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        buf.position(at);
+        TupleDesc td = t.getTupleDesc();
+        for (int j = 0; j < td.numFields(); j++) {
+            if (td.getFieldType(j) == Type.STRING_TYPE) {
+                String s = ((StringField) t.getField(j)).getValue();
+                int len = Math.min(Type.STRING_LEN, s.length());
+                buf.putShort((short) len);
+                for (int k = 0; k < len; k++) {
+                    // like DataOutput.writeBytes, keeps the low byte of each char
+                    buf.put((byte) s.charAt(k));
+                }
+            } else {
+                buf.putInt(((IntField) t.getField(j)).getValue());
+            }
+        }
+    }
+
+    /** @return the bytes neither records nor deletes hold */
+    private int freeBytes() {
+        return pageSize - HEADER_SIZE - numSlots * ENTRY_SIZE - liveBytes - reservedBytes;
+    }
+
+    /**
+     * Generates a byte array representing the contents of this page, with
+     * its records packed against the end of the page.  Passing it to the
+     * SlottedPage constructor produces an identical page.
+     */
+    public synchronized byte[] getPageData() {
+        byte[] data = new byte[pageSize];
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        buf.putLong(0, getLsn());
+        buf.putShort(LSN_SIZE, (short) numSlots);
+        int end = pageSize;
+        for (int i = 0; i < numSlots; i++) {
+            int entry = HEADER_SIZE + i * ENTRY_SIZE;
+            if (used.get(i)) {
+                end -= length[i];
+                if (offset[i] >= 0) {
+                    System.arraycopy(this.image, offset[i], data, end, length[i]);
+                } else {
+                    pack(tuples[i], data, end);
+                }
+                buf.putShort(entry, (short) end);
+            } else {
+                buf.putShort(entry, (short) 0);
+            }
+            buf.putShort(entry + 2, (short) length[i]);
+        }
+        return data;
+    }
+
+    /**
+     * Returns the number of tuples of the longest kind the table allows that
+     * still fit, counting the bytes deletes reserve as free.
+     */
+    public synchronized int getNumEmptySlots() {
+        int fit = (freeBytes() + reservedBytes) / (maxRecord + ENTRY_SIZE);
+        return Math.min(fit, maxSlots - used.cardinality());
+    }
+
+    public synchronized int getNumSlots() {
+        return numSlots;
+    }
+
+    public synchronized boolean isSlotUsed(int i) {
+        return i >= 0 && i < numSlots && used.get(i);
+    }
+
+    /**
+     * @return the first empty slot at or after from, or -1 if there is none;
+     *     past the directory, only the next new entry counts as empty
+     */
+    public synchronized int nextFreeSlot(int from) {
+        int i = used.nextClearBit(Math.max(from, 0));
+        if (i < numSlots) return i;
+        return i == numSlots && numSlots < maxSlots ? i : -1;
+    }
+
+    public synchronized int nextUsedSlot(int from) {
+        return used.nextSetBit(Math.max(from, 0));
+    }
+
+    /** @return the bytes t needs in the given empty slot beyond what the slot reserves */
+    private int needed(Tuple t, int slot) {
+        int grow = slot >= numSlots ? (slot - numSlots + 1) * ENTRY_SIZE : 0;
+        int reserved = slot < numSlots ? length[slot] : 0;
+        return packedSize(t) + grow - reserved;
+    }
+
+    public synchronized boolean hasRoomFor(Tuple t) {
+        int slot = used.nextClearBit(0);
+        if (slot >= maxSlots) return false;
+        // the insert reclaims every reservation
+        int grow = slot >= numSlots ? ENTRY_SIZE : 0;
+        return packedSize(t) + grow <= freeBytes() + reservedBytes;
+    }
+
+    public synchronized boolean hasRoomFor(Tuple t, int slot) {
+        if (slot < 0 || slot >= maxSlots || isSlotUsed(slot)) return false;
+        return needed(t, slot) <= freeBytes();
+    }
+
+    /** Give up every reservation of a deleted record. */
+    private void reclaimReserved() {
+        for (int i = used.nextClearBit(0); i < numSlots; i = used.nextClearBit(i + 1)) {
+            length[i] = 0;
+        }
+        reservedBytes = 0;
+    }
+
+    /** Put t into an empty slot, which has room for it. */
+    private void place(Tuple t, int slot) {
+        if (slot >= numSlots) numSlots = slot + 1;
+        reservedBytes -= length[slot];
+        length[slot] = packedSize(t);
+        liveBytes += length[slot];
+        offset[slot] = -1;
+        used.set(slot);
+        this.tuples[slot] = t;
+        t.setRecordId(new RecordId(this.pid, slot));
+    }
+
+    /** Empty a used slot, leaving its record's bytes reserved if reserve is set. */
+    private void empty(int slot, boolean reserve) {
+        liveBytes -= length[slot];
+        if (reserve) reservedBytes += length[slot];
+        else length[slot] = 0;
+        offset[slot] = -1;
+        used.clear(slot);
+        this.tuples[slot] = null;
+    }
+
+    public synchronized void deleteTuple(Tuple t) throws DbException {
+        RecordId rid = t.getRecordId();
+        if (rid == null) throw new DbException("tuple not valid");
+        int slot = rid.getTupleNumber();
+        if (!isSlotUsed(slot)) throw new DbException("this tuple slot is empty");
+        else if (!rid.getPageId().equals(this.pid)) throw new DbException("the tuple is not on this page");
+        beforeChange();
+        empty(slot, true);
+        t.setRecordId(null);
+    }
+
+    public synchronized void insertTuple(Tuple t) throws DbException {
+        if (!t.getTupleDesc().equals(this.td) || !hasRoomFor(t))
+            throw new DbException("Cannot insert");
+        beforeChange();
+        // the caller holds the page, so no delete that could still be undone
+        // is someone else's
+        reclaimReserved();
+        place(t, used.nextClearBit(0));
+    }
+
+    public synchronized void insertTuple(Tuple t, int slot) throws DbException {
+        if (!t.getTupleDesc().equals(this.td) || !hasRoomFor(t, slot))
+            throw new DbException("Cannot insert into slot " + slot);
+        beforeChange();
+        place(t, slot);
+    }
+
+    public synchronized Tuple getTuple(int slot) {
+        if (!isSlotUsed(slot)) return null;
+        Tuple t = this.tuples[slot];
+        if (t == null) {
+            t = new Tuple(td, this.image, offset[slot], true);
+            t.setRecordId(new RecordId(pid, slot));
+            this.tuples[slot] = t;
+        }
+        return t;
+    }
+
+    public synchronized byte[] getTupleData(int slot) {
+        Tuple t = getTuple(slot);
+        return t == null ? null : HeapPage.serializeTuple(t);
+    }
+
+    public synchronized void putTupleData(int slot, byte[] data) throws DbException {
+        if (slot < 0 || slot >= maxSlots) throw new DbException("no slot " + slot + " on " + pid);
+        Tuple t = new Tuple(td);
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        try {
+            for (int j=0; j<td.numFields(); j++) {
+                t.setField(j, td.getFieldType(j).parse(dis));
+            }
+        } catch (java.text.ParseException e) {
+            throw new DbException("can't parse logged tuple for slot " + slot + " on " + pid);
+        }
+        beforeChange();
+        if (isSlotUsed(slot)) empty(slot, true);
+        if (needed(t, slot) > freeBytes()) {
+            // the log only replays what fit once, so other reservations
+            // are stale, e.g. of deletes that were undone before a crash
+            reclaimReserved();
+            if (needed(t, slot) > freeBytes()) {
+                throw new DbException("no room for logged tuple in slot " + slot + " on " + pid);
+            }
+        }
+        place(t, slot);
+    }
+
+    public synchronized void clearSlot(int slot) throws DbException {
+        if (slot < 0 || slot >= maxSlots) throw new DbException("no slot " + slot + " on " + pid);
+        beforeChange();
+        if (slot >= numSlots) numSlots = slot + 1;
+        if (this.tuples[slot] != null) this.tuples[slot].setRecordId(null);
+        if (used.get(slot)) {
+            empty(slot, false);
+        } else {
+            reservedBytes -= length[slot];
+            length[slot] = 0;
+        }
+    }
+}
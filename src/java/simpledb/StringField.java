@@ -62,8 +62,8 @@ public class StringField implements Field {
 		}
 		dos.writeInt(s.length());
 		dos.writeBytes(s);
-		while (overflow-- > 0)
-			dos.write((byte) 0);
+		if (overflow > 0)
+			dos.write(new byte[overflow]);
 	}
 
 	/**
@@ -1,12 +1,18 @@
 package simpledb;
 
-import java.io.Serializable;
+import java.io.*;
 import java.util.*;
 
 /**
  * Tuple maintains information about the contents of a tuple. Tuples have a
  * specified schema specified by a TupleDesc object and contain Field objects
  * with the data for each field.
+ * <p>
+ * A tuple read from a page can be left encoded: it then points at the
+ * tuple's bytes in the page image and decodes each field the first time it
+ * is asked for, so operators that look at few columns never build Field
+ * objects for the others.  The tuples of a page are shared by the
+ * transactions reading it, so fields are decoded under the tuple's monitor.
  */
 public class Tuple implements Serializable {
 
@@ -14,6 +20,16 @@ public class Tuple implements Serializable {
     private TupleDesc td = null;
     private ArrayList<Field> fields = null;
     private RecordId recordId = null;
+    // the encoded tuple and the fields not decoded from it yet, or null
+    private transient byte[] source = null;
+    private transient int sourceOffset;
+    // whether the fields in source are packed (see SlottedPage) rather than
+    // at fixed offsets
+    private transient boolean packed;
+    // for fields stored column by column (see PaxPage), the offset of each
+    // column in source; sourceOffset is then the tuple's row in the columns
+    private transient int[] columnStarts;
+    private BitSet encoded = null;
 
     private static final long serialVersionUID = 1L;
 
@@ -31,6 +47,95 @@ public class Tuple implements Serializable {
         }
     }
 
+    /**
+     * Create a tuple whose fields are decoded on demand from the bytes of a
+     * page slot.  The bytes must not change afterwards.
+     *
+     * @param source the bytes holding the tuple, in the format of a page slot
+     * @param offset the offset of the tuple in source
+     */
+    Tuple(TupleDesc td, byte[] source, int offset) {
+        this(td, source, offset, false);
+    }
+
+    /**
+     * Create a tuple whose fields are decoded on demand from bytes in the
+     * fixed-length format of a HeapPage slot or, if packed, in the
+     * variable-length format of a SlottedPage record.  The bytes must not
+     * change afterwards.
+     */
+    Tuple(TupleDesc td, byte[] source, int offset, boolean packed) {
+        this(td);
+        this.source = source;
+        this.sourceOffset = offset;
+        this.packed = packed;
+        this.encoded = new BitSet(td.numFields());
+        this.encoded.set(0, td.numFields());
+    }
+
+    /**
+     * Create a tuple whose fields are decoded on demand from bytes that hold
+     * each field of a tuple at the tuple's row of the field's column, in the
+     * format of a HeapPage slot.  The bytes must not change afterwards.
+     *
+     * @param columnStarts the offset of each column in source
+     * @param row the tuple's row in the columns
+     */
+    Tuple(TupleDesc td, byte[] source, int[] columnStarts, int row) {
+        this(td, source, row, false);
+        this.columnStarts = columnStarts;
+    }
+
+    /** Decode field i if it is still encoded. */
+    private synchronized void decode(int i) {
+        if (this.encoded == null || !this.encoded.get(i)) return;
+        byte[] b = this.source;
+        int offset = this.sourceOffset;
+        if (this.columnStarts != null) {
+            offset = this.columnStarts[i] + this.sourceOffset * this.td.getFieldType(i).getLen();
+        } else {
+            for (int j = 0; j < i; j++) {
+                Type type = this.td.getFieldType(j);
+                if (this.packed && type == Type.STRING_TYPE) {
+                    // a packed string is its length in two bytes and its bytes
+                    offset += 2 + (((b[offset] & 0xff) << 8) | (b[offset + 1] & 0xff));
+                } else {
+                    offset += type.getLen();
+                }
+            }
+        }
+        Type type = this.td.getFieldType(i);
+        Field f;
+        if (type == Type.INT_TYPE) {
+            f = new IntField((b[offset] << 24) | ((b[offset + 1] & 0xff) << 16)
+                    | ((b[offset + 2] & 0xff) << 8) | (b[offset + 3] & 0xff));
+        } else if (this.packed && type == Type.STRING_TYPE) {
+            int len = ((b[offset] & 0xff) << 8) | (b[offset + 1] & 0xff);
+            f = new StringField(new String(b, offset + 2, len), Type.STRING_LEN);
+        } else {
+            try {
+                f = type.parse(new DataInputStream(new ByteArrayInputStream(this.source, offset, type.getLen())));
+            } catch (java.text.ParseException e) {
+                throw new NoSuchElementException("parsing error!");
+            }
+        }
+        this.fields.set(i, f);
+        this.encoded.clear(i);
+    }
+
+    /** Decode all fields that are still encoded. */
+    private synchronized void decodeAll() {
+        if (this.encoded == null) return;
+        for (int i = this.encoded.nextSetBit(0); i >= 0; i = this.encoded.nextSetBit(i + 1)) {
+            decode(i);
+        }
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        decodeAll();
+        out.defaultWriteObject();
+    }
+
     /**
      * @return The TupleDesc representing the schema of this tuple.
      */
@@ -73,7 +178,14 @@ public class Tuple implements Serializable {
             resetTupleDesc(this.td);
         }
         if ((i >= 0 || i < this.td.numFields())) {
-            this.fields.set(i, f);
+            if (this.encoded == null) {
+                this.fields.set(i, f);
+            } else {
+                synchronized (this) {
+                    this.fields.set(i, f);
+                    this.encoded.clear(i);
+                }
+            }
         }
     }
 
@@ -93,6 +205,7 @@ public class Tuple implements Serializable {
                 return null;
             }
             else {
+                if (this.encoded != null) decode(i);
                 return this.fields.get(i);
             }
         }
@@ -108,6 +221,7 @@ public class Tuple implements Serializable {
      */
     public String toString() {
         // some code goes here
+        decodeAll();
         String content = "";
         for (int i = 0; i < this.fields.size(); i++) {
             if (getField(i) != null) {
@@ -127,6 +241,7 @@ public class Tuple implements Serializable {
     public Iterator<Field> fields()
     {
         // some code goes here
+        decodeAll();
         return this.fields.iterator();
     }
 
@@ -137,6 +252,9 @@ public class Tuple implements Serializable {
     {
         // some code goes here
         this.td = td;
+        this.source = null;
+        this.columnStarts = null;
+        this.encoded = null;
         this.fields = new ArrayList<Field>(td.numFields());
         for (int i = 0; i < td.numFields(); i++) {
             this.fields.add(null);
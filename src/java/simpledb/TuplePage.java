@@ -0,0 +1,151 @@
+package simpledb;
+
+import java.util.Iterator;
+
+/**
+ * TuplePage is the interface of the pages of a HeapFile.  A page is a
+ * numbered set of slots, each of which is empty or holds one tuple.
+ * RecordIds, record locks and the log name tuples by their slot, so a slot
+ * keeps its number for the life of the page; how the slots are laid out in
+ * the page's bytes depends on the file's {@link HeapFile.Format}.
+ * <p>
+ * The page's monitor is its latch: methods that read or change the slots
+ * are synchronized, and callers that need several calls to see the same
+ * page hold it across them.
+ *
+ * @see AbstractTuplePage
+ */
+public interface TuplePage extends Page {
+
+    public HeapPageId getId();
+
+    /**
+     * @return the number of slots of this page; slots are numbered from 0
+     */
+    public int getNumSlots();
+
+    /**
+     * @return the number of tuples that can still be inserted into this
+     *     page, whatever their contents; kept in the file's free space map
+     */
+    public int getNumEmptySlots();
+
+    /**
+     * @return true if the slot holds a tuple
+     */
+    public boolean isSlotUsed(int i);
+
+    /**
+     * @return the first empty slot at or after from, or -1 if there is none
+     */
+    public int nextFreeSlot(int from);
+
+    /**
+     * @return the first used slot at or after from, or -1 if there is none
+     */
+    public int nextUsedSlot(int from);
+
+    /**
+     * @return true if {@link #insertTuple(Tuple)} has room for t
+     */
+    public boolean hasRoomFor(Tuple t);
+
+    /**
+     * @return true if {@link #insertTuple(Tuple, int)} has room for t in
+     *     the given slot
+     */
+    public boolean hasRoomFor(Tuple t, int slot);
+
+    /**
+     * @return the tuple stored in the given slot, or null if the slot is empty
+     */
+    public Tuple getTuple(int slot);
+
+    /**
+     * Adds the specified tuple to an empty slot of the page and sets its
+     * RecordId.  The caller must hold the page exclusively.
+     * @throws DbException if the page has no room for it or tupledesc is
+     *         mismatch.
+     */
+    public void insertTuple(Tuple t) throws DbException;
+
+    /**
+     * Adds the specified tuple to the given empty slot of the page, e.g. a
+     * slot the caller has locked or the slot an aborted delete vacated.
+     * @throws DbException if the slot is in use, there is no room for t or
+     *         tupledesc is mismatch.
+     */
+    public void insertTuple(Tuple t, int slot) throws DbException;
+
+    /**
+     * Delete the specified tuple from the page.
+     * @throws DbException if this tuple is not on this page, or tuple slot is
+     *         already empty.
+     */
+    public void deleteTuple(Tuple t) throws DbException;
+
+    /**
+     * @return the serialized fields of the tuple in the given slot, as
+     *     logged by LogFile (see {@link HeapPage#serializeTuple}), or null
+     *     if the slot is empty
+     */
+    public byte[] getTupleData(int slot);
+
+    /**
+     * Stores a tuple serialized by {@link HeapPage#serializeTuple} in the
+     * given slot, replacing whatever it held.  Used to redo inserts and undo
+     * deletes from the log, so applying it twice has the same effect as
+     * applying it once.
+     */
+    public void putTupleData(int slot, byte[] data) throws DbException;
+
+    /**
+     * Empties the given slot, whether or not it was in use.  Used to redo
+     * deletes and undo inserts from the log.
+     */
+    public void clearSlot(int slot) throws DbException;
+
+    /** @return the pageLSN: the LSN of the last log record applied to this page, or 0 */
+    public long getLsn();
+
+    /** Set the pageLSN after applying a log record to this page; the log
+     must be forced up to it before the page is written (WAL).  The first
+     LSN set after the page was written becomes its recLSN. */
+    public void setLsn(long lsn);
+
+    /** @return the recLSN: the LSN of the first log record applied to this
+     page since it was last written, or 0 if there is none */
+    public long getRecLsn();
+
+    /** Set the recLSN to lsn unless it is already set to an earlier LSN;
+     used when several log records are applied at once, e.g. by redo. */
+    public void setRecLsn(long lsn);
+
+    /**
+     * @return an iterator over the tuples on this page; it does not support remove
+     */
+    public Iterator<Tuple> iterator();
+
+    /**
+     * Returns an iterator over the tuples on this page holding only the
+     * given fields, e.g. the ones a query uses.  The tuples keep their
+     * RecordIds.  Formats that store fields apart decode only these.
+     *
+     * @param columns the fields to keep, by index in the page's TupleDesc
+     * @param projected the TupleDesc of the returned tuples
+     */
+    public Iterator<Tuple> iterator(int[] columns, TupleDesc projected);
+
+    /**
+     * Returns an iterator over the tuples on this page that satisfy all the
+     * given predicates, holding only the given fields.  Formats that encode
+     * values may test the predicates without decoding them.
+     *
+     * @param columns the fields to keep, by index in the page's TupleDesc,
+     *     or null for all of them
+     * @param projected the TupleDesc of the returned tuples, or null if
+     *     columns is null
+     * @param filters predicates on fields by index in the page's TupleDesc
+     */
+    public Iterator<Tuple> iterator(int[] columns, TupleDesc projected, Predicate[] filters);
+}
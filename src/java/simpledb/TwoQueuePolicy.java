@@ -0,0 +1,86 @@
+package simpledb;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+
+/**
+ * Full 2Q replacement (Johnson and Shasha).  Newly read pages enter the
+ * FIFO queue A1in; a page is only promoted to the LRU queue Am if it is
+ * referenced again after having been evicted from A1in, which is detected
+ * through the ghost queue A1out of recently evicted page ids.  Pages read
+ * once by a scan flow through A1in and never disturb Am.  All operations
+ * are O(1).
+ */
+public class TwoQueuePolicy extends AbstractReplacementPolicy {
+
+    private final LinkedHashSet<PageId> a1in;
+    private final LinkedHashSet<PageId> a1out;
+    private final LinkedHashMap<PageId, Boolean> am;
+    private final int kin;
+    private final int kout;
+
+    /**
+     * @param numPages the pool size; A1in is sized to a quarter of it and
+     *                 A1out remembers half of it, as suggested in the paper
+     */
+    public TwoQueuePolicy(int numPages) {
+        this.a1in = new LinkedHashSet<PageId>();
+        this.a1out = new LinkedHashSet<PageId>();
+        this.am = new LinkedHashMap<PageId, Boolean>(16, 0.75f, true);
+        this.kin = Math.max(numPages / 4, 1);
+        this.kout = Math.max(numPages / 2, 1);
+    }
+
+    protected void loaded(PageId pid) {
+        if (a1in.contains(pid) || am.containsKey(pid)) {
+            accessed(pid);
+            return;
+        }
+        if (a1out.remove(pid)) {
+            am.put(pid, Boolean.TRUE);
+        } else {
+            a1in.add(pid);
+        }
+    }
+
+    protected void accessed(PageId pid) {
+        // hits in A1in are deliberately ignored: correlated references
+        // shortly after the first read should not promote the page
+        if (am.get(pid) == null && !a1in.contains(pid)) loaded(pid);
+    }
+
+    public void pageRemoved(PageId pid) {
+        // a discarded page was not evicted, so it leaves no ghost
+        if (!a1in.remove(pid)) am.remove(pid);
+    }
+
+    public void pageEvicted(PageId pid) {
+        if (a1in.remove(pid)) {
+            a1out.add(pid);
+            if (a1out.size() > kout) {
+                Iterator<PageId> it = a1out.iterator();
+                it.next();
+                it.remove();
+            }
+        } else {
+            am.remove(pid);
+        }
+    }
+
+    public PageId chooseVictim() {
+        if (!a1in.isEmpty() && (a1in.size() > kin || am.isEmpty())) {
+            return a1in.iterator().next();
+        }
+        if (!am.isEmpty()) return am.keySet().iterator().next();
+        return null;
+    }
+
+    public int size() {
+        return a1in.size() + am.size();
+    }
+
+    public String getName() {
+        return "2q";
+    }
+}
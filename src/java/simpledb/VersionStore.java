@@ -0,0 +1,230 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * VersionStore keeps the older versions of tuples that snapshot readers
+ * may still need, as undo chains next to the heap.
+ * <p>
+ * The heap always holds the newest version of every slot, committed or
+ * not.  Whenever a transaction inserts or deletes a tuple, the state of the
+ * slot before the change (the deleted tuple, or nothing for an insert) is
+ * pushed onto the slot's chain, tagged with the writer.  When the writer
+ * commits, all its versions get the same commit timestamp.
+ * <p>
+ * A transaction's snapshot is the commit clock at its first snapshot read.
+ * A reader finds its version of a slot by walking the chain from the
+ * newest change: if the writer of a change committed at or before the
+ * snapshot (or is the reader itself) the state after the change is the one
+ * it sees, otherwise it steps back to the state before it.  Readers take
+ * no locks; writers still lock through LockManager, and a writer aborts if
+ * it tries to delete a tuple changed by a transaction its snapshot cannot
+ * see (first updater wins).
+ * <p>
+ * A change that every active snapshot can see hides all older versions of
+ * its slot, so {@link #collectGarbage()} cuts chains there.
+ * <p>
+ * Changes are recorded while the caller holds the page's latch, and
+ * readers compute the visible tuples of a page under the same latch, so a
+ * reader never sees a heap change before its version.  The chains are
+ * only changed under the store's monitor, which is taken after page
+ * latches; readers walk them without it.
+ *
+ * @Threadsafe
+ */
+public class VersionStore {
+
+    /** One change to a slot, with the state of the slot before it. */
+    private static class Version {
+        final TransactionId writer;
+        final RecordId rid;
+        // the tuple the change removed, or null if the slot was empty
+        final Tuple before;
+        // the next older change of the same slot
+        volatile Version older;
+        volatile long commitTs = Long.MAX_VALUE;
+
+        Version(TransactionId writer, RecordId rid, Tuple before, Version older) {
+            this.writer = writer;
+            this.rid = rid;
+            this.before = before;
+            this.older = older;
+        }
+    }
+
+    // the newest change of each slot, by page and slot number
+    private final Map<PageId, Map<Integer, Version>> chains = new ConcurrentHashMap<>();
+    // the uncommitted changes of each writer
+    private final Map<TransactionId, List<Version>> written = new HashMap<>();
+    // the snapshot timestamp of each reader
+    private final Map<TransactionId, Long> snapshots = new HashMap<>();
+    private long clock = 0;
+    private long collected = 0;
+
+    /**
+     * @return the snapshot timestamp of tid, taking the snapshot now if tid
+     *   has not read through the store yet
+     */
+    public synchronized long snapshot(TransactionId tid) {
+        Long ts = snapshots.get(tid);
+        if (ts == null) {
+            ts = clock;
+            snapshots.put(tid, ts);
+        }
+        return ts;
+    }
+
+    /**
+     * Records that tid inserted a tuple into, or deleted one from, a slot.
+     * The caller holds the latch of the page and the write lock that lets
+     * tid change the slot.
+     *
+     * @param rid the slot that changed
+     * @param before a copy of the deleted tuple, or null for an insert
+     */
+    public synchronized void recordChange(TransactionId tid, RecordId rid, Tuple before) {
+        Map<Integer, Version> slots = chains.get(rid.getPageId());
+        if (slots == null) {
+            slots = new ConcurrentHashMap<Integer, Version>();
+            chains.put(rid.getPageId(), slots);
+        }
+        Version v = new Version(tid, rid, before, slots.get(rid.getTupleNumber()));
+        slots.put(rid.getTupleNumber(), v);
+
+        List<Version> mine = written.get(tid);
+        if (mine == null) {
+            mine = new ArrayList<Version>();
+            written.put(tid, mine);
+        }
+        mine.add(v);
+    }
+
+    /**
+     * @return a copy of t stored at rid, to keep as an old version
+     */
+    public static Tuple copyOf(Tuple t, RecordId rid) {
+        Tuple copy = new Tuple(t.getTupleDesc());
+        for (int i = 0; i < t.getTupleDesc().numFields(); i++) {
+            copy.setField(i, t.getField(i));
+        }
+        copy.setRecordId(rid);
+        return copy;
+    }
+
+    /**
+     * @return an iterator over the tuples of the page in tid's snapshot
+     */
+    public Iterator<Tuple> visibleTuples(TransactionId tid, TuplePage page) {
+        long ts = snapshot(tid);
+        synchronized (page) {
+            Map<Integer, Version> slots = chains.get(page.getId());
+            List<Tuple> visible = new ArrayList<Tuple>();
+            if (slots == null || slots.isEmpty()) {
+                // no old versions: the heap is the snapshot, copied under the latch
+                for (int i = page.nextUsedSlot(0); i >= 0; i = page.nextUsedSlot(i + 1)) {
+                    visible.add(page.getTuple(i));
+                }
+                return Collections.unmodifiableList(visible).iterator();
+            }
+            for (int i = 0; i < page.getNumSlots(); i++) {
+                Tuple t = visible(tid, ts, page.getTuple(i), slots.get(i));
+                if (t != null) visible.add(t);
+            }
+            return Collections.unmodifiableList(visible).iterator();
+        }
+    }
+
+    /** @return the version of a slot whose heap tuple is current and newest change is head */
+    private static Tuple visible(TransactionId tid, long ts, Tuple current, Version head) {
+        Tuple version = current;
+        for (Version v = head; v != null; v = v.older) {
+            if (v.writer.equals(tid) || v.commitTs <= ts) return version;
+            version = v.before;
+        }
+        return version;
+    }
+
+    /**
+     * @return true if a transaction tid's snapshot cannot see changed the
+     *   slot, so tid must not overwrite it
+     */
+    public boolean changedSinceSnapshot(TransactionId tid, RecordId rid) {
+        long ts = snapshot(tid);
+        Map<Integer, Version> slots = chains.get(rid.getPageId());
+        Version head = slots == null ? null : slots.get(rid.getTupleNumber());
+        return head != null && !head.writer.equals(tid) && head.commitTs > ts;
+    }
+
+    /**
+     * Ends tid's snapshot and, if it committed, makes its changes visible
+     * to every snapshot taken from now on.  An aborting transaction's
+     * changes must already be rolled back in the heap; they are dropped from
+     * the chains, whose heads they still are since tid holds the write locks.
+     */
+    public synchronized void transactionComplete(TransactionId tid, boolean commit) {
+        List<Version> mine = written.remove(tid);
+        snapshots.remove(tid);
+        if (mine == null) return;
+        if (commit) {
+            long ts = ++clock;
+            for (Version v : mine) v.commitTs = ts;
+            return;
+        }
+        for (Version v : mine) {
+            Map<Integer, Version> slots = chains.get(v.rid.getPageId());
+            if (slots == null) continue;
+            int slot = v.rid.getTupleNumber();
+            Version head = slots.get(slot);
+            while (head != null && head.writer.equals(tid)) head = head.older;
+            if (head == null) slots.remove(slot);
+            else slots.put(slot, head);
+        }
+    }
+
+    /**
+     * Drops every version no active snapshot can reach: everything older
+     * than a change committed before the oldest snapshot.
+     *
+     * @return the number of versions dropped
+     */
+    public synchronized long collectGarbage() {
+        long horizon = clock;
+        for (long ts : snapshots.values()) horizon = Math.min(horizon, ts);
+        long dropped = 0;
+        for (Iterator<Map<Integer, Version>> pages = chains.values().iterator(); pages.hasNext(); ) {
+            Map<Integer, Version> slots = pages.next();
+            for (Iterator<Map.Entry<Integer, Version>> it = slots.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<Integer, Version> e = it.next();
+                Version newer = null;
+                for (Version v = e.getValue(); v != null; newer = v, v = v.older) {
+                    if (v.commitTs > horizon) continue;
+                    // v and everything older are hidden by v for every snapshot
+                    for (Version d = v; d != null; d = d.older) dropped++;
+                    if (newer == null) it.remove();
+                    else newer.older = null;
+                    break;
+                }
+            }
+            if (slots.isEmpty()) pages.remove();
+        }
+        collected += dropped;
+        return dropped;
+    }
+
+    /** @return the number of old versions currently kept */
+    public synchronized long getVersionCount() {
+        long count = 0;
+        for (Map<Integer, Version> slots : chains.values()) {
+            for (Version v : slots.values()) {
+                for (; v != null; v = v.older) count++;
+            }
+        }
+        return count;
+    }
+
+    /** @return the number of versions garbage collected so far */
+    public synchronized long getCollectedCount() {
+        return collected;
+    }
+}